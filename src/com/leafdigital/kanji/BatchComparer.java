@@ -0,0 +1,42 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+/**
+ * Comparer that can score a range of kanji in a {@link StrokeBucket} in one
+ * call, working through the bucket's columns rather than one kanji at a
+ * time. {@link KanjiList} uses this in preference to scoring each kanji when
+ * a comparer supports it.
+ */
+interface BatchComparer extends BucketComparer
+{
+	/**
+	 * Compares against a range of kanji in a bucket. The results are the same
+	 * as calling {@link #getMatchScore(StrokeBucket, int)} for each kanji.
+	 * Every kanji is scored in full, so these are not included in
+	 * {@link #getPrunedCount()}.
+	 * @param bucket Bucket
+	 * @param start Index of first kanji within bucket
+	 * @param end Index after last kanji
+	 * @param scores Array that receives scores in range 0 to 100 (the score
+	 *   for kanji <code>start</code> goes at position 0)
+	 */
+	public void getMatchScores(StrokeBucket bucket, int start, int end,
+		float[] scores);
+}
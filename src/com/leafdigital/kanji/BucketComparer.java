@@ -0,0 +1,71 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+/**
+ * Comparer that can score kanji directly from the columns of a
+ * {@link StrokeBucket}, without going through {@link KanjiInfo} objects.
+ * All the built-in comparers implement this; {@link KanjiList} falls back to
+ * {@link KanjiComparer#getMatchScore(KanjiInfo)} for any that don't.
+ */
+interface BucketComparer extends KanjiComparer
+{
+	/**
+	 * Upper bounds on floating-point scores are calculated in a different order
+	 * from the scores themselves, so they are only trusted to within this
+	 * amount.
+	 */
+	final static float BOUND_SLACK = 0.001f;
+
+	/**
+	 * Compares against a kanji in a bucket. The result is the same as calling
+	 * {@link #getMatchScore(KanjiInfo)} with that kanji.
+	 * @param bucket Bucket
+	 * @param index Index of kanji within bucket
+	 * @return Score in range 0 to 100
+	 */
+	public float getMatchScore(StrokeBucket bucket, int index);
+
+	/**
+	 * Compares against a kanji in a bucket, giving up as soon as the score
+	 * cannot reach a threshold. If the score is at least minScore, the result
+	 * is the same as {@link #getMatchScore(StrokeBucket, int)}; otherwise it
+	 * is some value below minScore.
+	 * @param bucket Bucket
+	 * @param index Index of kanji within bucket
+	 * @param minScore Lowest score that is of interest
+	 * @return Score in range 0 to 100, or a value below minScore
+	 */
+	public float getMatchScore(StrokeBucket bucket, int index, float minScore);
+
+	/**
+	 * @return Number of times {@link #getMatchScore(StrokeBucket, int, float)}
+	 *   has given up early, since this comparer was created
+	 */
+	public int getPrunedCount();
+
+	/**
+	 * Creates another comparer for the same drawn kanji. Information about the
+	 * drawn kanji is prepared by {@link #init(KanjiInfo)} and never changes
+	 * afterwards, so the new comparer shares it, but it has its own scratch
+	 * space; the two can be used at the same time by different threads.
+	 * @return Comparer (already inited)
+	 */
+	public KanjiComparer newWorker();
+}
@@ -0,0 +1,149 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+/**
+ * Hash index from Unicode code point to kanji, using open addressing on
+ * primitive arrays so that lookups don't box or allocate.
+ * <p>
+ * Only one thread may call {@link #put(int, KanjiInfo)} at a time, but
+ * {@link #get(int)} needs no locking. A lookup that runs at the same time
+ * as a put of the same code point may miss it.
+ */
+class CodePointIndex
+{
+	private final static int INITIAL_CAPACITY = 64;
+
+	/**
+	 * Table arrays. Keys are stored as code point + 1, so that 0 can mean
+	 * empty.
+	 */
+	private static class Table
+	{
+		private final int[] keys;
+		private final KanjiInfo[] values;
+		private final int mask;
+
+		private Table(int capacity)
+		{
+			keys = new int[capacity];
+			values = new KanjiInfo[capacity];
+			mask = capacity - 1;
+		}
+	}
+
+	/**
+	 * Current table. This is written (possibly with the same value) after
+	 * every change, so readers see everything added before they read it.
+	 */
+	private volatile Table table = new Table(INITIAL_CAPACITY);
+
+	/** Number of entries (only used by writer) */
+	private int size;
+
+	/**
+	 * @param codePoint Code point
+	 * @param mask Table mask
+	 * @return Initial slot
+	 */
+	private static int slot(int codePoint, int mask)
+	{
+		int hash = codePoint * 0x9e3779b9;
+		return (hash ^ (hash >>> 16)) & mask;
+	}
+
+	/**
+	 * @param codePoint Code point
+	 * @return Kanji, or null if none
+	 */
+	KanjiInfo get(int codePoint)
+	{
+		Table current = table;
+		int key = codePoint + 1;
+		for(int slot = slot(codePoint, current.mask); ; slot = (slot + 1) & current.mask)
+		{
+			int found = current.keys[slot];
+			if(found == key)
+			{
+				// May be null if a put is in progress
+				return current.values[slot];
+			}
+			if(found == 0)
+			{
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Adds a kanji, unless there is already one for that code point.
+	 * @param codePoint Code point
+	 * @param info Kanji
+	 * @return True if added, false if the code point was already present
+	 */
+	boolean put(int codePoint, KanjiInfo info)
+	{
+		Table current = table;
+		if((size + 1) * 2 > current.keys.length)
+		{
+			// Keep load factor under 0.5; build new table before publishing it
+			Table bigger = new Table(current.keys.length * 2);
+			for(int i=0; i<current.keys.length; i++)
+			{
+				if(current.keys[i] != 0)
+				{
+					insert(bigger, current.keys[i], current.values[i]);
+				}
+			}
+			current = bigger;
+		}
+		boolean added = insert(current, codePoint + 1, info);
+		if(added)
+		{
+			size++;
+		}
+		table = current;
+		return added;
+	}
+
+	/**
+	 * Inserts into a table, writing the value before the key.
+	 * @param target Table
+	 * @param key Key (code point + 1)
+	 * @param info Kanji
+	 * @return True if added, false if already present
+	 */
+	private static boolean insert(Table target, int key, KanjiInfo info)
+	{
+		for(int slot = slot(key - 1, target.mask); ; slot = (slot + 1) & target.mask)
+		{
+			int found = target.keys[slot];
+			if(found == key)
+			{
+				return false;
+			}
+			if(found == 0)
+			{
+				target.values[slot] = info;
+				target.keys[slot] = key;
+				return true;
+			}
+		}
+	}
+}
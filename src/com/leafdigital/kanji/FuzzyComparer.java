@@ -18,464 +18,551 @@ Copyright 2011 Samuel Marshall.
 */
 package com.leafdigital.kanji;
 
+import java.util.Arrays;
+
 /**
  * Compares entered strokes with other kanji using slightly fuzzy logic.
+ * <p>
+ * Each stroke is treated as a pair of points (start and end). Every drawn
+ * point is scored against every point in the other kanji, based on how
+ * similar the arrangement of other points around it is. Drawn pairs are
+ * then greedily matched with the best available pair of other points.
+ * <p>
+ * All scratch data is held in primitive arrays allocated when the comparer
+ * is created, so comparisons do not allocate memory.
  */
-public class FuzzyComparer implements KanjiComparer
+public class FuzzyComparer implements BucketComparer
 {
-	private Pair[] drawnPairs;
-	private Point[] drawnPoints;
-
 	private final static float SCOREMULTI_NOT_PAIR = 0.9f;
 	private final static float SCOREMULTI_WRONG_DIRECTION = 0.97f;
 
 	private final static int BEST_SCORES_SORT_FIRST = 5;
 
-	private static class Pair
-	{
-		private Point a, b;
+	private final static int FACETS = 6;
+	private final static int SIMILAR_RANGE = 13;
 
-		private int pointCount;
+	/**
+	 * Other kanji can have up to this many more strokes than the drawn one
+	 * without needing to reallocate scratch space (enough for FUZZY_2OUT).
+	 */
+	private final static int EXTRA_STROKES = 2;
 
-		private float[][] scores;
-		private float maxBScore, maxAScore;
+	/**
+	 * Prepared data about the drawn kanji (shared between workers).
+	 */
+	private Drawn drawn;
 
-		private float bestScore;
-		private int bestAIndex, bestBIndex;
+	// Scratch space used while scoring (not shared). Drawn points are
+	// numbered 2 * pair (start) and 2 * pair + 1 (end); the same applies to
+	// points in the other kanji.
 
-		private Pair(Point a, Point b)
-		{
-			this.a = a;
-			this.b = b;
-		}
+	/**
+	 * Number of other points that scratch arrays have space for.
+	 */
+	private int capacity;
 
-		void initDrawn(int maxStrokes)
-		{
-			scores = new float[maxStrokes * 2][];
-			for(int i=0; i<scores.length; i++)
-			{
-				scores[i] = new float[maxStrokes * 2];
-			}
-			a.initDrawn(maxStrokes);
-			b.initDrawn(maxStrokes);
-		}
+	/**
+	 * Score of each drawn point against each other point
+	 * [drawnPoint * capacity + otherPoint].
+	 */
+	private int[] pointScores;
 
-		private void score(Point[] availablePoints)
-		{
-			pointCount = availablePoints.length;
-			maxBScore = -1;
-			maxAScore = -1;
+	/**
+	 * For each drawn point, indexes (and scores) of other points with the
+	 * best few first, then the rest in order
+	 * [drawnPoint * sortedStride + position].
+	 */
+	private int[] sortedIndexes, sortedScores;
+	private int sortedStride;
 
-			// Get max B score
-			for(int bIndex=0; bIndex < pointCount; bIndex++)
-			{
-				int bScore = b.score[bIndex];
-				if(bScore > maxBScore)
-				{
-					maxBScore = bScore;
-				}
-			}
+	/**
+	 * Temporary space for picking the best scores, and whether each point
+	 * is already among them (last element is a dummy entry with score 0).
+	 */
+	private int[] best = new int[BEST_SCORES_SORT_FIRST];
+	private boolean[] usedInSort;
 
-			for(int aIndex=0; aIndex < pointCount; aIndex++)
-			{
-				// Track max A score
-				int aScore = a.score[aIndex];
-				if(aScore > maxAScore)
-				{
-					maxAScore = aScore;
-				}
-				Pair aPair = availablePoints[aIndex].pair;
-				boolean wrongDirection = aPair.a != availablePoints[aIndex];
+	// Per-pair results
+	private float[] maxAScores, maxBScores, bestScores;
+	private int[] bestAIndexes, bestBIndexes;
 
-				for(int bIndex=0; bIndex < pointCount; bIndex++)
-				{
-					int bScore = b.score[bIndex];
+	/**
+	 * True if drawn pair, or other point, has already been matched.
+	 */
+	private boolean[] pairDone, otherDone;
 
-					if(bIndex==aIndex)
-					{
-						continue;
-					}
+	/**
+	 * Number of candidates given up early.
+	 */
+	private int pruned;
 
-					// Basic score is sum of individual scores
-					float score = aScore + bScore;
+	/**
+	 * Information about the drawn kanji that does not change after init.
+	 */
+	private static class Drawn
+	{
+		private int pairCount;
 
-					if(aPair != availablePoints[bIndex].pair)
-					{
-						score *= SCOREMULTI_NOT_PAIR;
-					}
-					else if(wrongDirection)
-					{
-						score *= SCOREMULTI_WRONG_DIRECTION;
-					}
+		/**
+		 * Facets in the format from {@link FuzzyComparer#getFacets(Stroke[])},
+		 * unpacked to int.
+		 */
+		private int[] facets;
 
-					scores[aIndex][bIndex] = score;
-				}
+		private Drawn(KanjiInfo info)
+		{
+			pairCount = info.getStrokeCount();
+			byte[] packed = info.getColumns().facets;
+			facets = new int[pairCount * StrokeBucket.FACETS_PER_STROKE];
+			for(int i=0; i<facets.length; i++)
+			{
+				facets[i] = packed[i] & 0xff;
 			}
-
-			bestScore = -1f;
 		}
+	}
+
+	/**
+	 * Construct comparer for a particular drawn kanji.
+	 * @param drawn Drawn kanji
+	 */
+	@Override
+	public void init(KanjiInfo drawn)
+	{
+		this.drawn = new Drawn(drawn);
+		initScratch((drawn.getStrokeCount() + EXTRA_STROKES) * 2);
+	}
+
+	@Override
+	public KanjiComparer newWorker()
+	{
+		FuzzyComparer worker = new FuzzyComparer();
+		worker.drawn = drawn;
+		worker.initScratch(capacity);
+		return worker;
+	}
+
+	/**
+	 * Allocates the scratch arrays.
+	 * @param capacity Maximum number of points in other kanji
+	 */
+	private void initScratch(int capacity)
+	{
+		this.capacity = capacity;
+		int pairs = drawn.pairCount, points = pairs * 2;
+		pointScores = new int[points * capacity];
+		// Sorted lists can briefly include dummy entries as well as all points
+		sortedStride = capacity + BEST_SCORES_SORT_FIRST;
+		sortedIndexes = new int[points * sortedStride];
+		sortedScores = new int[points * sortedStride];
+		usedInSort = new boolean[capacity + 1];
+		maxAScores = new float[pairs];
+		maxBScores = new float[pairs];
+		bestScores = new float[pairs];
+		bestAIndexes = new int[pairs];
+		bestBIndexes = new int[pairs];
+		pairDone = new boolean[pairs];
+		otherDone = new boolean[capacity];
+	}
 
-		private void scoreAvailable(Point[] otherPoints, float mustBeOver)
+	/**
+	 * Counts the facets used for fuzzy matching. These depend only on a
+	 * kanji's own strokes, so {@link StrokeBucket} works them out once when the
+	 * kanji is added.
+	 * <p>
+	 * Each stroke has two points (start, then end). For each point there are
+	 * six facets: the number of other points that are less than, more than,
+	 * or similar to it in X, and the same for Y. Counts are limited to 255,
+	 * which only matters for drawings with more than 128 strokes.
+	 * @param strokes Strokes
+	 * @return Packed facets (six bytes per point, twelve per stroke)
+	 */
+	static byte[] getFacets(Stroke[] strokes)
+	{
+		int points = strokes.length * 2;
+		int[] x = new int[points], y = new int[points];
+		for(int i=0; i<strokes.length; i++)
 		{
-			// If it hasn't changed since last time, do nothing
-			if(bestScore > 0)
-			{
-				return;
-			}
-			// If we can't possibly achieve a better score than the current best,
-			// return
-			if(maxAScore + maxBScore < mustBeOver)
-			{
-				return;
-			}
+			x[i * 2] = scale(strokes[i].getStartX());
+			y[i * 2] = scale(strokes[i].getStartY());
+			x[i * 2 + 1] = scale(strokes[i].getEndX());
+			y[i * 2 + 1] = scale(strokes[i].getEndY());
+		}
 
-			// Consider all combinations of point A and B
-			bestScore = -1f;
-//			int loopCount = 0;
-			for(int aIndex=0; aIndex < pointCount; aIndex++)
+		byte[] facets = new byte[points * FACETS];
+		int[] counts = new int[FACETS];
+		for(int point=0; point<points; point++)
+		{
+			Arrays.fill(counts, 0);
+			for(int other=0; other<points; other++)
 			{
-				ScoreAndIndex aScore = a.sortedScore[aIndex];
-				int aPointIndex = aScore.index;
-				if(aScore.score + maxBScore < mustBeOver
-					|| otherPoints[aPointIndex] == null)
+				if(other == point)
 				{
-					// If A score + any B score can't beat min score, then continue, or
-					// also if point is done
 					continue;
 				}
-
-				float[] correspondingScores = scores[aPointIndex];
-				for(int bIndex=0; bIndex < pointCount; bIndex++)
+				if(x[other] < x[point] - SIMILAR_RANGE)
 				{
-					ScoreAndIndex bScore = b.sortedScore[bIndex];
-					int bPointIndex = bScore.index;
-					if(bPointIndex == aPointIndex || otherPoints[bPointIndex]==null)
-					{
-						continue;
-					}
-
-//					loopCount++;
-
-					// Basic score is sum of individual scores
-					float score = correspondingScores[bPointIndex];
+					counts[0]++;
+				}
+				else if(x[other] > x[point] + SIMILAR_RANGE)
+				{
+					counts[1]++;
+				}
+				else
+				{
+					counts[2]++;
+				}
 
-					// Is this best?
-					if(score > bestScore)
-					{
-						bestScore = score;
-						bestAIndex = aPointIndex;
-						bestBIndex = bPointIndex;
-
-						if(bestScore > mustBeOver)
-						{
-							mustBeOver = bestScore;
-						}
-					}
+				if(y[other] < y[point] - SIMILAR_RANGE)
+				{
+					counts[3]++;
+				}
+				else if(y[other] > y[point] + SIMILAR_RANGE)
+				{
+					counts[4]++;
+				}
+				else
+				{
+					counts[5]++;
 				}
 			}
-
-//			System.err.println(loopCount + "/" + (pointCount * pointCount));
-
+			for(int facet=0; facet<FACETS; facet++)
+			{
+				facets[point * FACETS + facet] = (byte)Math.min(255, counts[facet]);
+			}
 		}
+		return facets;
 	}
 
-	private static class ScoreAndIndex implements Comparable<ScoreAndIndex>
+	private static int scale(int position)
 	{
-		int score, index;
-		boolean used;
+		return (int) ((position + 0.5f) * 255);
+	}
 
-		@Override
-		public int compareTo(ScoreAndIndex o)
-		{
-			if(o.score > this.score)
-			{
-				return 1;
-			}
-			else if(o.score < this.score)
-			{
-				return -1;
-			}
-			else
-			{
-				return index - o.index;
-			}
-		}
+	/**
+	 * Compares against the given other kanji.
+	 * @param other Other kanji
+	 * @return Score in range 0 to 100
+	 */
+	@Override
+	public float getMatchScore(KanjiInfo other)
+	{
+		return getMatchScore(other.getColumns(), 0);
+	}
 
-		@Override
-		public String toString()
-		{
-			return Integer.toString(score);
-		}
+	@Override
+	public float getMatchScore(StrokeBucket bucket, int index)
+	{
+		return getMatchScore(bucket, index, Float.NEGATIVE_INFINITY);
 	}
 
-	private static class Point
+	@Override
+	public float getMatchScore(StrokeBucket bucket, int index, float minScore)
 	{
-		private final static int SIMILAR_RANGE = 13;
+		// Get data from match kanji (facets were already counted when added)
+		byte[] otherFacets = bucket.facets;
+		int otherFacetsOffset =
+			index * bucket.strokeCount * StrokeBucket.FACETS_PER_STROKE;
+		int otherPoints = bucket.strokeCount * 2;
+		if(otherPoints > capacity)
+		{
+			// Only happens if called directly with a much larger kanji
+			initScratch(otherPoints);
+		}
 
-		private int x, y;
-		private int xLess, xMore, xSimilar, yLess, yMore, ySimilar;
+		int drawnPairs = drawn.pairCount, drawnPoints = drawnPairs * 2;
 
-		private Pair pair;
+		// Max difference is (less than) the highest number of strokes *
+		// 6 facets.
+		int maxScore = Math.max(drawnPoints, otherPoints) * FACETS;
 
-		private int[] score;
-		private ScoreAndIndex[] sortedScore, preSortedScore;
-		private int[] best = new int[BEST_SCORES_SORT_FIRST];
+		// Score all points against all points; O(points^2)
+		for(int point=0; point<drawnPoints; point++)
+		{
+			scorePoint(point, otherFacets, otherFacetsOffset, otherPoints, maxScore);
+		}
 
-		private Point(int x, int y)
+		// Score all pairs. Each pair can score no more than its best A and B
+		// point scores added together
+		float pairBoundTotal = 0f, pairBoundMax = 0f;
+		for(int pair=0; pair<drawnPairs; pair++)
 		{
-			this.x = (int) ((x + 0.5f) * 255);
-			this.y = (int) ((y + 0.5f) * 255);
+			scorePair(pair, otherPoints);
+			float pairBound = maxAScores[pair] + maxBScores[pair];
+			pairBoundTotal += pairBound;
+			pairBoundMax = Math.max(pairBoundMax, pairBound);
 		}
 
-		private void setPair(Pair pair)
+		// Each drawn pair is matched with two other points until one runs out.
+		// Stop if the best scores for that many pairs won't do
+		int matchedPairs = Math.min(drawnPairs, otherPoints / 2);
+		float scale = 100f / (2 * maxScore * matchedPairs);
+		float minTotal = (minScore - BOUND_SLACK) / scale;
+		float bound = Math.min(pairBoundTotal, matchedPairs * pairBoundMax);
+		if(bound < minTotal)
 		{
-			this.pair = pair;
+			pruned++;
+			return bound * scale;
 		}
 
-		private void count(Point[] allPoints)
+		// Nothing matched yet
+		Arrays.fill(pairDone, 0, drawnPairs, false);
+		Arrays.fill(otherDone, 0, otherPoints, false);
+
+		// How many remaining things to match?
+		int pairsLeft = drawnPairs;
+		int pointsLeft = otherPoints;
+		float totalScore = 0f;
+
+		while(pointsLeft > 0 && pairsLeft > 0)
 		{
-			for(Point point : allPoints)
+			// Score all pairs to find best match
+			int bestPair = -1;
+			float bestPairScore = -1f;
+			for(int pair=0; pair<drawnPairs; pair++)
 			{
-				if(point != this)
+				if(pairDone[pair])
 				{
-					if(point.x < x - SIMILAR_RANGE)
-					{
-						xLess++;
-					}
-					else if(point.x > x + SIMILAR_RANGE)
-					{
-						xMore++;
-					}
-					else
-					{
-						xSimilar++;
-					}
-
-					if(point.y < y - SIMILAR_RANGE)
-					{
-						yLess++;
-					}
-					else if(point.y > y + SIMILAR_RANGE)
-					{
-						yMore++;
-					}
-					else
-					{
-						ySimilar++;
-					}
+					continue;
+				}
+				scoreAvailable(pair, otherPoints, bestPairScore);
+				if(bestScores[pair] > bestPairScore)
+				{
+					bestPair = pair;
+					bestPairScore = bestScores[pair];
 				}
 			}
-		}
 
-		private void initDrawn(int maxStrokes)
-		{
-			// Initialise the array only once per drawn character
-			score = new int[maxStrokes * 2];
-			sortedScore = new ScoreAndIndex[maxStrokes * 2];
-			preSortedScore = new ScoreAndIndex[maxStrokes * 2 + 1];
-			for(int i=0; i<maxStrokes * 2; i++)
+			// Eat that pair and its points, and add to total score
+			pairDone[bestPair] = true;
+			otherDone[bestAIndexes[bestPair]] = true;
+			otherDone[bestBIndexes[bestPair]] = true;
+			totalScore += bestPairScore;
+			pairsLeft--;
+			pointsLeft-=2;
+
+			// Later pairs never score more than this one, so stop if that won't do
+			bound = totalScore
+				+ (matchedPairs - (drawnPairs - pairsLeft)) * bestPairScore;
+			if(bound < minTotal)
 			{
-				preSortedScore[i] = new ScoreAndIndex();
+				pruned++;
+				return bound * scale;
 			}
-			// Dummy score to use for 'best' marker
-			preSortedScore[maxStrokes * 2] = new ScoreAndIndex();
 		}
 
+		// Scale score (it is now up to 2 * max * number of pairs matched)
+		totalScore /= 2 * maxScore * (drawnPairs - pairsLeft);
 
-		private void score(Point[] otherPoints, int maxScore)
-		{
-			for(int i=0; i<BEST_SCORES_SORT_FIRST; i++)
-			{
-				best[i] = preSortedScore.length-1;
-			}
-			int worstBestScore = 0;
-			for(int i=0; i<otherPoints.length; i++)
-			{
-				Point other = otherPoints[i];
-
-				// Work out difference between each element of these points
-				int difference = Math.abs(xLess - other.xLess)
-					+ Math.abs(xMore - other.xMore) + Math.abs(xSimilar - other.xSimilar)
-					+ Math.abs(yLess - other.yLess) + Math.abs(yMore - other.yMore)
-					+ Math.abs(ySimilar - other.ySimilar);
+		// Return as percentage
+		return totalScore * 100f;
+	}
 
-				int thisScore = maxScore - difference;
-				preSortedScore[i].index = i;
-				preSortedScore[i].score = thisScore;
-				preSortedScore[i].used = false;
-				score[i] = thisScore;
+	@Override
+	public int getPrunedCount()
+	{
+		return pruned;
+	}
 
-				if(thisScore >= worstBestScore)
+	/**
+	 * Scores a drawn point against all other points, and works out the order
+	 * in which other points will be considered (best few first).
+	 * @param point Drawn point index
+	 * @param otherFacets Array containing facets of other kanji
+	 * @param otherFacetsOffset Offset of other kanji within facets array
+	 * @param otherPoints Number of points in other kanji
+	 * @param maxScore Maximum score
+	 */
+	private void scorePoint(int point, byte[] otherFacets,
+		int otherFacetsOffset, int otherPoints, int maxScore)
+	{
+		int[] facets = drawn.facets;
+		int facetOffset = point * FACETS;
+		int xLess = facets[facetOffset], xMore = facets[facetOffset + 1],
+			xSimilar = facets[facetOffset + 2], yLess = facets[facetOffset + 3],
+			yMore = facets[facetOffset + 4], ySimilar = facets[facetOffset + 5];
+		int scoreOffset = point * capacity;
+
+		// Dummy entry (score 0, index 0) marks best scores not yet filled
+		int dummy = capacity;
+		for(int i=0; i<BEST_SCORES_SORT_FIRST; i++)
+		{
+			best[i] = dummy;
+		}
+		int worstBestScore = 0;
+		for(int i=0, otherOffset=otherFacetsOffset; i<otherPoints; i++, otherOffset+=FACETS)
+		{
+			// Work out difference between each element of these points
+			int difference = Math.abs(xLess - (otherFacets[otherOffset] & 0xff))
+				+ Math.abs(xMore - (otherFacets[otherOffset + 1] & 0xff))
+				+ Math.abs(xSimilar - (otherFacets[otherOffset + 2] & 0xff))
+				+ Math.abs(yLess - (otherFacets[otherOffset + 3] & 0xff))
+				+ Math.abs(yMore - (otherFacets[otherOffset + 4] & 0xff))
+				+ Math.abs(ySimilar - (otherFacets[otherOffset + 5] & 0xff));
+
+			int thisScore = maxScore - difference;
+			pointScores[scoreOffset + i] = thisScore;
+			usedInSort[i] = false;
+
+			if(thisScore >= worstBestScore)
+			{
+				int bestIndex=0;
+				for(; bestIndex<BEST_SCORES_SORT_FIRST-1; bestIndex++)
 				{
-					int bestIndex=0;
-					for(; bestIndex<BEST_SCORES_SORT_FIRST-1; bestIndex++)
-					{
-						if(thisScore > preSortedScore[best[bestIndex]].score)
-						{
-							break;
-						}
-					}
-					for(int moveIndex=BEST_SCORES_SORT_FIRST-1; moveIndex>bestIndex; moveIndex--)
+					int bestScore = best[bestIndex] == dummy
+						? 0 : pointScores[scoreOffset + best[bestIndex]];
+					if(thisScore > bestScore)
 					{
-						best[moveIndex] = best[moveIndex-1];
-					}
-					best[bestIndex] = i;
-					if(bestIndex == BEST_SCORES_SORT_FIRST-1)
-					{
-						worstBestScore = thisScore;
+						break;
 					}
 				}
+				for(int moveIndex=BEST_SCORES_SORT_FIRST-1; moveIndex>bestIndex; moveIndex--)
+				{
+					best[moveIndex] = best[moveIndex-1];
+				}
+				best[bestIndex] = i;
+				if(bestIndex == BEST_SCORES_SORT_FIRST-1)
+				{
+					worstBestScore = thisScore;
+				}
 			}
+		}
 
-			for(int i=0; i<BEST_SCORES_SORT_FIRST; i++)
+		int sortedOffset = point * sortedStride;
+		for(int i=0; i<BEST_SCORES_SORT_FIRST; i++)
+		{
+			if(best[i] == dummy)
 			{
-				sortedScore[i] = preSortedScore[best[i]];
-				preSortedScore[best[i]].used = true;
+				sortedIndexes[sortedOffset + i] = 0;
+				sortedScores[sortedOffset + i] = 0;
 			}
-
-			int index = BEST_SCORES_SORT_FIRST;
-			for(int i=0; i<otherPoints.length; i++)
+			else
 			{
-				if(!preSortedScore[i].used)
-				{
-					sortedScore[index++] = preSortedScore[i];
-				}
+				sortedIndexes[sortedOffset + i] = best[i];
+				sortedScores[sortedOffset + i] = pointScores[scoreOffset + best[i]];
+				usedInSort[best[i]] = true;
 			}
-//			System.err.println(Arrays.toString(sortedScore));
-
-//			for(int i=otherPoints.length; i<sortedScore.length; i++)
-//			{
-//				sortedScore[i] = new ScoreAndIndex(0, i);
-//			}
-//
-//			// Sort score into order
-//			Arrays.sort(sortedScore);
 		}
-	}
 
-	/**
-	 * Construct comparer for a particular drawn kanji.
-	 * @param drawn Drawn kanji
-	 */
-	@Override
-	public void init(KanjiInfo drawn)
-	{
-		// Set up data about drawn pairs/points
-		drawnPairs = convertKanjiInfo(drawn);
-		drawnPoints = getPairPoints(drawnPairs);
-		for(Pair pair : drawnPairs)
+		int index = sortedOffset + BEST_SCORES_SORT_FIRST;
+		for(int i=0; i<otherPoints; i++)
 		{
-			pair.initDrawn(drawnPairs.length + 2);
+			if(!usedInSort[i])
+			{
+				sortedIndexes[index] = i;
+				sortedScores[index] = pointScores[scoreOffset + i];
+				index++;
+			}
 		}
 	}
 
-	private static Pair[] convertKanjiInfo(KanjiInfo info)
+	/**
+	 * Works out the best possible scores for each point of a drawn pair.
+	 * Scores for combinations of points are calculated when needed.
+	 * @param pair Drawn pair index
+	 * @param pointCount Number of points in other kanji
+	 */
+	private void scorePair(int pair, int pointCount)
 	{
-		Pair[] result = new Pair[info.getStrokeCount()];
-		for(int i=0; i<result.length; i++)
+		int aOffset = pair * 2 * capacity, bOffset = aOffset + capacity;
+		float maxAScore = -1, maxBScore = -1;
+		for(int index=0; index < pointCount; index++)
 		{
-			Stroke stroke = info.getStroke(i);
-			result[i] = new Pair(
-				new Point(stroke.getStartX(), stroke.getStartY()),
-				new Point(stroke.getEndX(), stroke.getEndY()));
-		}
-		for(Pair pair : result)
-		{
-			pair.a.setPair(pair);
-			pair.b.setPair(pair);
+			int aScore = pointScores[aOffset + index];
+			if(aScore > maxAScore)
+			{
+				maxAScore = aScore;
+			}
+			int bScore = pointScores[bOffset + index];
+			if(bScore > maxBScore)
+			{
+				maxBScore = bScore;
+			}
 		}
-		return result;
-	}
 
-	private static Point[] getPairPoints(Pair[] pairs)
-	{
-		Point[] result = new Point[pairs.length * 2];
-		int out = 0;
-		for(int i=0; i<pairs.length; i++)
-		{
-			result[out++] = pairs[i].a;
-			result[out++] = pairs[i].b;
-		}
-		for(Point point : result)
-		{
-			point.count(result);
-		}
-		return result;
+		maxAScores[pair] = maxAScore;
+		maxBScores[pair] = maxBScore;
+		bestScores[pair] = -1f;
 	}
 
 	/**
-	 * Compares against the given other kanji.
-	 * @param other Other kanji
-	 * @return Score in range 0 to 100
+	 * Finds the best combination of available other points for a drawn pair.
+	 * @param pair Drawn pair index
+	 * @param pointCount Number of points in other kanji
+	 * @param mustBeOver Score that must be beaten to be useful
 	 */
-	@Override
-	public float getMatchScore(KanjiInfo other)
+	private void scoreAvailable(int pair, int pointCount, float mustBeOver)
 	{
-		// Get data from match kanji
-		Pair[] otherPairs = convertKanjiInfo(other);
-		Point[] otherPoints = getPairPoints(otherPairs);
-
-		// Max difference is (less than) the highest number of strokes *
-		// 6 facets.
-		int maxScore = Math.max(drawnPoints.length, otherPoints.length) * 6;
-
-		// Score all points against all points; O(points^2)
-		for(Point point : drawnPoints)
+		// If it hasn't changed since last time, do nothing
+		if(bestScores[pair] > 0)
 		{
-			point.score(otherPoints, maxScore);
+			return;
 		}
-
-		// Score all pairs
-		for(Pair pair : drawnPairs)
+		// If we can't possibly achieve a better score than the current best,
+		// return
+		float maxBScore = maxBScores[pair];
+		if(maxAScores[pair] + maxBScore < mustBeOver)
 		{
-			pair.score(otherPoints);
+			return;
 		}
 
-		// Copy source pairs into list of remaining ones
-		Pair[] remainingPairs = new Pair[drawnPairs.length];
-		System.arraycopy(drawnPairs, 0, remainingPairs, 0, remainingPairs.length);
+		// Consider all combinations of point A and B
+		float bestScore = -1f;
+		int bestAIndex = bestAIndexes[pair], bestBIndex = bestBIndexes[pair];
+		int aSortedOffset = pair * 2 * sortedStride,
+			bSortedOffset = aSortedOffset + sortedStride;
+		int aOffset = pair * 2 * capacity, bOffset = aOffset + capacity;
+		for(int aIndex=0; aIndex < pointCount; aIndex++)
+		{
+			int aPointIndex = sortedIndexes[aSortedOffset + aIndex];
+			if(sortedScores[aSortedOffset + aIndex] + maxBScore < mustBeOver
+				|| otherDone[aPointIndex])
+			{
+				// If A score + any B score can't beat min score, then continue, or
+				// also if point is done
+				continue;
+			}
 
-		// How many remaining things to match?
-		int pairsLeft = remainingPairs.length;
-		int pointsLeft = otherPoints.length;
-		float totalScore = 0f;
+			// Other points come in pairs: start (even), end (odd)
+			int aScore = pointScores[aOffset + aPointIndex];
+			int aPair = aPointIndex >> 1;
+			boolean wrongDirection = (aPointIndex & 1) != 0;
 
-		while(pointsLeft > 0 && pairsLeft > 0)
-		{
-			// Score all pairs to find best match
-			int bestPairIndex = -1;
-			Pair bestPair = null;
-			float bestPairScore = -1f;
-			for(int i=0; i<remainingPairs.length; i++)
+			for(int bIndex=0; bIndex < pointCount; bIndex++)
 			{
-				Pair pair = remainingPairs[i];
-				if(pair == null)
+				int bPointIndex = sortedIndexes[bSortedOffset + bIndex];
+				if(bPointIndex == aPointIndex || otherDone[bPointIndex])
 				{
 					continue;
 				}
-				pair.scoreAvailable(otherPoints, bestPairScore);
-				if(pair.bestScore > bestPairScore)
+
+				// Basic score is sum of individual scores
+				float score = aScore + pointScores[bOffset + bPointIndex];
+				if(aPair != (bPointIndex >> 1))
 				{
-					bestPair = pair;
-					bestPairIndex = i;
-					bestPairScore = pair.bestScore;
+					score *= SCOREMULTI_NOT_PAIR;
+				}
+				else if(wrongDirection)
+				{
+					score *= SCOREMULTI_WRONG_DIRECTION;
 				}
-			}
 
-			// Eat that pair and its points, and add to total score
-			remainingPairs[bestPairIndex] = null;
-			int aIndex = bestPair.bestAIndex, bIndex = bestPair.bestBIndex;
-			otherPoints[aIndex] = null;
-			otherPoints[bIndex] = null;
-			totalScore += bestPairScore;
-			pairsLeft--;
-			pointsLeft-=2;
-		}
+				// Is this best?
+				if(score > bestScore)
+				{
+					bestScore = score;
+					bestAIndex = aPointIndex;
+					bestBIndex = bPointIndex;
 
-		// Scale score (it is now up to 2 * max * number of pairs matched)
-		totalScore /= 2 * maxScore * (drawnPairs.length - pairsLeft);
+					if(bestScore > mustBeOver)
+					{
+						mustBeOver = bestScore;
+					}
+				}
+			}
+		}
 
-		// Return as percentage
-		return totalScore * 100f;
+		bestScores[pair] = bestScore;
+		bestAIndexes[pair] = bestAIndex;
+		bestBIndexes[pair] = bestBIndex;
 	}
 }
@@ -31,16 +31,35 @@ public class InputStroke
 	private float startX, startY, endX, endY;
 
 	/**
-	 * Class to make it easier to read path data.
+	 * Class to make it easier to read path data. Reads through the path with a
+	 * cursor, without copying any part of it.
 	 */
-	private class PathData
+	private static class PathData
 	{
 		private final static int EOL = -1, NUMBER = -2;
 
-		String remaining;
-		private PathData(String path)
+		/**
+		 * Powers of ten that can be represented exactly as doubles.
+		 */
+		private final static double[] POWERS_OF_TEN =
+		{
+			1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12,
+			1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+		};
+
+		/**
+		 * Largest mantissa that can be represented exactly as a double.
+		 */
+		private final static long MAX_EXACT = 1L << 53;
+
+		private final CharSequence path;
+		private final int length;
+		private int pos;
+
+		private PathData(CharSequence path)
 		{
-			this.remaining = path;
+			this.path = path;
+			this.length = path.length();
 		}
 
 		/**
@@ -49,21 +68,20 @@ public class InputStroke
 		 */
 		private int readLetter()
 		{
-			int pos = 0;
 			while(true)
 			{
-				if(pos == remaining.length())
+				if(pos == length)
 				{
 					return EOL;
 				}
-				char letter = remaining.charAt(pos);
+				char letter = path.charAt(pos);
 				if (!Character.isWhitespace(letter))
 				{
 					if(letter == ',' || letter == '-' || letter == '+' || (letter >= '0' && letter <= '9'))
 					{
 						return NUMBER;
 					}
-					remaining = remaining.substring(pos+1);
+					pos++;
 					return letter;
 				}
 				pos++;
@@ -77,49 +95,120 @@ public class InputStroke
 		 */
 		private float readNumber()
 		{
-			int start = 0;
 			while(true)
 			{
-				if(start == remaining.length())
+				if(pos == length)
 				{
 					throw new IllegalArgumentException("Unexpected EOL before number");
 				}
-				char c = remaining.charAt(start);
+				char c = path.charAt(pos);
 				if(c != ',' && !Character.isWhitespace(c) && c != '+')
 				{
 					break;
 				}
-				start++;
+				pos++;
 			}
 
-			int end = start + 1;
-			while(true)
+			// Number is the first character plus any digits and points after it
+			int start = pos, end = pos + 1;
+			while(end < length)
 			{
-				if(end == remaining.length())
-				{
-					break;
-				}
-				char c = remaining.charAt(end);
+				char c = path.charAt(end);
 				if(c != '.' && (c < '0' || c > '9'))
 				{
 					break;
 				}
 				end++;
 			}
+			pos = end;
+
+			// Read digits into a mantissa, counting those after the point
+			boolean negative = false, point = false;
+			long mantissa = 0;
+			int digits = 0, scale = 0;
+			for(int i=start; i<end; i++)
+			{
+				char c = path.charAt(i);
+				if(c >= '0' && c <= '9')
+				{
+					if(mantissa >= MAX_EXACT / 10)
+					{
+						return parseSlowly(start, end);
+					}
+					mantissa = mantissa * 10 + (c - '0');
+					digits++;
+					if(point)
+					{
+						scale++;
+					}
+				}
+				else if(c == '.' && !point)
+				{
+					point = true;
+				}
+				else if(c == '-' && i == start)
+				{
+					negative = true;
+				}
+				else
+				{
+					throw invalidNumber(start, end);
+				}
+			}
+			if(digits == 0)
+			{
+				throw invalidNumber(start, end);
+			}
+			if(scale >= POWERS_OF_TEN.length)
+			{
+				return parseSlowly(start, end);
+			}
 
-			String number = remaining.substring(start, end);
-			remaining = remaining.substring(end);
+			// Mantissa and power of ten are exact, so dividing rounds correctly to
+			// double. Rounding that to float is also correct, unless it falls
+			// exactly halfway between two floats (the gap below a power of two is
+			// half the size).
+			double exact = mantissa / POWERS_OF_TEN[scale];
+			float result = (float)exact;
+			double difference = Math.abs(exact - result), ulp = Math.ulp(result);
+			if(difference == ulp / 2 || difference == ulp / 4)
+			{
+				return parseSlowly(start, end);
+			}
+			return negative ? -result : result;
+		}
 
+		/**
+		 * Parses a number that can't be converted exactly by
+		 * {@link #readNumber()}.
+		 * @param start Start index
+		 * @param end End index (exclusive)
+		 * @return Number
+		 * @throws IllegalArgumentException If the number is invalid
+		 */
+		private float parseSlowly(int start, int end)
+			throws IllegalArgumentException
+		{
 			try
 			{
-				return Float.parseFloat(number);
+				return Float.parseFloat(path.subSequence(start, end).toString());
 			}
 			catch(NumberFormatException e)
 			{
-				throw new IllegalArgumentException("Invalid number: " + number);
+				throw invalidNumber(start, end);
 			}
 		}
 
+		/**
+		 * @param start Start index
+		 * @param end End index (exclusive)
+		 * @return Exception to throw for an invalid number
+		 */
+		private IllegalArgumentException invalidNumber(int start, int end)
+		{
+			return new IllegalArgumentException("Invalid number: "
+				+ path.subSequence(start, end));
+		}
 	}
 
 	/**
@@ -153,7 +242,8 @@ public class InputStroke
 			int command = data.readLetter();
 			if(command == PathData.NUMBER)
 			{
-				if(lastCommand == -1)
+				// Z has no numbers, so it can't be repeated
+				if(lastCommand == -1 || lastCommand == 'z' || lastCommand == 'Z')
 				{
 					throw new IllegalArgumentException("Expecting command, not number");
 				}
@@ -269,99 +359,165 @@ public class InputStroke
 	 */
 	public static Stroke[] normalise(InputStroke[] strokes)
 	{
-		// Find range
-		float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE,
-			maxX = Float.MIN_VALUE, maxY = Float.MIN_VALUE;
+		Bounds bounds = new Bounds();
 		for(InputStroke stroke : strokes)
 		{
+			bounds.add(stroke);
+		}
+
+		// Convert all points according to range
+		Stroke[] output = new Stroke[strokes.length];
+		for(int i=0; i<strokes.length; i++)
+		{
+			output[i] = bounds.convert(strokes[i]);
+		}
+
+		return output;
+	}
+
+	/**
+	 * Range of a set of strokes, which can be built up one stroke at a time.
+	 * Used to normalise strokes.
+	 */
+	static class Bounds
+	{
+		private float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE,
+			maxX = Float.MIN_VALUE, maxY = Float.MIN_VALUE;
+
+		/**
+		 * Range used for conversion (adjusted from the min/max values), or
+		 * null if it needs working out again.
+		 */
+		private float[] range;
+
+		/**
+		 * Includes a stroke in the bounds.
+		 * @param stroke Stroke
+		 * @return True if the bounds changed, in which case any strokes
+		 *   converted previously will now give different results
+		 */
+		boolean add(InputStroke stroke)
+		{
+			boolean changed = false;
 			if(stroke.startX < minX)
 			{
 				minX = stroke.startX;
+				changed = true;
 			}
 			if(stroke.startX > maxX)
 			{
 				maxX = stroke.startX;
+				changed = true;
 			}
 			if(stroke.startY < minY)
 			{
 				minY = stroke.startY;
+				changed = true;
 			}
 			if(stroke.startY > maxY)
 			{
 				maxY = stroke.startY;
+				changed = true;
 			}
 
 			if(stroke.endX < minX)
 			{
 				minX = stroke.endX;
+				changed = true;
 			}
 			if(stroke.endX > maxX)
 			{
 				maxX = stroke.endX;
+				changed = true;
 			}
 			if(stroke.endY < minY)
 			{
 				minY = stroke.endY;
+				changed = true;
 			}
 			if(stroke.endY > maxY)
 			{
 				maxY = stroke.endY;
+				changed = true;
 			}
+
+			if(changed)
+			{
+				range = null;
+			}
+			return changed;
 		}
 
-		// Adjust max/min to avoid divide by zero
-		if(abs(minX - maxX) < 0.0000000001f)
+		/**
+		 * Converts a stroke to the 0-1 range within these bounds.
+		 * @param stroke Stroke (which should already have been added)
+		 * @return Normalised stroke
+		 */
+		Stroke convert(InputStroke stroke)
 		{
-			// Adjust by 1% of height
-			float adjust = abs(minY - maxY) / 100f;
-			if(adjust < 0.0000000001f)
+			if(range == null)
 			{
-				adjust = 0.1f;
+				range = getRange();
 			}
-			minX -= adjust;
-			maxX += adjust;
+			float minX = range[0], minY = range[1], maxX = range[2], maxY = range[3];
+			return new Stroke(
+				(stroke.startX - minX) / (maxX - minX),
+				(stroke.startY - minY) / (maxY - minY),
+				(stroke.endX - minX) / (maxX - minX),
+				(stroke.endY - minY) / (maxY - minY));
 		}
-		if(abs(minY - maxY) < 0.0000000001f)
+
+		/**
+		 * @return Range to use for conversion: min X, min Y, max X, max Y
+		 */
+		private float[] getRange()
 		{
-			// Adjust by 1% of width
-			float adjust = abs(minX - maxX) / 100f;
-			if(adjust < 0.0000000001f)
+			float minX = this.minX, minY = this.minY, maxX = this.maxX,
+				maxY = this.maxY;
+
+			// Adjust max/min to avoid divide by zero
+			if(abs(minX - maxX) < 0.0000000001f)
 			{
-				adjust = 0.1f;
+				// Adjust by 1% of height
+				float adjust = abs(minY - maxY) / 100f;
+				if(adjust < 0.0000000001f)
+				{
+					adjust = 0.1f;
+				}
+				minX -= adjust;
+				maxX += adjust;
 			}
+			if(abs(minY - maxY) < 0.0000000001f)
+			{
+				// Adjust by 1% of width
+				float adjust = abs(minX - maxX) / 100f;
+				if(adjust < 0.0000000001f)
+				{
+					adjust = 0.1f;
+				}
 
-			minY -= adjust;
-			maxY += adjust;
-		}
+				minY -= adjust;
+				maxY += adjust;
+			}
 
-		// Now sort out a maximum scale factor, so that very long/thin kanji
-		// don't get stretched to square
-		float xRange = abs(minX - maxX), yRange = abs(minY - maxY);
-		if(xRange > 5f * yRange)
-		{
-			float adjust = (xRange - yRange) / 2;
-			minY -= adjust;
-			maxY += adjust;
-		}
-		else if(yRange > 5f * xRange)
-		{
-			float adjust = (yRange - xRange) / 2;
-			minX -= adjust;
-			maxX += adjust;
-		}
+			// Now sort out a maximum scale factor, so that very long/thin kanji
+			// don't get stretched to square
+			float xRange = abs(minX - maxX), yRange = abs(minY - maxY);
+			if(xRange > 5f * yRange)
+			{
+				float adjust = (xRange - yRange) / 2;
+				minY -= adjust;
+				maxY += adjust;
+			}
+			else if(yRange > 5f * xRange)
+			{
+				float adjust = (yRange - xRange) / 2;
+				minX -= adjust;
+				maxX += adjust;
+			}
 
-		// Convert all points according to range
-		Stroke[] output = new Stroke[strokes.length];
-		for(int i=0; i<strokes.length; i++)
-		{
-			output[i] = new Stroke(
-				(strokes[i].startX - minX) / (maxX - minX),
-				(strokes[i].startY - minY) / (maxY - minY),
-				(strokes[i].endX - minX) / (maxX - minX),
-				(strokes[i].endY - minY) / (maxY - minY));
+			return new float[] { minX, minY, maxX, maxY };
 		}
-
-		return output;
 	}
 
 	private static float abs(float value)
@@ -20,6 +20,10 @@ package com.leafdigital.kanji;
 
 /**
  * Interface for a method that can compare different kanji.
+ * <p>
+ * A comparer may keep scratch space between calls to
+ * {@link #getMatchScore(KanjiInfo)}, so it must only be used by one thread at
+ * a time.
  */
 public interface KanjiComparer
 {
@@ -72,6 +72,7 @@ public class KanjiInfo
 
 		private int out;
 		private Class<? extends KanjiComparer> c;
+		private int family = -1;
 
 		MatchAlgorithm(int out, Class<? extends KanjiComparer> c)
 		{
@@ -88,6 +89,27 @@ public class KanjiInfo
 			return out;
 		}
 
+		/**
+		 * Algorithms in the same family use the same comparer, so they give the
+		 * same score for a pair of kanji and can share prepared comparers.
+		 * @return Ordinal of first algorithm that uses the same comparer
+		 */
+		int getFamily()
+		{
+			if(family == -1)
+			{
+				for(MatchAlgorithm other : values())
+				{
+					if(other.c == c)
+					{
+						family = other.ordinal();
+						break;
+					}
+				}
+			}
+			return family;
+		}
+
 		/**
 		 * Constructs a new comparer object with the given drawn kanji
 		 * @param drawn Drawn kanji
@@ -119,7 +141,62 @@ public class KanjiInfo
 	private Direction[] strokeDirections, moveDirections;
 	private Location[] strokeStarts, strokeEnds;
 
-	private HashMap<MatchAlgorithm, KanjiComparer> comparers;
+	/**
+	 * Single-kanji bucket used when comparing directly against this kanji,
+	 * created when first needed.
+	 */
+	private volatile StrokeBucket columns;
+
+	/**
+	 * Comparers for each family of match algorithms (indexed by
+	 * {@link MatchAlgorithm#getFamily()}), created when first needed.
+	 */
+	private ComparerPool[] comparers;
+
+	/**
+	 * Pool of comparers for one algorithm. Each one is used by only one thread
+	 * at a time; built-in comparers in the pool share the same prepared data.
+	 */
+	private class ComparerPool
+	{
+		private final MatchAlgorithm algo;
+		private final KanjiComparer prepared;
+		private KanjiComparer[] idle;
+		private int idleCount;
+
+		private ComparerPool(MatchAlgorithm algo)
+		{
+			this.algo = algo;
+			prepared = algo.newComparer(KanjiInfo.this);
+			idle = new KanjiComparer[] { prepared };
+			idleCount = 1;
+		}
+
+		private KanjiComparer take()
+		{
+			if(idleCount == 0)
+			{
+				// Share prepared data if possible, otherwise start from scratch
+				if(prepared instanceof BucketComparer)
+				{
+					return ((BucketComparer)prepared).newWorker();
+				}
+				return algo.newComparer(KanjiInfo.this);
+			}
+			return idle[--idleCount];
+		}
+
+		private void release(KanjiComparer comparer)
+		{
+			if(idleCount == idle.length)
+			{
+				KanjiComparer[] newIdle = new KanjiComparer[idle.length * 2];
+				System.arraycopy(idle, 0, newIdle, 0, idle.length);
+				idle = newIdle;
+			}
+			idle[idleCount++] = comparer;
+		}
+	}
 
 	/**
 	 * @return Stroke starts array
@@ -209,6 +286,18 @@ public class KanjiInfo
 		findDirections();
 	}
 
+	/**
+	 * @param kanji Kanji character (should be a single character, but may be
+	 *   a UTF-16 surrogate pair)
+	 * @param strokes Strokes (already normalised)
+	 */
+	KanjiInfo(String kanji, Stroke[] strokes)
+	{
+		this.kanji = kanji;
+		this.strokes = strokes;
+		findDirections();
+	}
+
 	/**
 	 * Converts a two-digit, lowercase hex string to an integer. (This is a lot
 	 * faster than doing a substring and Integer.parseInt; I profiled it and
@@ -408,6 +497,24 @@ public class KanjiInfo
 		return strokes[index];
 	}
 
+	/**
+	 * @return Bucket containing only this kanji, used by comparers when
+	 *   scoring it
+	 * @throws IllegalStateException If not finished
+	 */
+	StrokeBucket getColumns() throws IllegalStateException
+	{
+		checkFinished();
+		// Buckets are immutable, so if two threads race, either result is fine
+		StrokeBucket result = columns;
+		if(result == null)
+		{
+			result = StrokeBucket.single(this);
+			columns = result;
+		}
+		return result;
+	}
+
 	/**
 	 * Obtains all the directions (stroke and move).
 	 * @return All the direction arrows
@@ -493,22 +600,47 @@ public class KanjiInfo
 	public float getMatchScore(KanjiInfo other, MatchAlgorithm algo)
 		throws IllegalArgumentException
 	{
-		KanjiComparer comparer;
-		synchronized(this)
+		KanjiComparer comparer = takeComparer(algo);
+		try
 		{
-			if(comparers == null)
-			{
-				comparers = new HashMap<MatchAlgorithm, KanjiComparer>();
-			}
+			return comparer.getMatchScore(other);
+		}
+		finally
+		{
+			releaseComparer(algo, comparer);
+		}
+	}
 
-			comparer = comparers.get(algo);
-			if(comparer == null)
-			{
-				comparer = algo.newComparer(this);
-				comparers.put(algo, comparer);
-			}
+	/**
+	 * Obtains a comparer for this (drawn) kanji. The comparer may only be used
+	 * by the calling thread, and should be returned with
+	 * {@link #releaseComparer(MatchAlgorithm, KanjiComparer)} when finished so
+	 * that it can be reused.
+	 * @param algo Match algorithm
+	 * @return Comparer, already inited
+	 */
+	synchronized KanjiComparer takeComparer(MatchAlgorithm algo)
+	{
+		if(comparers == null)
+		{
+			comparers = new ComparerPool[MatchAlgorithm.values().length];
+		}
+		ComparerPool pool = comparers[algo.getFamily()];
+		if(pool == null)
+		{
+			pool = new ComparerPool(algo);
+			comparers[algo.getFamily()] = pool;
 		}
+		return pool.take();
+	}
 
-		return comparer.getMatchScore(other);
+	/**
+	 * Returns a comparer obtained from {@link #takeComparer(MatchAlgorithm)}.
+	 * @param algo Match algorithm
+	 * @param comparer Comparer, which must not be used afterwards
+	 */
+	synchronized void releaseComparer(MatchAlgorithm algo, KanjiComparer comparer)
+	{
+		comparers[algo.getFamily()].release(comparer);
 	}
 }
@@ -19,7 +19,10 @@ Copyright 2011 Samuel Marshall.
 package com.leafdigital.kanji;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.*;
 
 import javax.xml.parsers.*;
 
@@ -29,11 +32,57 @@ import org.xml.sax.helpers.DefaultHandler;
 /**
  * Stores list of all {@link KanjiInfo} objects loaded, organised by
  * stroke count.
+ * <p>
+ * All methods are thread-safe. Only {@link #add(KanjiInfo)} locks; searches
+ * and other reads work on whichever version of the list was current when
+ * they started.
  */
 public class KanjiList
 {
-	private SortedMap<Integer, List<KanjiInfo>> kanji =
-		new TreeMap<Integer, List<KanjiInfo>>();
+	/**
+	 * Parallel searches don't split the candidates into chunks smaller than
+	 * this.
+	 */
+	private final static int MIN_PARALLEL_CHUNK = 32;
+
+	/**
+	 * Searches check for cancellation each time they have scored this many
+	 * candidates.
+	 */
+	private final static int CANCEL_CHECK_INTERVAL = 256;
+
+	/**
+	 * Number of candidates scored at once by a {@link BatchComparer}.
+	 */
+	private final static int BATCH_SIZE = 256;
+
+	/**
+	 * First four bytes of binary format file ('KJL' then format version).
+	 */
+	private final static int BINARY_MAGIC = 0x4b4a4c01;
+
+	/**
+	 * Kanji indexed by stroke count (null if there are none with that count).
+	 * Neither this array nor the buckets in it are ever changed; adding a
+	 * kanji publishes a new array, so readers don't need to lock.
+	 */
+	private volatile StrokeBucket[] buckets = new StrokeBucket[0];
+
+	/**
+	 * Version number, increased before and after each change to the list (so
+	 * it is odd while a change is in progress).
+	 */
+	private volatile int version;
+
+	/**
+	 * Index from code point to kanji, used by {@link #find(String)}.
+	 */
+	private final CodePointIndex index = new CodePointIndex();
+
+	/**
+	 * Receives measurements from all lists, or null if none.
+	 */
+	private static volatile SearchMetrics metrics;
 
 	/**
 	 * Interface that can be used to receive progress information about search.
@@ -48,6 +97,37 @@ public class KanjiList
 		public void progress(int done, int max);
 	}
 
+	/**
+	 * Interface that can be used to cancel a search before it finishes.
+	 */
+	public interface Cancellation
+	{
+		/**
+		 * Called regularly during a search. This should be cheap, for example
+		 * reading a volatile field.
+		 * @return True if the search should stop
+		 */
+		public boolean isCancelled();
+	}
+
+	/**
+	 * Sets the metrics implementation that receives measurements from all
+	 * lists. When none is set (the default), nothing is measured.
+	 * @param metrics Metrics implementation, or null to stop measuring
+	 */
+	public static void setMetrics(SearchMetrics metrics)
+	{
+		KanjiList.metrics = metrics;
+	}
+
+	/**
+	 * @return Metrics implementation, or null if none
+	 */
+	public static SearchMetrics getMetrics()
+	{
+		return metrics;
+	}
+
 	/**
 	 * Default constructor (blank list).
 	 */
@@ -110,6 +190,8 @@ public class KanjiList
 	 */
 	public KanjiList(InputStream in) throws IOException
 	{
+		long startTime = System.nanoTime();
+
 		// Parse data
 		SAXParser parser;
 		try
@@ -130,36 +212,98 @@ public class KanjiList
 			x.initCause(e);
 			throw x;
 		}
+		reportLoad(startTime);
+	}
+
+	/**
+	 * Reports that this list has been loaded, if measuring.
+	 * @param startTime Time loading started (from System.nanoTime)
+	 */
+	private void reportLoad(long startTime)
+	{
+		SearchMetrics metrics = getMetrics();
+		if(metrics != null)
+		{
+			int total = 0;
+			for(StrokeBucket bucket : buckets)
+			{
+				total += bucket == null ? 0 : bucket.size;
+			}
+			metrics.listLoaded(total, System.nanoTime() - startTime);
+		}
 	}
 
 	/**
-	 * Adds a kanji to the list.
+	 * Adds a kanji to the list. Searches that are already running will not
+	 * include it.
 	 * @param info Kanji to add
 	 */
 	public synchronized void add(KanjiInfo info)
 	{
+		// Copy the (small) bucket array and replace the changed bucket
+		StrokeBucket[] current = buckets;
 		int count = info.getStrokeCount();
-		List<KanjiInfo> list = kanji.get(count);
-		if(list == null)
+		StrokeBucket[] newBuckets =
+			new StrokeBucket[Math.max(current.length, count + 1)];
+		System.arraycopy(current, 0, newBuckets, 0, current.length);
+		StrokeBucket bucket = newBuckets[count];
+		if(bucket == null)
 		{
-			list = new LinkedList<KanjiInfo>();
-			kanji.put(count, list);
+			bucket = new StrokeBucket(count);
 		}
-		list.add(info);
+		newBuckets[count] = bucket.append(info);
+		version++;
+		index.put(info.getKanji().codePointAt(0), info);
+		buckets = newBuckets;
+		version++;
+	}
+
+	/**
+	 * Gets the version number of the list. If a search happens between two
+	 * calls that return the same even number, the list did not change during
+	 * it. The value is odd while a kanji is being added.
+	 * @return Version number
+	 */
+	int getVersion()
+	{
+		return version;
 	}
 
 	/**
 	 * @param strokeCount Stroke count
 	 * @return All kanji with that stroke count
 	 */
-	public synchronized KanjiInfo[] getKanji(int strokeCount)
+	public KanjiInfo[] getKanji(int strokeCount)
 	{
-		List<KanjiInfo> list = kanji.get(strokeCount);
-		if(list == null)
+		StrokeBucket bucket = getBucket(buckets, strokeCount);
+		if(bucket == null)
 		{
 			return new KanjiInfo[0];
 		}
-		return list.toArray(new KanjiInfo[list.size()]);
+		return bucket.getKanji();
+	}
+
+	/**
+	 * @return Current buckets, indexed by stroke count (null if there are
+	 *   none with that count); must not be modified
+	 */
+	StrokeBucket[] getBuckets()
+	{
+		return buckets;
+	}
+
+	/**
+	 * @param all Bucket array
+	 * @param strokeCount Stroke count
+	 * @return Bucket for that stroke count, or null if none
+	 */
+	private static StrokeBucket getBucket(StrokeBucket[] all, int strokeCount)
+	{
+		if(strokeCount < 0 || strokeCount >= all.length)
+		{
+			return null;
+		}
+		return all[strokeCount];
 	}
 
 	/**
@@ -167,19 +311,34 @@ public class KanjiList
 	 * @return Info for that kanji
 	 * @throws IllegalArgumentException If kanji does not exist in list
 	 */
-	public synchronized KanjiInfo find(String search)
+	public KanjiInfo find(String search) throws IllegalArgumentException
 	{
-		for(List<KanjiInfo> list : kanji.values())
+		KanjiInfo info = lookup(search);
+		if(info == null)
 		{
-			for(KanjiInfo info : list)
-			{
-				if(info.getKanji().equals(search))
-				{
-					return info;
-				}
-			}
+			throw new IllegalArgumentException("Kanji '" + search + "' not found");
 		}
-		throw new IllegalArgumentException("Kanji '" + search + "' not found");
+		return info;
+	}
+
+	/**
+	 * Finds a kanji, returning null if it isn't in the list. This takes
+	 * constant time and does not lock the list.
+	 * @param search Kanji to find
+	 * @return Info for that kanji, or null if it does not exist in list
+	 */
+	public KanjiInfo lookup(String search)
+	{
+		if(search.length() == 0)
+		{
+			return null;
+		}
+		KanjiInfo info = index.get(search.codePointAt(0));
+		if(info == null || !info.getKanji().equals(search))
+		{
+			return null;
+		}
+		return info;
 	}
 
 	/**
@@ -194,71 +353,800 @@ public class KanjiList
 		KanjiInfo.MatchAlgorithm algo, Progress progress)
 		throws IllegalArgumentException
 	{
-		TreeSet<KanjiMatch> matches = new TreeSet<KanjiMatch>();
+		return getTopMatches(compare, algo, Integer.MAX_VALUE, progress);
+	}
 
-		List<KanjiInfo> list = new LinkedList<KanjiInfo>();
-		if(compare.getStrokeCount() > 0)
+	/**
+	 * Searches for closest matches, returning at most a given number of
+	 * results. This is cheaper than obtaining all matches because only the
+	 * best <code>max</code> candidates are kept during the search.
+	 * @param compare Kanji to compare
+	 * @param algo Match algorithm to use
+	 * @param max Maximum number of results to return
+	 * @param progress Progress reporter (null if not needed)
+	 * @return Top matches above search threshold (no more than max)
+	 * @throws IllegalArgumentException If match algorithm not set, or max
+	 *   is less than 1
+	 */
+	public KanjiMatch[] getTopMatches(KanjiInfo compare,
+		KanjiInfo.MatchAlgorithm algo, int max, Progress progress)
+		throws IllegalArgumentException
+	{
+		return getTopMatches(compare, algo, max, progress, null);
+	}
+
+	/**
+	 * Searches for closest matches, returning at most a given number of
+	 * results, and stopping early if cancelled.
+	 * @param compare Kanji to compare
+	 * @param algo Match algorithm to use
+	 * @param max Maximum number of results to return
+	 * @param progress Progress reporter (null if not needed)
+	 * @param cancel Cancellation token, checked every few hundred candidates
+	 *   (null if not needed)
+	 * @return Top matches above search threshold (no more than max)
+	 * @throws IllegalArgumentException If match algorithm not set, or max
+	 *   is less than 1
+	 * @throws CancellationException If the search was cancelled
+	 */
+	public KanjiMatch[] getTopMatches(KanjiInfo compare,
+		KanjiInfo.MatchAlgorithm algo, int max, Progress progress,
+		Cancellation cancel) throws IllegalArgumentException, CancellationException
+	{
+		if(max < 1)
+		{
+			throw new IllegalArgumentException("Invalid max results: " + max);
+		}
+
+		SearchMetrics metrics = getMetrics();
+		long startTime = metrics == null ? 0 : System.nanoTime();
+
+		StrokeBucket[] candidates = getCandidates(buckets, compare, algo);
+		int total = countCandidates(candidates);
+		if(progress != null)
+		{
+			progress.progress(0, total);
+		}
+
+		MatchHeap heap = new MatchHeap(Math.min(max, total), candidates);
+		KanjiComparer comparer = compare.takeComparer(algo);
+		int pruned;
+		try
+		{
+			pruned = score(comparer, candidates, 0, total, heap, progress, cancel);
+		}
+		finally
+		{
+			compare.releaseComparer(algo, comparer);
+		}
+
+		KanjiMatch[] results = heap.getResults();
+		if(metrics != null)
+		{
+			reportSearch(metrics, algo, candidates, total, pruned,
+				System.nanoTime() - startTime, results.length);
+		}
+		return results;
+	}
+
+	/**
+	 * Reports a finished search.
+	 * @param metrics Metrics implementation
+	 * @param algo Match algorithm
+	 * @param candidates Buckets containing all candidates
+	 * @param scored Number of candidates scored (including pruned ones)
+	 * @param pruned Number of candidates the comparer gave up on early
+	 * @param nanos Time taken
+	 * @param results Number of results
+	 */
+	private static void reportSearch(SearchMetrics metrics,
+		KanjiInfo.MatchAlgorithm algo, StrokeBucket[] candidates, int scored,
+		int pruned, long nanos, int results)
+	{
+		for(StrokeBucket bucket : candidates)
+		{
+			metrics.candidatesGathered(algo, bucket.strokeCount, bucket.size);
+		}
+		metrics.candidatesScored(algo, scored - pruned, pruned);
+		metrics.searchFinished(algo, nanos, results);
+	}
+
+	/**
+	 * Searches for closest matches using several algorithms at once. Results
+	 * for each algorithm are identical to calling
+	 * {@link #getTopMatches(KanjiInfo, KanjiInfo.MatchAlgorithm, int, Progress)}
+	 * separately, but each stroke count is only visited once, and algorithms
+	 * that use the same comparer (e.g. FUZZY and FUZZY_1OUT) share it, so no
+	 * candidate is scored twice by the same comparer.
+	 * @param compare Kanji to compare
+	 * @param algos Match algorithms to use
+	 * @param max Maximum number of results to return for each algorithm
+	 * @param progress Progress reporter (null if not needed)
+	 * @return Top matches above search threshold for each algorithm
+	 * @throws IllegalArgumentException If max is less than 1
+	 */
+	public Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> getTopMatches(
+		KanjiInfo compare, EnumSet<KanjiInfo.MatchAlgorithm> algos, int max,
+		Progress progress) throws IllegalArgumentException
+	{
+		return getTopMatches(compare, algos, max, progress, null);
+	}
+
+	/**
+	 * Searches for closest matches using several algorithms at once, stopping
+	 * early if cancelled. See
+	 * {@link #getTopMatches(KanjiInfo, EnumSet, int, Progress)}.
+	 * @param compare Kanji to compare
+	 * @param algos Match algorithms to use
+	 * @param max Maximum number of results to return for each algorithm
+	 * @param progress Progress reporter (null if not needed)
+	 * @param cancel Cancellation token (null if not needed)
+	 * @return Top matches above search threshold for each algorithm
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws CancellationException If the search was cancelled
+	 */
+	public Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> getTopMatches(
+		KanjiInfo compare, EnumSet<KanjiInfo.MatchAlgorithm> algos, int max,
+		Progress progress, Cancellation cancel)
+		throws IllegalArgumentException, CancellationException
+	{
+		if(max < 1)
 		{
-			synchronized(this)
+			throw new IllegalArgumentException("Invalid max results: " + max);
+		}
+
+		SearchMetrics metrics = getMetrics();
+		long startTime = metrics == null ? 0 : System.nanoTime();
+
+		// Use the same version of the list for every algorithm
+		StrokeBucket[] all = buckets;
+		KanjiInfo.MatchAlgorithm[] algoArray =
+			algos.toArray(new KanjiInfo.MatchAlgorithm[algos.size()]);
+		int count = algoArray.length;
+		StrokeBucket[][] candidateArrays = new StrokeBucket[count][];
+		MatchHeap[] heaps = new MatchHeap[count];
+
+		// For each algorithm, the offset of each stroke count within its
+		// candidate indexes (-1 if not included)
+		int[][] offsets = new int[count][all.length];
+		int total = 0;
+		for(int algo=0; algo<count; algo++)
+		{
+			StrokeBucket[] candidates = getCandidates(all, compare, algoArray[algo]);
+			candidateArrays[algo] = candidates;
+			heaps[algo] = new MatchHeap(
+				Math.min(max, countCandidates(candidates)), candidates);
+			Arrays.fill(offsets[algo], -1);
+			int offset = 0;
+			for(StrokeBucket bucket : candidates)
 			{
-				// Do either -2 and +2, -1 and +1, or just 0
-				int range = algo.getOut();
-				int count = compare.getStrokeCount() - range;
-				for(int i=0; i<2; i++)
+				offsets[algo][bucket.strokeCount] = offset;
+				offset += bucket.size;
+			}
+			total += offset;
+		}
+		if(progress != null)
+		{
+			progress.progress(0, total);
+		}
+
+		// Take one comparer per family
+		KanjiComparer[] comparers = new KanjiComparer[count];
+		int[] scored = new int[count], pruned = new int[count];
+		try
+		{
+			for(int algo=0; algo<count; algo++)
+			{
+				for(int other=0; other<algo; other++)
+				{
+					if(algoArray[other].getFamily() == algoArray[algo].getFamily())
+					{
+						comparers[algo] = comparers[other];
+						break;
+					}
+				}
+				if(comparers[algo] == null)
+				{
+					comparers[algo] = compare.takeComparer(algoArray[algo]);
+				}
+			}
+
+			// Visit each stroke count once; score with each family that needs it
+			int done = 0;
+			float[] batch = new float[BATCH_SIZE];
+			int[] heapIndexes = new int[count];
+			for(int strokeCount=1; strokeCount<all.length; strokeCount++)
+			{
+				StrokeBucket bucket = all[strokeCount];
+				if(bucket == null)
 				{
-					if(count > 0)
+					continue;
+				}
+				for(int algo=0; algo<count; algo++)
+				{
+					// Only handle each family once (at its first algorithm that needs
+					// this bucket)
+					if(offsets[algo][strokeCount] == -1
+						|| !isFirstInFamily(algoArray, offsets, algo, strokeCount))
+					{
+						continue;
+					}
+					int heapCount = 0;
+					for(int other=algo; other<count; other++)
 					{
-						List<KanjiInfo> countList = kanji.get(count);
-						if(countList != null)
+						if(offsets[other][strokeCount] != -1
+							&& algoArray[other].getFamily() == algoArray[algo].getFamily())
 						{
-							list.addAll(countList);
+							heapIndexes[heapCount++] = other;
 						}
 					}
-					count += 2 * range;
-					if (range == 0)
+
+					KanjiComparer comparer = comparers[algo];
+					BucketComparer bucketComparer = comparer instanceof BucketComparer
+						? (BucketComparer)comparer : null;
+					BatchComparer batchComparer = comparer instanceof BatchComparer
+						? (BatchComparer)comparer : null;
+					int prunedBefore =
+						bucketComparer == null ? 0 : bucketComparer.getPrunedCount();
+					for(int i=0; i<bucket.size; i++)
 					{
-						break;
+						float score;
+						if(batchComparer != null)
+						{
+							int batchIndex = i % BATCH_SIZE;
+							if(batchIndex == 0)
+							{
+								batchComparer.getMatchScores(bucket, i,
+									Math.min(i + BATCH_SIZE, bucket.size), batch);
+							}
+							score = batch[batchIndex];
+						}
+						else if(bucketComparer != null)
+						{
+							// Only stop early if no heap could use the score
+							float threshold = Float.POSITIVE_INFINITY;
+							for(int heap=0; heap<heapCount; heap++)
+							{
+								threshold = Math.min(threshold,
+									heaps[heapIndexes[heap]].getThreshold());
+							}
+							score = bucketComparer.getMatchScore(bucket, i, threshold);
+						}
+						else
+						{
+							score = comparer.getMatchScore(bucket.kanji[i]);
+						}
+						for(int heap=0; heap<heapCount; heap++)
+						{
+							int index = heapIndexes[heap];
+							heaps[index].add(score, offsets[index][strokeCount] + i);
+						}
+						done += heapCount;
+						if(progress != null)
+						{
+							progress.progress(done, total);
+						}
+						if(cancel != null && i % CANCEL_CHECK_INTERVAL == 0
+							&& cancel.isCancelled())
+						{
+							throw new CancellationException();
+						}
+					}
+					scored[algo] += bucket.size;
+					if(bucketComparer != null)
+					{
+						pruned[algo] += bucketComparer.getPrunedCount() - prunedBefore;
 					}
 				}
 			}
 		}
-		int max = list.size();
-		if(progress != null)
+		finally
+		{
+			for(int algo=0; algo<count; algo++)
+			{
+				if(comparers[algo] != null
+					&& isFirstInFamily(algoArray, null, algo, 0))
+				{
+					compare.releaseComparer(algoArray[algo], comparers[algo]);
+				}
+			}
+		}
+
+		Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> results =
+			new EnumMap<KanjiInfo.MatchAlgorithm, KanjiMatch[]>(
+				KanjiInfo.MatchAlgorithm.class);
+		for(int algo=0; algo<count; algo++)
+		{
+			results.put(algoArray[algo], heaps[algo].getResults());
+		}
+		if(metrics != null)
+		{
+			long nanos = System.nanoTime() - startTime;
+			for(int algo=0; algo<count; algo++)
+			{
+				reportSearch(metrics, algoArray[algo], candidateArrays[algo],
+					scored[algo], pruned[algo], nanos,
+					results.get(algoArray[algo]).length);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * @param algos Algorithms
+	 * @param offsets Offsets of each stroke count for each algorithm (-1 if
+	 *   not included), or null to consider all algorithms
+	 * @param algo Index of algorithm to check
+	 * @param strokeCount Stroke count (ignored if offsets is null)
+	 * @return True if no earlier algorithm in the array is in the same family
+	 *   (and includes the stroke count)
+	 */
+	private static boolean isFirstInFamily(KanjiInfo.MatchAlgorithm[] algos,
+		int[][] offsets, int algo, int strokeCount)
+	{
+		for(int other=0; other<algo; other++)
+		{
+			if(algos[other].getFamily() == algos[algo].getFamily()
+				&& (offsets == null || offsets[other][strokeCount] != -1))
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Searches for closest matches, scoring candidates in parallel using the
+	 * given executor. Results are identical to
+	 * {@link #getTopMatches(KanjiInfo, KanjiInfo.MatchAlgorithm, int, Progress)}.
+	 * <p>
+	 * Candidates are split into chunks, each of which is scored by a separate
+	 * task with its own comparer. The calling thread scores one chunk itself
+	 * and then waits for the others.
+	 * @param compare Kanji to compare
+	 * @param algo Match algorithm to use
+	 * @param max Maximum number of results to return
+	 * @param executor Executor used to run the other chunks
+	 * @return Top matches above search threshold (no more than max)
+	 * @throws IllegalArgumentException If match algorithm not set, or max
+	 *   is less than 1
+	 * @throws InterruptedException If interrupted while waiting for results
+	 */
+	public KanjiMatch[] getTopMatchesParallel(KanjiInfo compare,
+		KanjiInfo.MatchAlgorithm algo, int max, ExecutorService executor)
+		throws IllegalArgumentException, InterruptedException
+	{
+		if(max < 1)
+		{
+			throw new IllegalArgumentException("Invalid max results: " + max);
+		}
+
+		SearchMetrics metrics = getMetrics();
+		long startTime = metrics == null ? 0 : System.nanoTime();
+
+		StrokeBucket[] candidates = getCandidates(buckets, compare, algo);
+		int total = countCandidates(candidates);
+		int chunks = Math.max(1, Math.min(
+			total / MIN_PARALLEL_CHUNK,
+			Runtime.getRuntime().availableProcessors()));
+
+		// Submit all chunks except the first, which runs in this thread
+		List<Future<MatchHeap>> futures = new ArrayList<Future<MatchHeap>>();
+		List<SearchChunk> searchChunks = new ArrayList<SearchChunk>();
+		try
 		{
-			progress.progress(0, max);
+			for(int chunk=1; chunk<chunks; chunk++)
+			{
+				SearchChunk searchChunk = new SearchChunk(compare, algo, max,
+					candidates, total * chunk / chunks, total * (chunk + 1) / chunks);
+				searchChunks.add(searchChunk);
+				futures.add(executor.submit(searchChunk));
+			}
+			MatchHeap heap = new MatchHeap(Math.min(max, total), candidates);
+			SearchChunk firstChunk = new SearchChunk(compare, algo, max, candidates,
+				0, total / chunks);
+			searchChunks.add(firstChunk);
+			heap.addAll(firstChunk.call());
+
+			// Merge in the other results
+			for(Future<MatchHeap> future : futures)
+			{
+				try
+				{
+					heap.addAll(future.get());
+				}
+				catch(ExecutionException e)
+				{
+					Throwable cause = e.getCause();
+					if(cause instanceof RuntimeException)
+					{
+						throw (RuntimeException)cause;
+					}
+					if(cause instanceof Error)
+					{
+						throw (Error)cause;
+					}
+					throw new Error("Unexpected search failure", cause);
+				}
+			}
+
+			KanjiMatch[] results = heap.getResults();
+			if(metrics != null)
+			{
+				// Chunk results are visible once their futures have returned
+				int pruned = 0;
+				for(SearchChunk searchChunk : searchChunks)
+				{
+					pruned += searchChunk.pruned;
+				}
+				reportSearch(metrics, algo, candidates, total, pruned,
+					System.nanoTime() - startTime, results.length);
+			}
+			return results;
 		}
-		int i = 0;
-		for(KanjiInfo other : list)
+		finally
 		{
-			float score = compare.getMatchScore(other, algo);
-			KanjiMatch match = new KanjiMatch(other, score);
-			matches.add(match);
-			if(progress != null)
+			// If anything went wrong, don't leave other chunks running
+			for(Future<MatchHeap> future : futures)
 			{
-				progress.progress(++i, max);
+				future.cancel(true);
 			}
 		}
+	}
+
+	/**
+	 * Scores some of the candidates using its own comparer.
+	 */
+	private static class SearchChunk implements Callable<MatchHeap>
+	{
+		private KanjiInfo compare;
+		private KanjiInfo.MatchAlgorithm algo;
+		private int max;
+		private StrokeBucket[] candidates;
+		private int start, end;
+
+		/**
+		 * Number of candidates the comparer gave up on early (set by call).
+		 */
+		private int pruned;
+
+		/**
+		 * @param compare Kanji to compare
+		 * @param algo Match algorithm to use
+		 * @param max Maximum number of results to return
+		 * @param candidates Buckets containing all candidates
+		 * @param start First index to score
+		 * @param end Index after last one to score
+		 */
+		private SearchChunk(KanjiInfo compare, KanjiInfo.MatchAlgorithm algo,
+			int max, StrokeBucket[] candidates, int start, int end)
+		{
+			this.compare = compare;
+			this.algo = algo;
+			this.max = max;
+			this.candidates = candidates;
+			this.start = start;
+			this.end = end;
+		}
 
-		// Pull everything down to half match score
-		LinkedList<KanjiMatch> results = new LinkedList<KanjiMatch>();
-		float maxScore = -1;
-		for(KanjiMatch match : matches)
+		@Override
+		public MatchHeap call()
 		{
-			if(maxScore == -1)
+			// Each chunk uses its own comparer, sharing the prepared drawn data
+			KanjiComparer comparer = compare.takeComparer(algo);
+			try
 			{
-				maxScore = match.getScore();
+				MatchHeap heap = new MatchHeap(Math.min(max, end - start), candidates);
+				pruned = score(comparer, candidates, start, end, heap, null, null);
+				return heap;
 			}
-			else
+			finally
 			{
-				if(match.getScore() < maxScore * 0.75f)
+				compare.releaseComparer(algo, comparer);
+			}
+		}
+	}
+
+	/**
+	 * Scores a range of candidates, adding them to a heap.
+	 * @param comparer Comparer to use
+	 * @param candidates Buckets containing all candidates
+	 * @param start First candidate index to score
+	 * @param end Index after last one to score
+	 * @param heap Heap that receives results
+	 * @param progress Progress reporter (null if not needed)
+	 * @param cancel Cancellation token (null if not needed)
+	 * @return Number of candidates the comparer gave up on early
+	 * @throws CancellationException If cancelled
+	 */
+	private static int score(KanjiComparer comparer, StrokeBucket[] candidates,
+		int start, int end, MatchHeap heap, Progress progress,
+		Cancellation cancel) throws CancellationException
+	{
+		// Built-in comparers can work directly from the bucket data, and some
+		// can score several candidates at once
+		BucketComparer bucketComparer = comparer instanceof BucketComparer
+			? (BucketComparer)comparer : null;
+		BatchComparer batchComparer = comparer instanceof BatchComparer
+			? (BatchComparer)comparer : null;
+		float[] batch = batchComparer == null ? null : new float[BATCH_SIZE];
+		int prunedBefore =
+			bucketComparer == null ? 0 : bucketComparer.getPrunedCount();
+		int bucketStart = 0;
+		for(StrokeBucket bucket : candidates)
+		{
+			int from = Math.max(start, bucketStart),
+				to = Math.min(end, bucketStart + bucket.size);
+			for(int i=from; i<to; i++)
+			{
+				int index = i - bucketStart;
+				float score;
+				if(batchComparer != null)
+				{
+					int batchIndex = (i - from) % BATCH_SIZE;
+					if(batchIndex == 0)
+					{
+						batchComparer.getMatchScores(bucket, index,
+							Math.min(index + BATCH_SIZE, to - bucketStart), batch);
+					}
+					score = batch[batchIndex];
+				}
+				else if(bucketComparer != null)
+				{
+					// Stop early for candidates that won't be kept
+					score = bucketComparer.getMatchScore(
+						bucket, index, heap.getThreshold());
+				}
+				else
+				{
+					score = comparer.getMatchScore(bucket.kanji[index]);
+				}
+				heap.add(score, i);
+				if(progress != null)
+				{
+					progress.progress(i + 1, end);
+				}
+				if(cancel != null && (i - start) % CANCEL_CHECK_INTERVAL == 0
+					&& cancel.isCancelled())
+				{
+					throw new CancellationException();
+				}
+			}
+			bucketStart += bucket.size;
+		}
+		return bucketComparer == null
+			? 0 : bucketComparer.getPrunedCount() - prunedBefore;
+	}
+
+	/**
+	 * @param candidates Buckets
+	 * @return Total number of kanji in buckets
+	 */
+	private static int countCandidates(StrokeBucket[] candidates)
+	{
+		int total = 0;
+		for(StrokeBucket bucket : candidates)
+		{
+			total += bucket.size;
+		}
+		return total;
+	}
+
+	/**
+	 * Gets the buckets that need to be compared for a search. The buckets do
+	 * not change, so they can be used after this method returns.
+	 * @param all All buckets (current version of list)
+	 * @param compare Kanji to compare
+	 * @param algo Match algorithm to use
+	 * @return All buckets with a suitable stroke count
+	 */
+	private static StrokeBucket[] getCandidates(StrokeBucket[] all,
+		KanjiInfo compare, KanjiInfo.MatchAlgorithm algo)
+	{
+		StrokeBucket[] found = new StrokeBucket[2];
+		int foundCount = 0;
+		if(compare.getStrokeCount() > 0)
+		{
+			// Do either -2 and +2, -1 and +1, or just 0
+			int range = algo.getOut();
+			int count = compare.getStrokeCount() - range;
+			for(int i=0; i<2; i++)
+			{
+				StrokeBucket bucket = count > 0 ? getBucket(all, count) : null;
+				if(bucket != null)
+				{
+					found[foundCount++] = bucket;
+				}
+				count += 2 * range;
+				if (range == 0)
 				{
 					break;
 				}
 			}
-			results.add(match);
 		}
+		if(foundCount == found.length)
+		{
+			return found;
+		}
+		StrokeBucket[] result = new StrokeBucket[foundCount];
+		System.arraycopy(found, 0, result, 0, foundCount);
+		return result;
+	}
 
-		return results.toArray(new KanjiMatch[results.size()]);
+	/**
+	 * Loads a list from a file in the format written by
+	 * {@link #saveBinary(OutputStream)}. The file is memory-mapped while it
+	 * is loaded, but its data is copied into objects and arrays on the heap,
+	 * so the list takes the same memory as one loaded from XML and the
+	 * mapping is not used afterwards. Loading is still much faster, as there
+	 * is no XML to parse.
+	 * @param file File to load
+	 * @return New list
+	 * @throws IOException Any error reading file, or if it is not valid
+	 */
+	public static KanjiList loadBinary(File file) throws IOException
+	{
+		FileInputStream input = new FileInputStream(file);
+		try
+		{
+			FileChannel channel = input.getChannel();
+			// The mapping remains valid after the channel is closed
+			return loadBinary(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+				channel.size()));
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+
+	/**
+	 * Loads a list from data in the format written by
+	 * {@link #saveBinary(OutputStream)}. The data is copied, so the buffer is
+	 * not used after this returns.
+	 * @param buffer Buffer containing the data, positioned at its start
+	 * @return New list
+	 * @throws IOException If the data is not valid
+	 */
+	public static KanjiList loadBinary(ByteBuffer buffer) throws IOException
+	{
+		long startTime = System.nanoTime();
+		KanjiList list = new KanjiList();
+		try
+		{
+			buffer.order(ByteOrder.BIG_ENDIAN);
+			int start = buffer.position();
+			if(buffer.getInt() != BINARY_MAGIC)
+			{
+				throw new IOException("Not a binary kanji list file");
+			}
+
+			// Read index, checking it against the size of the data before
+			// allocating anything
+			long size = buffer.limit() - start;
+			int maxStrokes = buffer.getInt();
+			long indexEnd = 8 + maxStrokes * 8L;
+			if(maxStrokes < 0 || indexEnd > size)
+			{
+				throw new IOException("Invalid maximum stroke count in binary kanji "
+					+ "list file: " + maxStrokes);
+			}
+			int[] offsets = new int[maxStrokes + 1], counts = new int[maxStrokes + 1];
+			for(int strokeCount=1; strokeCount<=maxStrokes; strokeCount++)
+			{
+				offsets[strokeCount] = buffer.getInt();
+				counts[strokeCount] = buffer.getInt();
+				if(offsets[strokeCount] < indexEnd || counts[strokeCount] < 0
+					|| offsets[strokeCount]
+						+ counts[strokeCount] * (4L + strokeCount * 4L) > size)
+				{
+					throw new IOException("Invalid index entry in binary kanji list "
+						+ "file for stroke count " + strokeCount + ": offset "
+						+ offsets[strokeCount] + ", count " + counts[strokeCount]);
+				}
+			}
+
+			// Read each stroke count section into a whole bucket (the list isn't
+			// shared yet, so this doesn't need to go through add)
+			StrokeBucket[] buckets = new StrokeBucket[maxStrokes + 1];
+			for(int strokeCount=1; strokeCount<=maxStrokes; strokeCount++)
+			{
+				if(counts[strokeCount] == 0)
+				{
+					continue;
+				}
+				buffer.position(start + offsets[strokeCount]);
+				KanjiInfo[] kanji = new KanjiInfo[counts[strokeCount]];
+				for(int i=0; i<kanji.length; i++)
+				{
+					int codePoint = buffer.getInt();
+					Stroke[] strokes = new Stroke[strokeCount];
+					for(int stroke=0; stroke<strokeCount; stroke++)
+					{
+						strokes[stroke] = new Stroke(buffer.get() & 0xff,
+							buffer.get() & 0xff, buffer.get() & 0xff, buffer.get() & 0xff);
+					}
+					kanji[i] = new KanjiInfo(
+						new String(Character.toChars(codePoint)), strokes);
+					list.index.put(codePoint, kanji[i]);
+				}
+				buckets[strokeCount] = StrokeBucket.create(strokeCount, kanji);
+			}
+			list.buckets = buckets;
+		}
+		catch(BufferUnderflowException e)
+		{
+			IOException x = new IOException("Binary kanji list file truncated");
+			x.initCause(e);
+			throw x;
+		}
+		catch(IllegalArgumentException e)
+		{
+			IOException x = new IOException("Invalid binary kanji list file");
+			x.initCause(e);
+			throw x;
+		}
+		list.reportLoad(startTime);
+		return list;
+	}
+
+	/**
+	 * Saves this list in a compact binary format, which can be loaded using
+	 * {@link #loadBinary(File)}. The format (all integers are 4-byte
+	 * big-endian) is:
+	 * <ul>
+	 * <li>Header: magic number 0x4b4a4c01; maximum stroke count N.</li>
+	 * <li>Index: for each stroke count 1 to N, the offset from start of
+	 *   data of its section, and the number of kanji in it.</li>
+	 * <li>Sections: for each kanji, the Unicode code point then each stroke
+	 *   as four bytes (start X, start Y, end X, end Y; each 0-255).</li>
+	 * </ul>
+	 * @param out Stream to receive data (will be closed)
+	 * @throws IOException Any error
+	 */
+	public void saveBinary(OutputStream out) throws IOException
+	{
+		// Get all the kanji from the same version of the list
+		StrokeBucket[] current = buckets;
+		int maxStrokes = Math.max(0, current.length - 1);
+		KanjiInfo[][] all = new KanjiInfo[maxStrokes + 1][];
+		for(int strokeCount=1; strokeCount<=maxStrokes; strokeCount++)
+		{
+			StrokeBucket bucket = current[strokeCount];
+			all[strokeCount] = bucket == null ? new KanjiInfo[0] : bucket.getKanji();
+		}
+
+		DataOutputStream data = new DataOutputStream(
+			new BufferedOutputStream(out));
+		data.writeInt(BINARY_MAGIC);
+		data.writeInt(maxStrokes);
+
+		// Index
+		int offset = 8 + maxStrokes * 8;
+		for(int strokeCount=1; strokeCount<=maxStrokes; strokeCount++)
+		{
+			data.writeInt(offset);
+			data.writeInt(all[strokeCount].length);
+			offset += all[strokeCount].length * (4 + strokeCount * 4);
+		}
+
+		// Sections
+		for(int strokeCount=1; strokeCount<=maxStrokes; strokeCount++)
+		{
+			for(KanjiInfo info : all[strokeCount])
+			{
+				data.writeInt(info.getKanji().codePointAt(0));
+				for(int i=0; i<strokeCount; i++)
+				{
+					Stroke stroke = info.getStroke(i);
+					data.writeByte(stroke.getStartX());
+					data.writeByte(stroke.getStartY());
+					data.writeByte(stroke.getEndX());
+					data.writeByte(stroke.getEndY());
+				}
+			}
+		}
+		data.close();
 	}
 
 	/**
@@ -268,6 +1156,33 @@ public class KanjiList
 	 * @throws IOException Any error
 	 */
 	public void save(OutputStream out, String originalName) throws IOException
+	{
+		Writer writer = startSave(out, originalName);
+		for(StrokeBucket bucket : buckets)
+		{
+			if(bucket == null)
+			{
+				continue;
+			}
+			for(int i=0; i<bucket.size; i++)
+			{
+				bucket.kanji[i].write(writer);
+			}
+		}
+		endSave(writer);
+	}
+
+	/**
+	 * Starts an XML file by writing everything before the first kanji. Use
+	 * {@link KanjiInfo#write(Writer)} for each kanji, then
+	 * {@link #endSave(Writer)}. Kanji may be in any order.
+	 * @param out Stream to receive XML data
+	 * @param originalName Original filename of KanjiVG file
+	 * @return Writer for kanji
+	 * @throws IOException Any error
+	 */
+	static Writer startSave(OutputStream out, String originalName)
+		throws IOException
 	{
 		BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(
 			out, "UTF-8"));
@@ -291,15 +1206,16 @@ public class KanjiList
 		  + "See http://creativecommons.org/licenses/by-sa/3.0/ for more details.\n"
 		  + "-->\n"
 			+ "<strokes>");
+		return writer;
+	}
 
-		for(List<KanjiInfo> list : kanji.values())
-		{
-			for(KanjiInfo character : list)
-			{
-				character.write(writer);
-			}
-		}
-
+	/**
+	 * Finishes an XML file started with {@link #startSave(OutputStream, String)}.
+	 * @param writer Writer (will be closed)
+	 * @throws IOException Any error
+	 */
+	static void endSave(Writer writer) throws IOException
+	{
 		writer.write("</strokes>");
 		writer.close();
 	}
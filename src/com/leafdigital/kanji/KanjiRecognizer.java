@@ -0,0 +1,349 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs searches in the background on a fixed number of threads with a
+ * limited queue, so bursts of input never create more threads. Share one
+ * recognizer between everything that searches the same list (e.g. all the
+ * results panels in an application).
+ * <p>
+ * Each search returns a {@link Future}; cancelling it stops the search.
+ * Input surfaces that only care about their latest search can use a
+ * {@link SearchScheduler} from {@link #newScheduler(Executor)}, which runs
+ * on the same threads.
+ */
+public class KanjiRecognizer
+{
+	/**
+	 * What to do with a new search when the queue is full.
+	 */
+	public enum RejectionPolicy
+	{
+		/**
+		 * Throw a {@link RejectedExecutionException}.
+		 */
+		ABORT,
+		/**
+		 * Cancel the search that has been waiting longest, and queue the new
+		 * one. Suits interactive input, where only recent drawings matter.
+		 * Searches already superseded in a {@link SearchScheduler} are removed
+		 * first. A discarded search's callback receives a
+		 * {@link CancellationException} through its searchFailed method.
+		 */
+		DISCARD_OLDEST,
+		/**
+		 * Run the search in the calling thread, which slows down callers until
+		 * the threads catch up.
+		 */
+		CALLER_RUNS
+	}
+
+	private final static AtomicInteger recognizerCount = new AtomicInteger();
+
+	private final KanjiList list;
+	private final ThreadPoolExecutor executor;
+
+	/**
+	 * Constructs with one thread per processor, a queue of 64 searches, and
+	 * {@link RejectionPolicy#DISCARD_OLDEST}.
+	 * @param list List to search
+	 */
+	public KanjiRecognizer(KanjiList list)
+	{
+		this(list, Runtime.getRuntime().availableProcessors(), 64,
+			RejectionPolicy.DISCARD_OLDEST);
+	}
+
+	/**
+	 * @param list List to search
+	 * @param threads Number of search threads (they are daemon threads, and
+	 *   stop when idle)
+	 * @param queueDepth Maximum number of searches waiting for a thread
+	 * @param policy What to do with new searches when the queue is full
+	 * @throws IllegalArgumentException If threads or queueDepth is less than 1
+	 */
+	public KanjiRecognizer(KanjiList list, int threads, int queueDepth,
+		RejectionPolicy policy) throws IllegalArgumentException
+	{
+		if(threads < 1 || queueDepth < 1)
+		{
+			throw new IllegalArgumentException("Invalid threads (" + threads
+				+ ") or queue depth (" + queueDepth + ")");
+		}
+		this.list = list;
+		final String namePrefix = "Kanji search "
+			+ recognizerCount.incrementAndGet() + "-";
+		executor = new ThreadPoolExecutor(threads, threads, 10, TimeUnit.SECONDS,
+			new ArrayBlockingQueue<Runnable>(queueDepth), new ThreadFactory()
+			{
+				private final AtomicInteger threadCount = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r)
+				{
+					Thread thread = new Thread(r,
+						namePrefix + threadCount.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			}, new Rejection(policy));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Applies the rejection policy, after first trying to make room by
+	 * removing searches that were cancelled while waiting.
+	 */
+	private static class Rejection implements RejectedExecutionHandler
+	{
+		private final RejectionPolicy policy;
+
+		private Rejection(RejectionPolicy policy)
+		{
+			this.policy = policy;
+		}
+
+		@Override
+		public void rejectedExecution(Runnable r, ThreadPoolExecutor executor)
+		{
+			if(executor.isShutdown())
+			{
+				throw new RejectedExecutionException("Recognizer has been shut down");
+			}
+			executor.purge();
+			if(executor.getQueue().offer(r))
+			{
+				return;
+			}
+
+			switch(policy)
+			{
+			case DISCARD_OLDEST:
+				Runnable oldest = executor.getQueue().poll();
+				if(oldest instanceof SearchTask)
+				{
+					((SearchTask)oldest).discard();
+				}
+				else if(oldest instanceof Future<?>)
+				{
+					// Scheduler searches report this themselves
+					((Future<?>)oldest).cancel(false);
+				}
+				executor.execute(r);
+				break;
+			case CALLER_RUNS:
+				r.run();
+				break;
+			default:
+				throw new RejectedExecutionException("Search queue full");
+			}
+		}
+	}
+
+	/**
+	 * A search that can be stopped part way through by cancelling it, and
+	 * calls a callback when it finishes.
+	 */
+	private class SearchTask extends FutureTask<KanjiMatch[]>
+	{
+		private final KanjiInfo drawn;
+		private final SearchScheduler.Callback callback;
+		private final Executor delivery;
+		private volatile boolean discarded;
+
+		private SearchTask(final KanjiInfo drawn,
+			final KanjiInfo.MatchAlgorithm algo, final int max,
+			final Cancel cancel, SearchScheduler.Callback callback,
+			Executor delivery)
+		{
+			super(new Callable<KanjiMatch[]>()
+			{
+				@Override
+				public KanjiMatch[] call() throws Exception
+				{
+					return list.getTopMatches(drawn, algo, max, null, cancel);
+				}
+			});
+			cancel.task = this;
+			this.drawn = drawn;
+			this.callback = callback;
+			this.delivery = delivery;
+		}
+
+		/**
+		 * Cancels the search to make room in the queue.
+		 */
+		private void discard()
+		{
+			discarded = true;
+			cancel(false);
+		}
+
+		@Override
+		protected void done()
+		{
+			if(callback == null || (isCancelled() && !discarded))
+			{
+				return;
+			}
+			delivery.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					if(isCancelled())
+					{
+						callback.searchFailed(new CancellationException(
+							"Search discarded because the queue was full"));
+						return;
+					}
+					KanjiMatch[] matches;
+					try
+					{
+						matches = get();
+					}
+					catch(ExecutionException e)
+					{
+						callback.searchFailed(e.getCause());
+						return;
+					}
+					catch(InterruptedException e)
+					{
+						// Can't happen as the task is done
+						callback.searchFailed(e);
+						return;
+					}
+					callback.searchFinished(drawn, matches);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Cancellation token that reports whether a task has been cancelled.
+	 */
+	private static class Cancel implements KanjiList.Cancellation
+	{
+		private volatile Future<?> task;
+
+		@Override
+		public boolean isCancelled()
+		{
+			return task.isCancelled();
+		}
+	}
+
+	/**
+	 * Starts a search.
+	 * @param drawn Kanji to search for
+	 * @param algo Match algorithm
+	 * @param max Maximum number of results
+	 * @return Future that receives results
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws RejectedExecutionException If the queue is full and the policy
+	 *   is {@link RejectionPolicy#ABORT}, or after {@link #shutdown()}
+	 */
+	public Future<KanjiMatch[]> search(KanjiInfo drawn,
+		KanjiInfo.MatchAlgorithm algo, int max)
+		throws IllegalArgumentException, RejectedExecutionException
+	{
+		return search(drawn, algo, max, null, null);
+	}
+
+	/**
+	 * Starts a search, calling a callback when it finishes. The callback is
+	 * not called if the search is cancelled through its future. If it is
+	 * discarded because the queue is full (see
+	 * {@link RejectionPolicy#DISCARD_OLDEST}), the callback receives a
+	 * {@link CancellationException}.
+	 * @param drawn Kanji to search for
+	 * @param algo Match algorithm
+	 * @param max Maximum number of results
+	 * @param callback Callback that receives results (null if not needed)
+	 * @param delivery Executor used to call the callback (null to call it on
+	 *   the search thread)
+	 * @return Future that receives results
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws RejectedExecutionException If the queue is full and the policy
+	 *   is {@link RejectionPolicy#ABORT}, or after {@link #shutdown()}
+	 */
+	public Future<KanjiMatch[]> search(KanjiInfo drawn,
+		KanjiInfo.MatchAlgorithm algo, int max, SearchScheduler.Callback callback,
+		Executor delivery)
+		throws IllegalArgumentException, RejectedExecutionException
+	{
+		if(max < 1)
+		{
+			throw new IllegalArgumentException("Invalid max results: " + max);
+		}
+		if(delivery == null)
+		{
+			delivery = new Executor()
+			{
+				@Override
+				public void execute(Runnable command)
+				{
+					command.run();
+				}
+			};
+		}
+		SearchTask task = new SearchTask(drawn, algo, max, new Cancel(), callback,
+			delivery);
+		executor.execute(task);
+		return task;
+	}
+
+	/**
+	 * Creates a scheduler that runs searches on this recognizer's threads.
+	 * @param delivery Executor used to call callbacks
+	 * @return New scheduler
+	 */
+	public SearchScheduler newScheduler(Executor delivery)
+	{
+		return new SearchScheduler(list, executor, delivery);
+	}
+
+	/**
+	 * @return List that is searched
+	 */
+	public KanjiList getList()
+	{
+		return list;
+	}
+
+	/**
+	 * @return Number of searches waiting for a thread
+	 */
+	public int getQueueLength()
+	{
+		return executor.getQueue().size();
+	}
+
+	/**
+	 * Stops accepting searches. Searches already started or queued still run.
+	 */
+	public void shutdown()
+	{
+		executor.shutdown();
+	}
+}
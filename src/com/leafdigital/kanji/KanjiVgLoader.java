@@ -34,10 +34,23 @@ import org.xml.sax.helpers.DefaultHandler;
 public class KanjiVgLoader
 {
 	private InputStream input;
-	private LinkedList<KanjiInfo> read = new LinkedList<KanjiInfo>();
+	private Callback callback;
 	private LinkedList<String> warnings = new LinkedList<String>();
 	private HashSet<Integer> done = new HashSet<Integer>();
 
+	/**
+	 * Receives each kanji as soon as it has been read.
+	 */
+	public interface Callback
+	{
+		/**
+		 * Called for each kanji in the file, in order.
+		 * @param kanji Finished kanji
+		 * @throws IOException Any error (stops loading)
+		 */
+		public void kanjiLoaded(KanjiInfo kanji) throws IOException;
+	}
+
 	/**
 	 * SAX handler.
 	 */
@@ -131,7 +144,15 @@ public class KanjiVgLoader
 				if(current != null)
 				{
 					current.finish();
-					read.add(current);
+					try
+					{
+						callback.kanjiLoaded(current);
+					}
+					catch(IOException e)
+					{
+						throw new SAXException(e);
+					}
+					current = null;
 				}
 			}
 		}
@@ -140,7 +161,7 @@ public class KanjiVgLoader
 	/**
 	 * Constructs ready to read data.
 	 * @param input Input stream (will be closed after {@link #loadKanji()}
-	 *   finishes)
+	 *   or {@link #loadKanji(Callback)} finishes)
 	 */
 	public KanjiVgLoader(InputStream input)
 	{
@@ -153,11 +174,34 @@ public class KanjiVgLoader
 	 * @throws IOException Any error reading data or with format
 	 */
 	public synchronized KanjiInfo[] loadKanji() throws IOException
+	{
+		final ArrayList<KanjiInfo> read = new ArrayList<KanjiInfo>();
+		loadKanji(new Callback()
+		{
+			@Override
+			public void kanjiLoaded(KanjiInfo kanji)
+			{
+				read.add(kanji);
+			}
+		});
+		return read.toArray(new KanjiInfo[read.size()]);
+	}
+
+	/**
+	 * Loads kanji from the file one at a time, passing each to a callback as
+	 * soon as it is read, then closes the file. Kanji are not kept, so a large
+	 * file can be processed in constant memory.
+	 * @param callback Callback that receives each kanji
+	 * @throws IOException Any error reading data or with format, or thrown by
+	 *   the callback
+	 */
+	public synchronized void loadKanji(Callback callback) throws IOException
 	{
 		if(input == null)
 		{
 			throw new IOException("Cannot load kanji more than once");
 		}
+		this.callback = callback;
 
 		// Parse data
 		SAXParser parser;
@@ -165,7 +209,6 @@ public class KanjiVgLoader
 		{
 			parser = SAXParserFactory.newInstance().newSAXParser();
 			parser.parse(input, new Handler());
-			input.close();
 		}
 		catch(ParserConfigurationException e)
 		{
@@ -175,13 +218,20 @@ public class KanjiVgLoader
 		}
 		catch(SAXException e)
 		{
+			if(e.getException() instanceof IOException)
+			{
+				throw (IOException)e.getException();
+			}
 			IOException x = new IOException("Failed to parse KanjiVG file");
 			x.initCause(e);
 			throw x;
 		}
-
-		// Return result
-		return read.toArray(new KanjiInfo[read.size()]);
+		finally
+		{
+			input.close();
+			input = null;
+			this.callback = null;
+		}
 	}
 
 	/**
@@ -198,13 +248,21 @@ public class KanjiVgLoader
 	 */
 	public static void main(String[] args)
 	{
+		boolean binary = args.length > 0 && args[0].equals("-binary");
+		if(binary)
+		{
+			String[] remaining = new String[args.length - 1];
+			System.arraycopy(args, 1, remaining, 0, remaining.length);
+			args = remaining;
+		}
 		if(args.length < 2 || args.length > 3
-			|| (args.length==3 && !args[2].matches("[0-9]{1,5}")))
+			|| (args.length==3 && (binary || !args[2].matches("[0-9]{1,5}"))))
 		{
 			System.err.println("Incorrect command line arguments. Syntax:\n"
-				+ "KanjiVgLoader <kanjivgfile> <output file> [max size in kb]\n"
+				+ "KanjiVgLoader [-binary] <kanjivgfile> <output file> [max size in kb]\n"
 				+ "Max size is used to optionally split the file into multiple\n"
-				+ "parts.");
+				+ "parts. The -binary option writes the compact binary format\n"
+				+ "instead of XML (cannot be split).");
 			return;
 		}
 
@@ -241,29 +299,8 @@ public class KanjiVgLoader
 
 		try
 		{
-			// Load everything
 			KanjiVgLoader loader = new KanjiVgLoader(new BufferedInputStream(
 				new FileInputStream(in)));
-			System.out.println("Loading input file: " + in.getName());
-			KanjiInfo[] allKanji = loader.loadKanji();
-			System.out.println("Loaded " + allKanji.length + " kanji.");
-			System.out.println();
-			if(loader.getWarnings().length > 0)
-			{
-				System.out.println("Warnings:");
-				for(String warning : loader.getWarnings())
-				{
-					System.out.println("  " + warning);
-				}
-				System.out.println();
-			}
-
-			KanjiList list = new KanjiList();
-			for(KanjiInfo kanji : allKanji)
-			{
-				list.add(kanji);
-			}
-
 			OutputStream stream;
 			if(maxBytes == -1)
 			{
@@ -275,8 +312,52 @@ public class KanjiVgLoader
 				System.out.println("Writing output files: " + fileName + ".*");
 				stream = new SplitOutputStream(fileName, maxBytes);
 			}
-			list.save(stream, in.getName());
+
+			System.out.println("Loading input file: " + in.getName());
+			final int[] count = new int[1];
+			if(binary)
+			{
+				// Binary index needs counts up front, so load into the list first
+				final KanjiList list = new KanjiList();
+				loader.loadKanji(new Callback()
+				{
+					@Override
+					public void kanjiLoaded(KanjiInfo kanji)
+					{
+						list.add(kanji);
+						count[0]++;
+					}
+				});
+				list.saveBinary(stream);
+			}
+			else
+			{
+				// XML is written as each kanji is read
+				final Writer writer = KanjiList.startSave(stream, in.getName());
+				loader.loadKanji(new Callback()
+				{
+					@Override
+					public void kanjiLoaded(KanjiInfo kanji) throws IOException
+					{
+						kanji.write(writer);
+						count[0]++;
+					}
+				});
+				KanjiList.endSave(writer);
+			}
 			stream.close();
+
+			System.out.println("Loaded " + count[0] + " kanji.");
+			System.out.println();
+			if(loader.getWarnings().length > 0)
+			{
+				System.out.println("Warnings:");
+				for(String warning : loader.getWarnings())
+				{
+					System.out.println("  " + warning);
+				}
+				System.out.println();
+			}
 		}
 		catch(IOException e)
 		{
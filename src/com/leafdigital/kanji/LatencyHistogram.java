@@ -0,0 +1,167 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lock-free histogram of non-negative values (e.g. times in nanoseconds)
+ * with fixed relative precision. Each power of two is divided into 32
+ * equal sub-buckets, so any value can be recorded and percentiles are
+ * accurate to about 3%, using a fixed 15 KB of counters.
+ * <p>
+ * Values can be recorded from any number of threads. Reading while values
+ * are being recorded gives a result that includes some, but not necessarily
+ * all, of the values recorded so far.
+ */
+public class LatencyHistogram
+{
+	/**
+	 * Bits of each value (below its highest set bit) used to pick a
+	 * sub-bucket.
+	 */
+	private final static int SUB_BUCKET_BITS = 5;
+
+	private final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Number of counters. Values below 2 * SUB_BUCKETS have a counter each;
+	 * after that each power of two has SUB_BUCKETS counters.
+	 */
+	private final static int COUNTERS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(COUNTERS);
+	private final AtomicLong total = new AtomicLong(), sum = new AtomicLong(),
+		max = new AtomicLong();
+
+	/**
+	 * Records a value.
+	 * @param value Value (negative values are recorded as 0)
+	 */
+	public void record(long value)
+	{
+		value = Math.max(0, value);
+		counts.incrementAndGet(getIndex(value));
+		total.incrementAndGet();
+		sum.addAndGet(value);
+		while(true)
+		{
+			long current = max.get();
+			if(value <= current || max.compareAndSet(current, value))
+			{
+				break;
+			}
+		}
+	}
+
+	/**
+	 * @return Number of values recorded
+	 */
+	public long getCount()
+	{
+		return total.get();
+	}
+
+	/**
+	 * @return Largest value recorded (0 if none)
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * @return Mean of values recorded (0 if none)
+	 */
+	public double getMean()
+	{
+		long count = total.get();
+		return count == 0 ? 0 : (double)sum.get() / count;
+	}
+
+	/**
+	 * Gets a percentile, such as 50 for the median. The result is the
+	 * highest value that would be recorded in the same sub-bucket as the
+	 * actual value, but no more than the largest value recorded.
+	 * @param percentile Percentile (0-100)
+	 * @return Value at percentile (0 if none recorded)
+	 * @throws IllegalArgumentException If percentile is out of range
+	 */
+	public long getPercentile(double percentile) throws IllegalArgumentException
+	{
+		if(!(percentile >= 0 && percentile <= 100))
+		{
+			throw new IllegalArgumentException("Invalid percentile: " + percentile);
+		}
+
+		// Take a copy so that the total matches the counts
+		long[] copy = new long[COUNTERS];
+		long count = 0;
+		for(int i=0; i<COUNTERS; i++)
+		{
+			copy[i] = counts.get(i);
+			count += copy[i];
+		}
+		if(count == 0)
+		{
+			return 0;
+		}
+
+		long rank = Math.max(1, (long)Math.ceil(percentile / 100.0 * count));
+		long seen = 0;
+		int index = 0;
+		for(; index<COUNTERS - 1; index++)
+		{
+			seen += copy[index];
+			if(seen >= rank)
+			{
+				break;
+			}
+		}
+		return Math.min(getHighestValue(index), max.get());
+	}
+
+	/**
+	 * @param value Value (not negative)
+	 * @return Index of counter for value
+	 */
+	static int getIndex(long value)
+	{
+		// Values up to 2 * SUB_BUCKETS are exact; after that, keep the top
+		// SUB_BUCKET_BITS + 1 bits
+		int shift = Math.max(0,
+			63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return shift * SUB_BUCKETS + (int)(value >>> shift);
+	}
+
+	/**
+	 * @param index Index of counter
+	 * @return Highest value recorded in that counter
+	 */
+	static long getHighestValue(int index)
+	{
+		if(index < 2 * SUB_BUCKETS)
+		{
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long)(index - shift * SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,296 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded cache of search results for a {@link KanjiList}, for use when the
+ * same drawing is likely to be searched for repeatedly. Drawings are
+ * identified by their normalised strokes
+ * ({@link KanjiInfo#getFullSummary()}), so a repeated drawing costs a hash
+ * lookup instead of a search.
+ * <p>
+ * Results are discarded when the list changes, when the cache is full (least
+ * recently used first), and when they reach a maximum age. The cache is split
+ * into independently locked segments, so threads searching for different
+ * drawings rarely wait for each other. If two threads search for the same
+ * drawing at once, both may do the search.
+ */
+public class MatchCache
+{
+	/**
+	 * Maximum number of segments.
+	 */
+	private final static int MAX_SEGMENTS = 16;
+
+	/**
+	 * Caches are not split into segments smaller than this.
+	 */
+	private final static int MIN_SEGMENT_SIZE = 8;
+
+	private final KanjiList list;
+	private final long maxAgeNanos;
+	private final Segment[] segments;
+
+	private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong(),
+		evictions = new AtomicLong();
+
+	/**
+	 * Cache key.
+	 */
+	private static class Key
+	{
+		private final String summary;
+		private final KanjiInfo.MatchAlgorithm algo;
+		private final int max;
+		private final int hash;
+
+		private Key(String summary, KanjiInfo.MatchAlgorithm algo, int max)
+		{
+			this.summary = summary;
+			this.algo = algo;
+			this.max = max;
+			int h = (summary.hashCode() * 31 + algo.ordinal()) * 31 + max;
+			// Spread bits so that low bits (used for segments) vary
+			hash = h ^ (h >>> 16);
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return hash;
+		}
+
+		@Override
+		public boolean equals(Object obj)
+		{
+			if(!(obj instanceof Key))
+			{
+				return false;
+			}
+			Key other = (Key)obj;
+			return hash == other.hash && algo == other.algo && max == other.max
+				&& summary.equals(other.summary);
+		}
+	}
+
+	/**
+	 * Cached results.
+	 */
+	private static class Cached
+	{
+		private final KanjiMatch[] matches;
+		private final int version;
+		private final long time;
+
+		private Cached(KanjiMatch[] matches, int version, long time)
+		{
+			this.matches = matches;
+			this.version = version;
+			this.time = time;
+		}
+	}
+
+	/**
+	 * Part of the cache, with its own lock and least-recently-used order.
+	 */
+	private class Segment extends LinkedHashMap<Key, Cached>
+	{
+		private static final long serialVersionUID = 1L;
+
+		private final int capacity;
+
+		private Segment(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Cached> eldest)
+		{
+			if(size() > capacity)
+			{
+				evictions.incrementAndGet();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * @param list List to search
+	 * @param maxEntries Maximum number of results to keep (approximate, as
+	 *   each segment has an equal share)
+	 * @param maxAgeMillis Maximum age of results in milliseconds, or 0 for no
+	 *   limit
+	 * @throws IllegalArgumentException If maxEntries is less than 1 or
+	 *   maxAgeMillis is negative
+	 */
+	public MatchCache(KanjiList list, int maxEntries, long maxAgeMillis)
+		throws IllegalArgumentException
+	{
+		if(maxEntries < 1)
+		{
+			throw new IllegalArgumentException("Invalid max entries: " + maxEntries);
+		}
+		if(maxAgeMillis < 0)
+		{
+			throw new IllegalArgumentException("Invalid max age: " + maxAgeMillis);
+		}
+		this.list = list;
+		this.maxAgeNanos = maxAgeMillis == 0 ? Long.MAX_VALUE
+			: maxAgeMillis * 1000000L;
+
+		// Use a power of two so segments can be picked with a mask
+		int count = 1;
+		while(count * 2 <= Math.min(MAX_SEGMENTS, maxEntries / MIN_SEGMENT_SIZE))
+		{
+			count *= 2;
+		}
+		segments = new Segment[count];
+		for(int i=0; i<count; i++)
+		{
+			segments[i] = new Segment((maxEntries + count - 1) / count);
+		}
+	}
+
+	/**
+	 * Searches for closest matches, using cached results if available. See
+	 * {@link KanjiList#getTopMatches(KanjiInfo, KanjiInfo.MatchAlgorithm, int, KanjiList.Progress)}.
+	 * @param compare Kanji to compare
+	 * @param algo Match algorithm to use
+	 * @param max Maximum number of results to return
+	 * @return Top matches above search threshold (no more than max)
+	 * @throws IllegalArgumentException If max is less than 1
+	 */
+	public KanjiMatch[] getTopMatches(KanjiInfo compare,
+		KanjiInfo.MatchAlgorithm algo, int max) throws IllegalArgumentException
+	{
+		return getTopMatches(compare, algo, max, null);
+	}
+
+	/**
+	 * Searches for closest matches, using cached results if available and
+	 * otherwise stopping early if cancelled.
+	 * @param compare Kanji to compare
+	 * @param algo Match algorithm to use
+	 * @param max Maximum number of results to return
+	 * @param cancel Cancellation token (null if not needed)
+	 * @return Top matches above search threshold (no more than max)
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws CancellationException If the search was cancelled
+	 */
+	public KanjiMatch[] getTopMatches(KanjiInfo compare,
+		KanjiInfo.MatchAlgorithm algo, int max, KanjiList.Cancellation cancel)
+		throws IllegalArgumentException, CancellationException
+	{
+		Key key = new Key(compare.getFullSummary(), algo, max);
+		Segment segment = segments[key.hash & (segments.length - 1)];
+
+		int version = list.getVersion();
+		long now = System.nanoTime();
+		synchronized(segment)
+		{
+			Cached cached = segment.get(key);
+			if(cached != null)
+			{
+				if(cached.version == version && now - cached.time < maxAgeNanos)
+				{
+					hits.incrementAndGet();
+					return cached.matches.clone();
+				}
+				segment.remove(key);
+				evictions.incrementAndGet();
+			}
+		}
+		misses.incrementAndGet();
+
+		KanjiMatch[] matches = list.getTopMatches(compare, algo, max, null, cancel);
+
+		// Only keep results if the list did not change during the search
+		if((version & 1) == 0 && list.getVersion() == version)
+		{
+			synchronized(segment)
+			{
+				segment.put(key, new Cached(matches.clone(), version, now));
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * Discards all cached results. Statistics are not reset.
+	 */
+	public void clear()
+	{
+		for(Segment segment : segments)
+		{
+			synchronized(segment)
+			{
+				segment.clear();
+			}
+		}
+	}
+
+	/**
+	 * @return Number of results currently cached (including any that have
+	 *   expired but not yet been discarded)
+	 */
+	public int size()
+	{
+		int size = 0;
+		for(Segment segment : segments)
+		{
+			synchronized(segment)
+			{
+				size += segment.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return Number of searches answered from the cache
+	 */
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	/**
+	 * @return Number of searches that were not in the cache
+	 */
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	/**
+	 * @return Number of results discarded because the cache was full, they
+	 *   were too old, or the list changed
+	 */
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+}
@@ -0,0 +1,249 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+/**
+ * Fixed-size heap that keeps the best K (score, candidate index) entries seen
+ * during a search, plus the best score so far. {@link KanjiMatch} objects are
+ * only created for the final results.
+ * <p>
+ * Entries are ordered the same way as {@link KanjiMatch#compareTo(KanjiMatch)}
+ * (score descending, then by kanji string) so results are identical to
+ * sorting every match.
+ */
+class MatchHeap
+{
+	/**
+	 * Results below this proportion of the best score are not returned.
+	 */
+	final static float CUTOFF = 0.75f;
+
+	/**
+	 * Buckets being searched; candidate indexes run through all kanji in the
+	 * first bucket, then the second, etc.
+	 */
+	private StrokeBucket[] candidates;
+
+	// Min-heap on 'worse', so the root is the worst entry kept
+	private float[] scores;
+	private int[] indexes;
+	private int size;
+
+	private float bestScore = Float.NEGATIVE_INFINITY;
+
+	/**
+	 * @param capacity Maximum number of entries to keep
+	 * @param candidates Buckets that indexes refer to
+	 */
+	MatchHeap(int capacity, StrokeBucket[] candidates)
+	{
+		this.candidates = candidates;
+		scores = new float[capacity];
+		indexes = new int[capacity];
+	}
+
+	/**
+	 * @return Best score added so far, or negative infinity if none
+	 */
+	float getBestScore()
+	{
+		return bestScore;
+	}
+
+	/**
+	 * Gets the lowest score that could still change the results. Any
+	 * candidate that scores below this would be discarded by
+	 * {@link #add(float, int)}.
+	 * @return Threshold score, or negative infinity if anything would be kept
+	 */
+	float getThreshold()
+	{
+		float threshold = bestScore * CUTOFF;
+		if(size == scores.length && size > 0 && scores[0] > threshold)
+		{
+			// Full, so candidates must at least equal the worst entry kept
+			threshold = scores[0];
+		}
+		return threshold;
+	}
+
+	/**
+	 * @return Number of entries currently kept
+	 */
+	int size()
+	{
+		return size;
+	}
+
+	/**
+	 * Considers a candidate for inclusion.
+	 * @param score Match score
+	 * @param index Candidate index
+	 */
+	void add(float score, int index)
+	{
+		if(score > bestScore)
+		{
+			bestScore = score;
+		}
+		else if(score < bestScore * CUTOFF)
+		{
+			// Best score can only increase, so this will never be returned
+			return;
+		}
+
+		if(size < scores.length)
+		{
+			// Add at end and sift up
+			int pos = size++;
+			while(pos > 0)
+			{
+				int parent = (pos - 1) >> 1;
+				if(!isWorse(score, index, scores[parent], indexes[parent]))
+				{
+					break;
+				}
+				scores[pos] = scores[parent];
+				indexes[pos] = indexes[parent];
+				pos = parent;
+			}
+			scores[pos] = score;
+			indexes[pos] = index;
+		}
+		else if(size > 0 && isWorse(scores[0], indexes[0], score, index))
+		{
+			// Replace the worst entry and sift down
+			siftDown(score, index, size);
+		}
+	}
+
+	/**
+	 * Adds all entries from another heap (which must use the same candidate
+	 * buckets).
+	 * @param other Other heap
+	 */
+	void addAll(MatchHeap other)
+	{
+		for(int i=0; i<other.size; i++)
+		{
+			add(other.scores[i], other.indexes[i]);
+		}
+	}
+
+	/**
+	 * Places a value at the root and sifts it down into the first
+	 * <code>limit</code> entries.
+	 * @param score Score
+	 * @param index Candidate index
+	 * @param limit Heap size to consider
+	 */
+	private void siftDown(float score, int index, int limit)
+	{
+		int pos = 0;
+		while(true)
+		{
+			int child = pos * 2 + 1;
+			if(child >= limit)
+			{
+				break;
+			}
+			if(child + 1 < limit && isWorse(scores[child + 1], indexes[child + 1],
+				scores[child], indexes[child]))
+			{
+				child++;
+			}
+			if(!isWorse(scores[child], indexes[child], score, index))
+			{
+				break;
+			}
+			scores[pos] = scores[child];
+			indexes[pos] = indexes[child];
+			pos = child;
+		}
+		scores[pos] = score;
+		indexes[pos] = index;
+	}
+
+	/**
+	 * @param scoreA Score A
+	 * @param indexA Candidate index A
+	 * @param scoreB Score B
+	 * @param indexB Candidate index B
+	 * @return True if A comes after B in results order
+	 */
+	private boolean isWorse(float scoreA, int indexA, float scoreB, int indexB)
+	{
+		if(scoreA != scoreB)
+		{
+			return scoreA < scoreB;
+		}
+		return getCandidate(indexA).getKanji().compareTo(
+			getCandidate(indexB).getKanji()) > 0;
+	}
+
+	/**
+	 * @param index Candidate index
+	 * @return Kanji
+	 */
+	private KanjiInfo getCandidate(int index)
+	{
+		for(StrokeBucket bucket : candidates)
+		{
+			if(index < bucket.size)
+			{
+				return bucket.kanji[index];
+			}
+			index -= bucket.size;
+		}
+		throw new ArrayIndexOutOfBoundsException(index);
+	}
+
+	/**
+	 * Obtains the final results, in order, excluding any below the cutoff
+	 * proportion of the best score. Empties the heap.
+	 * @return Results
+	 */
+	KanjiMatch[] getResults()
+	{
+		// Heap-sort: repeatedly move the worst to the end
+		int count = size;
+		for(int end = count - 1; end > 0; end--)
+		{
+			float score = scores[end];
+			int index = indexes[end];
+			scores[end] = scores[0];
+			indexes[end] = indexes[0];
+			siftDown(score, index, end);
+		}
+		size = 0;
+
+		// Now in best-first order; stop at cutoff
+		int results = 0;
+		while(results < count && scores[results] >= bestScore * CUTOFF)
+		{
+			results++;
+		}
+		KanjiMatch[] matches = new KanjiMatch[results];
+		for(int i=0; i<results; i++)
+		{
+			matches[i] = new KanjiMatch(getCandidate(indexes[i]), scores[i]);
+		}
+		return matches;
+	}
+}
@@ -0,0 +1,435 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Recognises a kanji while it is being drawn, one stroke at a time. Each
+ * search gives the same results as building a new {@link KanjiInfo} from
+ * all the strokes and calling
+ * {@link KanjiList#getTopMatches(KanjiInfo, KanjiInfo.MatchAlgorithm, int, KanjiList.Progress)},
+ * but some work is reused:
+ * <ul>
+ * <li>Strokes are only normalised again when a new stroke extends the
+ *   bounds of the drawing.</li>
+ * <li>For {@link KanjiInfo.MatchAlgorithm#STRICT}, which only considers
+ *   kanji with the same number of strokes, the session keeps each
+ *   candidate's score from the last search with each stroke count. When the
+ *   drawing is searched again with that stroke count (for example, after
+ *   the user redraws the last stroke), only the stroke features that have
+ *   changed since are scored. Nothing is scored until a search runs.</li>
+ * </ul>
+ * This only helps when a stroke count is searched again, i.e. when the user
+ * redraws, undoes or clears strokes. Each new stroke gives a stroke count
+ * that has not been searched yet, so its candidates are scored from scratch
+ * exactly as in a new search: drawing a kanji stroke by stroke takes as long
+ * with a session as without.
+ * <p>
+ * All methods are synchronized, so a session can be updated from one thread
+ * and searched from another.
+ */
+public class RecognitionSession
+{
+	private final static String DRAWN_KANJI = "?";
+
+	/**
+	 * Number of kanji scored from scratch between checks for cancellation.
+	 */
+	private final static int SCORE_BATCH = 64;
+
+	private final KanjiList list;
+
+	private final List<InputStroke> input = new ArrayList<InputStroke>();
+	private InputStroke.Bounds bounds = new InputStroke.Bounds();
+	private final List<Stroke> strokes = new ArrayList<Stroke>();
+
+	/**
+	 * Drawn kanji, or null if it needs creating again.
+	 */
+	private KanjiInfo drawn;
+
+	/**
+	 * STRICT totals (see {@link StrictComparer#getTotals}), indexed by
+	 * stroke count. For each stroke count searched so far, this holds the
+	 * bucket and the drawn kanji that the totals were calculated from (null if
+	 * they are incomplete), then the total for each kanji in the bucket.
+	 */
+	private StrokeBucket[] totalBuckets = new StrokeBucket[0],
+		totalDrawn = new StrokeBucket[0];
+	private int[][] totals = new int[0][];
+
+	/**
+	 * Comparer used to score a bucket from scratch, and space for a batch of
+	 * its totals.
+	 */
+	private final StrictComparer comparer = new StrictComparer();
+	private final int[] batch = new int[SCORE_BATCH];
+
+	/**
+	 * @param list List of kanji to search
+	 */
+	public RecognitionSession(KanjiList list)
+	{
+		this.list = list;
+	}
+
+	/**
+	 * Adds a stroke to the drawing.
+	 * @param stroke New stroke
+	 */
+	public synchronized void addStroke(InputStroke stroke)
+	{
+		input.add(stroke);
+		if(bounds.add(stroke))
+		{
+			// Bounds changed, so all strokes must be converted again
+			strokes.clear();
+			for(InputStroke previous : input)
+			{
+				strokes.add(bounds.convert(previous));
+			}
+		}
+		else
+		{
+			strokes.add(bounds.convert(stroke));
+		}
+		drawn = null;
+	}
+
+	/**
+	 * Removes the most recent stroke (e.g. for undo). Does nothing if there
+	 * are no strokes.
+	 */
+	public synchronized void removeLastStroke()
+	{
+		if(input.isEmpty())
+		{
+			return;
+		}
+		InputStroke[] remaining = input.subList(0, input.size() - 1).toArray(
+			new InputStroke[input.size() - 1]);
+		clear();
+		for(InputStroke stroke : remaining)
+		{
+			addStroke(stroke);
+		}
+	}
+
+	/**
+	 * Removes all strokes. STRICT scores are kept, and will be adjusted if the
+	 * new drawing is similar.
+	 */
+	public synchronized void clear()
+	{
+		input.clear();
+		strokes.clear();
+		bounds = new InputStroke.Bounds();
+		drawn = null;
+	}
+
+	/**
+	 * Sets the drawing to the given strokes. If the current strokes are the
+	 * start of the new ones (the same objects), the extra strokes are added;
+	 * otherwise this is the same as {@link #clear()} followed by adding each
+	 * stroke.
+	 * @param newStrokes All strokes in drawing
+	 */
+	public synchronized void setStrokes(InputStroke[] newStrokes)
+	{
+		boolean prefix = newStrokes.length >= input.size();
+		for(int i=0; prefix && i<input.size(); i++)
+		{
+			prefix = input.get(i) == newStrokes[i];
+		}
+		if(!prefix)
+		{
+			clear();
+		}
+		for(int i=input.size(); i<newStrokes.length; i++)
+		{
+			addStroke(newStrokes[i]);
+		}
+	}
+
+	/**
+	 * @return Number of strokes in drawing
+	 */
+	public synchronized int getStrokeCount()
+	{
+		return input.size();
+	}
+
+	/**
+	 * @return Drawn kanji (with normalised strokes), as used for searching
+	 */
+	public synchronized KanjiInfo getKanji()
+	{
+		if(drawn == null)
+		{
+			drawn = new KanjiInfo(DRAWN_KANJI,
+				strokes.toArray(new Stroke[strokes.size()]));
+		}
+		return drawn;
+	}
+
+	/**
+	 * Searches for the closest matches to the current drawing.
+	 * @param algo Match algorithm to use
+	 * @param max Maximum number of results to return
+	 * @param progress Progress reporter (null if not needed)
+	 * @return Top matches above search threshold (no more than max)
+	 * @throws IllegalArgumentException If max is less than 1
+	 */
+	public KanjiMatch[] getTopMatches(KanjiInfo.MatchAlgorithm algo,
+		int max, KanjiList.Progress progress) throws IllegalArgumentException
+	{
+		return getTopMatches(algo, max, progress, null);
+	}
+
+	/**
+	 * Searches for the closest matches to the current drawing, stopping early
+	 * if cancelled.
+	 * @param algo Match algorithm to use
+	 * @param max Maximum number of results to return
+	 * @param progress Progress reporter (null if not needed)
+	 * @param cancel Cancellation token (null if not needed)
+	 * @return Top matches above search threshold (no more than max)
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws CancellationException If the search was cancelled
+	 */
+	public synchronized KanjiMatch[] getTopMatches(KanjiInfo.MatchAlgorithm algo,
+		int max, KanjiList.Progress progress, KanjiList.Cancellation cancel)
+		throws IllegalArgumentException, CancellationException
+	{
+		if(algo != KanjiInfo.MatchAlgorithm.STRICT)
+		{
+			return list.getTopMatches(getKanji(), algo, max, progress, cancel);
+		}
+		if(max < 1)
+		{
+			throw new IllegalArgumentException("Invalid max results: " + max);
+		}
+
+		int count = strokes.size();
+		StrokeBucket[] buckets = list.getBuckets();
+		StrokeBucket bucket = count == 0 || count >= buckets.length
+			? null : buckets[count];
+		if(bucket == null)
+		{
+			if(progress != null)
+			{
+				progress.progress(0, 0);
+			}
+			return new KanjiMatch[0];
+		}
+
+		if(progress != null)
+		{
+			progress.progress(0, bucket.size);
+		}
+		int[] scores = updateTotals(bucket, cancel);
+		MatchHeap heap = new MatchHeap(Math.min(max, bucket.size),
+			new StrokeBucket[] { bucket });
+		for(int i=0; i<bucket.size; i++)
+		{
+			heap.add(StrictComparer.getFinalScore(scores[i], count), i);
+		}
+		if(progress != null)
+		{
+			progress.progress(bucket.size, bucket.size);
+		}
+		return heap.getResults();
+	}
+
+	/**
+	 * Searches for the closest matches to the current drawing using several
+	 * algorithms at once. STRICT results come from the session; the others
+	 * are found with a single
+	 * {@link KanjiList#getTopMatches(KanjiInfo, EnumSet, int, KanjiList.Progress)}
+	 * search.
+	 * @param algos Match algorithms to use
+	 * @param max Maximum number of results to return for each algorithm
+	 * @param progress Progress reporter (null if not needed)
+	 * @return Top matches above search threshold for each algorithm
+	 * @throws IllegalArgumentException If max is less than 1
+	 */
+	public Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> getTopMatches(
+		EnumSet<KanjiInfo.MatchAlgorithm> algos, int max,
+		KanjiList.Progress progress) throws IllegalArgumentException
+	{
+		return getTopMatches(algos, max, progress, null);
+	}
+
+	/**
+	 * Searches for the closest matches to the current drawing using several
+	 * algorithms at once, stopping early if cancelled. See
+	 * {@link #getTopMatches(EnumSet, int, KanjiList.Progress)}.
+	 * @param algos Match algorithms to use
+	 * @param max Maximum number of results to return for each algorithm
+	 * @param progress Progress reporter (null if not needed)
+	 * @param cancel Cancellation token (null if not needed)
+	 * @return Top matches above search threshold for each algorithm
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws CancellationException If the search was cancelled
+	 */
+	public synchronized Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> getTopMatches(
+		EnumSet<KanjiInfo.MatchAlgorithm> algos, int max,
+		KanjiList.Progress progress, KanjiList.Cancellation cancel)
+		throws IllegalArgumentException, CancellationException
+	{
+		EnumSet<KanjiInfo.MatchAlgorithm> others = algos.clone();
+		boolean strict = others.remove(KanjiInfo.MatchAlgorithm.STRICT);
+		if(others.isEmpty())
+		{
+			Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> results =
+				new EnumMap<KanjiInfo.MatchAlgorithm, KanjiMatch[]>(
+					KanjiInfo.MatchAlgorithm.class);
+			if(strict)
+			{
+				results.put(KanjiInfo.MatchAlgorithm.STRICT, getTopMatches(
+					KanjiInfo.MatchAlgorithm.STRICT, max, progress, cancel));
+			}
+			return results;
+		}
+
+		Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> results =
+			list.getTopMatches(getKanji(), others, max, progress, cancel);
+		if(strict)
+		{
+			results.put(KanjiInfo.MatchAlgorithm.STRICT, getTopMatches(
+				KanjiInfo.MatchAlgorithm.STRICT, max, null, cancel));
+		}
+		return results;
+	}
+
+	/**
+	 * Brings the STRICT totals up to date for the bucket with the same stroke
+	 * count as the drawing. If the totals were last calculated for a similar
+	 * drawing, only the features that changed are scored again.
+	 * @param bucket Bucket
+	 * @param cancel Cancellation token (null if not needed)
+	 * @return Total for each kanji in bucket
+	 * @throws CancellationException If cancelled (between strokes or batches)
+	 */
+	private int[] updateTotals(StrokeBucket bucket, KanjiList.Cancellation cancel)
+		throws CancellationException
+	{
+		StrokeBucket newDrawn = getKanji().getColumns();
+		int count = newDrawn.strokeCount;
+		if(totalBuckets.length <= count)
+		{
+			totalBuckets = Arrays.copyOf(totalBuckets, count + 1);
+			totalDrawn = Arrays.copyOf(totalDrawn, count + 1);
+			totals = Arrays.copyOf(totals, count + 1);
+		}
+
+		// Count changed features, unless the totals can't be used at all
+		StrokeBucket previous = totalDrawn[count];
+		boolean restart = true;
+		if(previous != null && totalBuckets[count] == bucket)
+		{
+			if(previous == newDrawn)
+			{
+				return totals[count];
+			}
+			int changed = 0;
+			for(int stroke=0; stroke<count; stroke++)
+			{
+				for(int feature=0; feature<StrokeBucket.FEATURES_PER_STROKE; feature++)
+				{
+					if(getFeature(previous, stroke, feature)
+						!= getFeature(newDrawn, stroke, feature))
+					{
+						changed++;
+					}
+				}
+			}
+			// Adjusting one feature takes a pass through the bucket, about as
+			// long as scoring all four features of a stroke
+			restart = changed * 2 > count;
+		}
+
+		// Totals are incomplete until finished
+		totalDrawn[count] = null;
+		int[] scores = totals[count];
+		if(restart)
+		{
+			totalBuckets[count] = bucket;
+			if(scores == null || scores.length != bucket.size)
+			{
+				scores = new int[bucket.size];
+				totals[count] = scores;
+			}
+			comparer.init(getKanji());
+			for(int start=0; start<bucket.size; start+=SCORE_BATCH)
+			{
+				checkCancel(cancel);
+				int end = Math.min(start + SCORE_BATCH, bucket.size);
+				comparer.getTotals(bucket, start, end, batch);
+				System.arraycopy(batch, 0, scores, start, end - start);
+			}
+		}
+		else
+		{
+			for(int stroke=0; stroke<count; stroke++)
+			{
+				checkCancel(cancel);
+				for(int feature=0; feature<StrokeBucket.FEATURES_PER_STROKE; feature++)
+				{
+					int oldValue = getFeature(previous, stroke, feature),
+						newValue = getFeature(newDrawn, stroke, feature);
+					if(oldValue != newValue
+						&& !(stroke == 0 && feature == StrokeBucket.FEATURE_MOVE))
+					{
+						StrictComparer.changeFeatureScores(bucket, stroke, feature,
+							oldValue, newValue, scores);
+					}
+				}
+			}
+		}
+		totalDrawn[count] = newDrawn;
+		return scores;
+	}
+
+	/**
+	 * @param cancel Cancellation token (null if not needed)
+	 * @throws CancellationException If cancelled
+	 */
+	private static void checkCancel(KanjiList.Cancellation cancel)
+		throws CancellationException
+	{
+		if(cancel != null && cancel.isCancelled())
+		{
+			throw new CancellationException();
+		}
+	}
+
+	/**
+	 * @param drawn Drawn kanji columns
+	 * @param stroke Stroke index
+	 * @param feature Feature index
+	 * @return Value of the feature
+	 */
+	private static int getFeature(StrokeBucket drawn, int stroke, int feature)
+	{
+		return drawn.features[drawn.getFeatureColumn(stroke, feature)];
+	}
+}
@@ -0,0 +1,455 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends reports (form-encoded POST bodies) to a server from a single
+ * background thread; this is the default {@link StatsReporter} transport.
+ * Reports wait in a bounded queue in memory; when it is full, the oldest
+ * waiting report is dropped. To keep reports until they are sent, even
+ * across restarts, use {@link ReportSpool} instead.
+ * <p>
+ * With a batch size of 1, each report is sent as its own form POST. With a
+ * larger batch size, reports that arrive close together (within the linger
+ * time) are sent in a single POST with one report per line, which the server
+ * must support. Either way, requests are made one at a time and the
+ * connection is kept alive between them.
+ */
+public class ReportSender implements StatsReporter.Transport
+{
+	/**
+	 * Connect and read timeout in milliseconds.
+	 */
+	private final static int TIMEOUT = 10000;
+
+	private final String url;
+	private final int batchSize, capacity;
+	private final long lingerNanos;
+
+	private final ConcurrentLinkedQueue<Report> queue =
+		new ConcurrentLinkedQueue<Report>();
+	/** Dropped reports whose callbacks have not been told yet */
+	private final ConcurrentLinkedQueue<Report> droppedReports =
+		new ConcurrentLinkedQueue<Report>();
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicLong sent = new AtomicLong(), failed = new AtomicLong(),
+		dropped = new AtomicLong(), requests = new AtomicLong();
+
+	private final Thread thread;
+	private volatile boolean stopped;
+
+	/**
+	 * Result of a request.
+	 */
+	enum Outcome
+	{
+		/** Server accepted the reports */
+		ACCEPTED,
+		/** Server responded, but not with OK */
+		NOT_OK,
+		/** Server rejected the request with a client error (4xx) */
+		REJECTED,
+		/** Request failed, or server error */
+		FAILED
+	}
+
+	/**
+	 * A report waiting to be sent.
+	 */
+	private static class Report
+	{
+		private final String post;
+		private final StatsReporter.Callback callback;
+
+		private Report(String post, StatsReporter.Callback callback)
+		{
+			this.post = post;
+			this.callback = callback;
+		}
+
+		private void end(boolean ok)
+		{
+			ReportSender.end(callback, ok);
+		}
+	}
+
+	/**
+	 * Tells a callback a report has started. Exceptions from the callback are
+	 * printed rather than passed on, so they cannot stop reports being sent.
+	 * @param callback Callback, or null if none
+	 */
+	static void start(StatsReporter.Callback callback)
+	{
+		if(callback != null)
+		{
+			try
+			{
+				callback.phoneHomeStart();
+			}
+			catch(RuntimeException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Tells a callback the result of a report. Exceptions from the callback
+	 * are printed rather than passed on.
+	 * @param callback Callback, or null if none
+	 * @param ok True if the report was sent
+	 */
+	static void end(StatsReporter.Callback callback, boolean ok)
+	{
+		if(callback != null)
+		{
+			try
+			{
+				callback.phoneHomeEnd(ok);
+			}
+			catch(RuntimeException e)
+			{
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * @param url URL to POST reports to
+	 * @param batchSize Maximum number of reports per request
+	 * @param lingerMillis Time to wait for more reports to fill a batch
+	 * @param capacity Maximum number of reports waiting to be sent
+	 * @throws IllegalArgumentException If batchSize or capacity is less than 1,
+	 *   or lingerMillis is negative
+	 */
+	public ReportSender(String url, int batchSize, long lingerMillis,
+		int capacity) throws IllegalArgumentException
+	{
+		if(batchSize < 1 || capacity < 1 || lingerMillis < 0)
+		{
+			throw new IllegalArgumentException("Invalid batch size (" + batchSize
+				+ "), capacity (" + capacity + ") or linger (" + lingerMillis + ")");
+		}
+		this.url = url;
+		this.batchSize = batchSize;
+		this.capacity = capacity;
+		this.lingerNanos = lingerMillis * 1000000L;
+
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				sendLoop();
+			}
+		}, "Kanji stats reporter");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues a report. The callback (if any) is told the report has started
+	 * straight away, and told the result once it has been sent or dropped;
+	 * that happens on the background thread, except for reports dropped after
+	 * shutdown. Exceptions thrown by callbacks are printed and ignored.
+	 * @param post Report as form-encoded POST body
+	 * @param callback Callback, or null if not required
+	 */
+	@Override
+	public void send(String post, StatsReporter.Callback callback)
+	{
+		start(callback);
+		Report report = new Report(post, callback);
+		queue.offer(report);
+		if(queued.incrementAndGet() > capacity)
+		{
+			// Full: drop the oldest report instead
+			Report oldest = queue.poll();
+			if(oldest != null)
+			{
+				queued.decrementAndGet();
+				dropped.incrementAndGet();
+				// Its callback is told on the background thread
+				droppedReports.offer(oldest);
+			}
+		}
+		LockSupport.unpark(thread);
+
+		// After shutdown the background thread may already have finished, so
+		// deal with this report (and any dropped) here
+		if(stopped)
+		{
+			if(queue.remove(report))
+			{
+				queued.decrementAndGet();
+				dropped.incrementAndGet();
+				report.end(false);
+			}
+			endDropped();
+		}
+	}
+
+	/**
+	 * Stops the background thread after it has sent any reports already
+	 * queued. Reports sent after this are dropped.
+	 */
+	@Override
+	public void shutdown()
+	{
+		stopped = true;
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Waits for the background thread to stop after {@link #shutdown()}.
+	 * @param millis Maximum time to wait
+	 * @return True if it has stopped
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean awaitTermination(long millis) throws InterruptedException
+	{
+		thread.join(millis);
+		return !thread.isAlive();
+	}
+
+	/**
+	 * @return Number of reports waiting to be sent
+	 */
+	public int getQueueLength()
+	{
+		return Math.max(0, queued.get());
+	}
+
+	/**
+	 * @return Number of reports the server accepted
+	 */
+	public long getSent()
+	{
+		return sent.get();
+	}
+
+	/**
+	 * @return Number of reports sent in requests that failed
+	 */
+	public long getFailed()
+	{
+		return failed.get();
+	}
+
+	/**
+	 * @return Number of reports dropped because the queue was full (or after
+	 *   shutdown)
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of requests made
+	 */
+	public long getRequests()
+	{
+		return requests.get();
+	}
+
+	/**
+	 * Takes a report from the queue, if there is one.
+	 * @return Report or null
+	 */
+	private Report take()
+	{
+		Report report = queue.poll();
+		if(report != null)
+		{
+			queued.decrementAndGet();
+		}
+		return report;
+	}
+
+	/**
+	 * Tells the callbacks of reports that were dropped from the queue.
+	 */
+	private void endDropped()
+	{
+		while(true)
+		{
+			Report report = droppedReports.poll();
+			if(report == null)
+			{
+				return;
+			}
+			report.end(false);
+		}
+	}
+
+	/**
+	 * Main loop of the background thread.
+	 */
+	private void sendLoop()
+	{
+		List<Report> batch = new ArrayList<Report>(batchSize);
+		while(true)
+		{
+			endDropped();
+			Report first = take();
+			if(first == null)
+			{
+				if(stopped)
+				{
+					endDropped();
+					return;
+				}
+				LockSupport.park(this);
+				continue;
+			}
+
+			// Wait a little for more reports to fill the batch
+			batch.add(first);
+			long deadline = System.nanoTime() + lingerNanos;
+			while(batch.size() < batchSize)
+			{
+				Report next = take();
+				if(next != null)
+				{
+					batch.add(next);
+					continue;
+				}
+				long wait = deadline - System.nanoTime();
+				if(wait <= 0 || stopped)
+				{
+					break;
+				}
+				LockSupport.parkNanos(this, wait);
+			}
+
+			List<String> posts = new ArrayList<String>(batch.size());
+			for(Report report : batch)
+			{
+				posts.add(report.post);
+			}
+			requests.incrementAndGet();
+			boolean ok = post(url, posts) == Outcome.ACCEPTED;
+			(ok ? sent : failed).addAndGet(batch.size());
+			for(Report report : batch)
+			{
+				report.end(ok);
+			}
+			batch.clear();
+		}
+	}
+
+	/**
+	 * Sends a batch of reports in one request. The connection is kept alive
+	 * for the next request if possible.
+	 * @param url URL to POST reports to
+	 * @param batch Reports (form-encoded POST bodies)
+	 * @return Result of the request
+	 */
+	static Outcome post(String url, List<String> batch)
+	{
+		try
+		{
+			byte[] body;
+			String contentType;
+			if(batch.size() == 1)
+			{
+				body = batch.get(0).getBytes("UTF-8");
+				contentType = "application/x-www-form-urlencoded";
+			}
+			else
+			{
+				StringBuilder lines = new StringBuilder();
+				for(String post : batch)
+				{
+					lines.append(post).append('\n');
+				}
+				body = lines.toString().getBytes("UTF-8");
+				contentType = "text/plain; charset=UTF-8";
+			}
+
+			HttpURLConnection conn = (HttpURLConnection)new URL(url).openConnection();
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			conn.setConnectTimeout(TIMEOUT);
+			conn.setReadTimeout(TIMEOUT);
+			conn.setRequestProperty("Content-Type", contentType);
+			conn.setFixedLengthStreamingMode(body.length);
+			OutputStream output = conn.getOutputStream();
+			output.write(body);
+			output.close();
+
+			InputStream input;
+			try
+			{
+				input = conn.getInputStream();
+			}
+			catch(IOException e)
+			{
+				input = conn.getErrorStream();
+			}
+			int code = conn.getResponseCode();
+			if(input == null)
+			{
+				return getOutcome(code, null);
+			}
+
+			// Read the whole response so the connection can be reused
+			BufferedReader reader = new BufferedReader(
+				new InputStreamReader(input, "UTF-8"));
+			String firstLine = reader.readLine();
+			while(reader.readLine() != null)
+			{
+			}
+			reader.close();
+			return getOutcome(code, firstLine);
+		}
+		catch(IOException e)
+		{
+			return Outcome.FAILED;
+		}
+	}
+
+	/**
+	 * @param code HTTP response code
+	 * @param firstLine First line of response, or null if none
+	 * @return Result of the request
+	 */
+	private static Outcome getOutcome(int code, String firstLine)
+	{
+		if(code == HttpURLConnection.HTTP_OK)
+		{
+			return "OK".equals(firstLine) ? Outcome.ACCEPTED : Outcome.NOT_OK;
+		}
+		// Timeouts and rate limits (408, 429) may work later
+		if(code >= 400 && code < 500 && code != HttpURLConnection.HTTP_CLIENT_TIMEOUT
+			&& code != 429)
+		{
+			return Outcome.REJECTED;
+		}
+		return Outcome.FAILED;
+	}
+}
@@ -0,0 +1,780 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Pattern;
+
+/**
+ * Keeps reports in files on disk until the server accepts them, so that
+ * nothing is lost while the server is unavailable or when the application
+ * restarts. Use with {@link StatsReporter#setTransport(StatsReporter.Transport)}.
+ * <p>
+ * Each report is appended as one line to the current segment file in the
+ * spool directory, which is all {@link #send(String, StatsReporter.Callback)}
+ * does; callbacks are told the report succeeded once it is written. A new
+ * segment is started when the current one reaches its maximum size or age.
+ * A background thread sends reports to the server oldest first, including
+ * those in the current segment, retrying with exponential backoff while it
+ * fails. After each request it records how far through the segment it has
+ * got in a matching <code>.ack</code> file, and it deletes segments once they
+ * are finished with. Segments left over from a previous run are sent first,
+ * starting after the last recorded position.
+ * <p>
+ * Reports the server will never accept are skipped so they don't hold up
+ * later ones: those rejected with a client error (4xx, other than timeouts
+ * and rate limits), and those the server still answers without OK after the
+ * maximum number of attempts. A segment that still cannot be read after that
+ * many attempts is deleted and counted as one rejected report. Network and
+ * server (5xx) errors are retried for as long as it takes. If the spool grows
+ * beyond its maximum size, the oldest segments are deleted by the background
+ * thread (apart from the one being written), as {@link ReportSender} drops
+ * its oldest reports.
+ * <p>
+ * If the application stops between a request and recording its position, the
+ * server may receive those reports twice. Reports are written to the
+ * operating system but not forced to the disk, so they survive the
+ * application stopping but not necessarily the computer.
+ */
+public class ReportSpool implements StatsReporter.Transport
+{
+	private final static String SEGMENT_PREFIX = "reports-",
+		SEGMENT_SUFFIX = ".log", ACK_SUFFIX = ".ack";
+	private final static Pattern SEGMENT_NAME =
+		Pattern.compile("reports-[0-9]{10}\\.log"),
+		ACK_NAME = Pattern.compile("reports-[0-9]{10}\\.ack");
+
+	private final File directory;
+	private final String url;
+	private final int batchSize, maxAttempts;
+	private final long segmentBytes, segmentNanos, maxSpoolBytes,
+		initialBackoffNanos, maxBackoffNanos;
+
+	private final AtomicLong sent = new AtomicLong(), failed = new AtomicLong(),
+		dropped = new AtomicLong(), rejected = new AtomicLong();
+
+	private final Thread thread;
+	private volatile boolean stopped;
+
+	/** Set when a segment is started or finished, so the size is checked */
+	private volatile boolean checkSize = true;
+
+	/** Segment currently being written (synchronized on this) */
+	private File currentFile;
+	private OutputStream current;
+	private long currentSize, currentStarted, nextSequence;
+
+	/**
+	 * Constructs with one report per request, segments of up to 64KB or one
+	 * minute and 16MB in total, a backoff from one second up to five minutes,
+	 * and five attempts for reports the server does not answer with OK.
+	 * @param directory Spool directory (created if necessary)
+	 * @param url URL to POST reports to
+	 * @throws IOException If the directory cannot be created
+	 */
+	public ReportSpool(File directory, String url) throws IOException
+	{
+		this(directory, url, 1, 65536, 60000, 16 * 1024 * 1024, 1000, 300000, 5);
+	}
+
+	/**
+	 * @param directory Spool directory (created if necessary)
+	 * @param url URL to POST reports to
+	 * @param batchSize Maximum number of reports per request (see
+	 *   {@link ReportSender} for the format)
+	 * @param segmentBytes A new segment is started when the current one reaches
+	 *   this size
+	 * @param segmentMillis A new segment is also started when the current one
+	 *   is this old, so that its file can be deleted once it has been sent
+	 * @param maxSpoolBytes Maximum total size of segments; when the spool would
+	 *   go over this once the current segment is full, the oldest are deleted
+	 * @param initialBackoffMillis Delay after the first failed request; it
+	 *   doubles after each further failure
+	 * @param maxBackoffMillis Maximum delay between failed requests
+	 * @param maxAttempts Number of times to send reports that the server
+	 *   answers without OK, or to read a segment, before skipping them
+	 * @throws IOException If the directory cannot be created
+	 * @throws IllegalArgumentException If any number is less than 1, the
+	 *   maximum spool size is less than the segment size, or the maximum
+	 *   backoff is less than the initial backoff
+	 */
+	public ReportSpool(File directory, String url, int batchSize,
+		long segmentBytes, long segmentMillis, long maxSpoolBytes,
+		long initialBackoffMillis, long maxBackoffMillis, int maxAttempts)
+		throws IOException, IllegalArgumentException
+	{
+		if(batchSize < 1 || segmentBytes < 1 || segmentMillis < 1
+			|| maxSpoolBytes < segmentBytes || initialBackoffMillis < 1
+			|| maxBackoffMillis < initialBackoffMillis || maxAttempts < 1)
+		{
+			throw new IllegalArgumentException("Invalid batch size (" + batchSize
+				+ "), segment size (" + segmentBytes + "-" + maxSpoolBytes
+				+ "), segment age (" + segmentMillis + "), backoff ("
+				+ initialBackoffMillis + "-" + maxBackoffMillis + ") or attempts ("
+				+ maxAttempts + ")");
+		}
+		if(!directory.isDirectory() && !directory.mkdirs())
+		{
+			throw new IOException("Cannot create spool directory: " + directory);
+		}
+		this.directory = directory;
+		this.url = url;
+		this.batchSize = batchSize;
+		this.segmentBytes = segmentBytes;
+		this.segmentNanos = segmentMillis * 1000000L;
+		this.maxSpoolBytes = maxSpoolBytes;
+		this.maxAttempts = maxAttempts;
+		this.initialBackoffNanos = initialBackoffMillis * 1000000L;
+		this.maxBackoffNanos = maxBackoffMillis * 1000000L;
+
+		// New segments follow any left over from last time
+		File[] existing = listSegments();
+		nextSequence = existing.length == 0 ? 0
+			: getSequence(existing[existing.length - 1]) + 1;
+
+		// Positions for segments that were deleted are no longer needed
+		File[] acks = directory.listFiles(new FileFilter()
+		{
+			@Override
+			public boolean accept(File file)
+			{
+				return ACK_NAME.matcher(file.getName()).matches();
+			}
+		});
+		if(acks != null)
+		{
+			for(File ack : acks)
+			{
+				String name = ack.getName();
+				if(!new File(directory, name.substring(0,
+					name.length() - ACK_SUFFIX.length()) + SEGMENT_SUFFIX).exists())
+				{
+					ack.delete();
+				}
+			}
+		}
+
+		thread = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				drainLoop();
+			}
+		}, "Kanji stats spool");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Appends a report to the spool. The callback (if any) is told the result
+	 * straight away: success if the report was written, failure if it could
+	 * not be (or after shutdown). Success does not mean the report will reach
+	 * the server; it may still be rejected, or deleted to limit the spool
+	 * size. Exceptions thrown by the callback are printed and ignored.
+	 * @param post Report as form-encoded POST body
+	 * @param callback Callback, or null if not required
+	 */
+	@Override
+	public void send(String post, StatsReporter.Callback callback)
+	{
+		ReportSender.start(callback);
+		boolean ok = append(post);
+		if(!ok)
+		{
+			dropped.incrementAndGet();
+		}
+		ReportSender.end(callback, ok);
+	}
+
+	/**
+	 * Writes a report to the current segment.
+	 * @param post Report
+	 * @return True if written
+	 */
+	private synchronized boolean append(String post)
+	{
+		if(stopped)
+		{
+			return false;
+		}
+		try
+		{
+			// Reports are form-encoded so should not contain line breaks
+			byte[] line = (post.replace("\n", "%0A").replace("\r", "%0D") + "\n")
+				.getBytes("UTF-8");
+			if(current == null)
+			{
+				currentFile = new File(directory, getSegmentName(nextSequence++));
+				current = new FileOutputStream(currentFile, true);
+				currentSize = 0;
+				currentStarted = System.nanoTime();
+				checkSize = true;
+			}
+			current.write(line);
+			currentSize += line.length;
+			if(currentSize >= segmentBytes)
+			{
+				closeCurrent();
+			}
+		}
+		catch(IOException e)
+		{
+			closeCurrent();
+			return false;
+		}
+		LockSupport.unpark(thread);
+		return true;
+	}
+
+	/**
+	 * Closes the current segment, if any, so that no more reports are added.
+	 * Must be called while synchronized.
+	 */
+	private void closeCurrent()
+	{
+		if(current != null)
+		{
+			try
+			{
+				current.close();
+			}
+			catch(IOException e)
+			{
+			}
+			current = null;
+			currentFile = null;
+			checkSize = true;
+		}
+	}
+
+	/**
+	 * Stops writing reports and stops the background thread after its current
+	 * request. Reports that have not been sent stay in the spool directory for
+	 * next time; reports sent after this are dropped.
+	 */
+	@Override
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			stopped = true;
+			closeCurrent();
+		}
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * Waits for the background thread to stop after {@link #shutdown()}.
+	 * @param millis Maximum time to wait
+	 * @return True if it has stopped
+	 * @throws InterruptedException If interrupted while waiting
+	 */
+	public boolean awaitTermination(long millis) throws InterruptedException
+	{
+		thread.join(millis);
+		return !thread.isAlive();
+	}
+
+	/**
+	 * @return Number of reports the server accepted
+	 */
+	public long getSent()
+	{
+		return sent.get();
+	}
+
+	/**
+	 * @return Number of requests that failed (and were retried), including
+	 *   failures to read a segment
+	 */
+	public long getFailed()
+	{
+		return failed.get();
+	}
+
+	/**
+	 * @return Number of reports that could not be written to the spool, or
+	 *   were deleted from it to limit its size
+	 */
+	public long getDropped()
+	{
+		return dropped.get();
+	}
+
+	/**
+	 * @return Number of reports skipped because the server would not accept
+	 *   them, plus one for each segment skipped because it could not be read
+	 */
+	public long getRejected()
+	{
+		return rejected.get();
+	}
+
+	/**
+	 * @return Number of segment files in the spool, including the one
+	 *   currently being written (which is kept until it is full or old
+	 *   enough, even if all its reports have been sent)
+	 */
+	public int getSegmentCount()
+	{
+		return listSegments().length;
+	}
+
+	/**
+	 * @param sequence Sequence number
+	 * @return Segment filename
+	 */
+	private static String getSegmentName(long sequence)
+	{
+		String number = "000000000" + sequence;
+		return SEGMENT_PREFIX + number.substring(number.length() - 10)
+			+ SEGMENT_SUFFIX;
+	}
+
+	/**
+	 * @param segment Segment file
+	 * @return Sequence number
+	 */
+	private static long getSequence(File segment)
+	{
+		String name = segment.getName();
+		return Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+			name.length() - SEGMENT_SUFFIX.length()));
+	}
+
+	/**
+	 * @param segment Segment file
+	 * @return File that records how much of the segment has been sent
+	 */
+	private static File getAckFile(File segment)
+	{
+		String name = segment.getName();
+		return new File(segment.getParentFile(), name.substring(0,
+			name.length() - SEGMENT_SUFFIX.length()) + ACK_SUFFIX);
+	}
+
+	/**
+	 * @return All segment files, oldest first
+	 */
+	private File[] listSegments()
+	{
+		File[] segments = directory.listFiles(new FileFilter()
+		{
+			@Override
+			public boolean accept(File file)
+			{
+				return SEGMENT_NAME.matcher(file.getName()).matches();
+			}
+		});
+		if(segments == null)
+		{
+			return new File[0];
+		}
+		// Names are zero-padded, so this sorts by sequence
+		Arrays.sort(segments);
+		return segments;
+	}
+
+	/**
+	 * Deletes a segment and its recorded position.
+	 * @param segment Segment file
+	 * @return True if the segment was deleted
+	 */
+	private static boolean deleteSegment(File segment)
+	{
+		// The position goes second, so the segment is never sent from the start
+		boolean deleted = segment.delete();
+		getAckFile(segment).delete();
+		return deleted;
+	}
+
+	/**
+	 * Deletes the oldest segments if the spool is over its maximum size, in
+	 * the background thread. The segment being written is never deleted; while
+	 * there is one, the others are limited so that it has room to fill up.
+	 */
+	private void limitSize()
+	{
+		checkSize = false;
+		File open;
+		synchronized(this)
+		{
+			open = currentFile;
+		}
+		File[] segments = listSegments();
+		long total = 0;
+		for(File segment : segments)
+		{
+			if(!segment.equals(open))
+			{
+				total += segment.length();
+			}
+		}
+		long limit = open == null ? maxSpoolBytes : maxSpoolBytes - segmentBytes;
+		for(int i=0; i<segments.length && total > limit; i++)
+		{
+			File segment = segments[i];
+			if(segment.equals(open))
+			{
+				continue;
+			}
+			long length = segment.length();
+			int reports;
+			try
+			{
+				reports = readSegment(segment, -1).reports.size();
+			}
+			catch(IOException e)
+			{
+				reports = 0;
+			}
+			if(deleteSegment(segment))
+			{
+				total -= length;
+				dropped.addAndGet(reports);
+			}
+		}
+	}
+
+	/**
+	 * Main loop of the background thread.
+	 */
+	private void drainLoop()
+	{
+		File unreadable = null;
+		int readAttempts = 0;
+		while(!stopped)
+		{
+			if(checkSize)
+			{
+				limitSize();
+			}
+			File[] segments = listSegments();
+			if(segments.length == 0)
+			{
+				LockSupport.park(this);
+				continue;
+			}
+
+			// The current segment is read up to what has been written so far
+			File segment = segments[0];
+			long limit = -1, started = 0;
+			synchronized(this)
+			{
+				if(segment.equals(currentFile))
+				{
+					if(System.nanoTime() - currentStarted >= segmentNanos)
+					{
+						closeCurrent();
+					}
+					else
+					{
+						limit = currentSize;
+						started = currentStarted;
+					}
+				}
+			}
+
+			Unsent reports;
+			try
+			{
+				reports = readSegment(segment, limit);
+			}
+			catch(IOException e)
+			{
+				failed.incrementAndGet();
+				if(!segment.equals(unreadable))
+				{
+					unreadable = segment;
+					readAttempts = 0;
+				}
+				if(++readAttempts >= maxAttempts)
+				{
+					// Give up on it so it doesn't hold up the rest
+					synchronized(this)
+					{
+						if(segment.equals(currentFile))
+						{
+							closeCurrent();
+						}
+					}
+					if(deleteSegment(segment))
+					{
+						rejected.incrementAndGet();
+					}
+					unreadable = null;
+				}
+				else if(!backoff(initialBackoffNanos))
+				{
+					return;
+				}
+				continue;
+			}
+			unreadable = null;
+
+			if(reports.reports.isEmpty())
+			{
+				if(limit == -1)
+				{
+					deleteSegment(segment);
+				}
+				else
+				{
+					// Wait for more reports, or until the segment is old enough to
+					// close
+					LockSupport.parkNanos(this,
+						started + segmentNanos - System.nanoTime());
+				}
+				continue;
+			}
+			if(!drain(segment, reports))
+			{
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Sends reports from a segment, retrying until they are accepted or
+	 * rejected, and records the position after each request.
+	 * @param segment Segment file
+	 * @param reports Reports read from the segment
+	 * @return True if all were dealt with (or the segment was deleted to limit
+	 *   the spool size), false if stopped first
+	 */
+	private boolean drain(File segment, Unsent reports)
+	{
+		List<String> list = reports.reports;
+		long backoffNanos = initialBackoffNanos;
+		int attempts = 0;
+		for(int start=0; start<list.size(); )
+		{
+			if(stopped)
+			{
+				return false;
+			}
+			List<String> batch = list.subList(start,
+				Math.min(list.size(), start + batchSize));
+			ReportSender.Outcome outcome = ReportSender.post(url, batch);
+			if(outcome == ReportSender.Outcome.NOT_OK && ++attempts >= maxAttempts)
+			{
+				outcome = ReportSender.Outcome.REJECTED;
+			}
+			switch(outcome)
+			{
+			case ACCEPTED:
+			case REJECTED:
+				(outcome == ReportSender.Outcome.ACCEPTED ? sent : rejected).addAndGet(
+					batch.size());
+				start += batch.size();
+				writeAck(segment, reports.ends[start - 1]);
+				backoffNanos = initialBackoffNanos;
+				attempts = 0;
+				break;
+			default:
+				failed.incrementAndGet();
+				if(!backoff(backoffNanos))
+				{
+					return false;
+				}
+				if(!segment.exists())
+				{
+					return true;
+				}
+				backoffNanos = Math.min(backoffNanos * 2, maxBackoffNanos);
+				break;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Waits before retrying. The spool size is checked while waiting, so it
+	 * may delete the segment being sent.
+	 * @param nanos Time to wait
+	 * @return True to retry, false if stopped while waiting
+	 */
+	private boolean backoff(long nanos)
+	{
+		long deadline = System.nanoTime() + nanos;
+		while(!stopped)
+		{
+			if(checkSize)
+			{
+				limitSize();
+			}
+			long wait = deadline - System.nanoTime();
+			if(wait <= 0)
+			{
+				return true;
+			}
+			LockSupport.parkNanos(this, wait);
+		}
+		return false;
+	}
+
+	/**
+	 * Records that a segment has been sent up to the given position. Positions
+	 * are appended as lines, so an incomplete write leaves the previous one.
+	 * If the position can't be written, those reports will be sent again
+	 * after a restart.
+	 * @param segment Segment file
+	 * @param position Offset in bytes after the last report dealt with
+	 */
+	private static void writeAck(File segment, long position)
+	{
+		try
+		{
+			OutputStream out = new FileOutputStream(getAckFile(segment), true);
+			try
+			{
+				out.write((position + "\n").getBytes("UTF-8"));
+			}
+			finally
+			{
+				out.close();
+			}
+		}
+		catch(IOException e)
+		{
+		}
+	}
+
+	/**
+	 * @param segment Segment file
+	 * @return Recorded position, or 0 if none
+	 * @throws IOException Any error reading the file
+	 */
+	private static long readAck(File segment) throws IOException
+	{
+		File ack = getAckFile(segment);
+		if(!ack.exists())
+		{
+			return 0;
+		}
+		String text = new String(readBytes(ack, 0, -1), "UTF-8");
+		int end = text.lastIndexOf('\n');
+		if(end == -1)
+		{
+			return 0;
+		}
+		try
+		{
+			return Long.parseLong(text.substring(text.lastIndexOf('\n', end - 1) + 1,
+				end));
+		}
+		catch(NumberFormatException e)
+		{
+			return 0;
+		}
+	}
+
+	/**
+	 * Reports from a segment that have not been dealt with.
+	 */
+	private static class Unsent
+	{
+		private final List<String> reports = new ArrayList<String>();
+
+		/** Offset in bytes after each report */
+		private long[] ends = new long[16];
+	}
+
+	/**
+	 * Reads the reports from a segment that have not been dealt with. A last
+	 * line with no line break was not completely written, so it is ignored.
+	 * @param segment Segment file
+	 * @param limit Offset to read up to, or -1 for the whole file
+	 * @return Reports in order
+	 * @throws IOException Any error reading the files
+	 */
+	private static Unsent readSegment(File segment, long limit)
+		throws IOException
+	{
+		long start = readAck(segment);
+		byte[] bytes = readBytes(segment, start, limit);
+		Unsent result = new Unsent();
+		int pos = 0;
+		for(int i=0; i<bytes.length; i++)
+		{
+			if(bytes[i] != '\n')
+			{
+				continue;
+			}
+			if(i > pos)
+			{
+				int count = result.reports.size();
+				if(count == result.ends.length)
+				{
+					result.ends = Arrays.copyOf(result.ends, count * 2);
+				}
+				result.reports.add(new String(bytes, pos, i - pos, "UTF-8"));
+				result.ends[count] = start + i + 1;
+			}
+			pos = i + 1;
+		}
+		return result;
+	}
+
+	/**
+	 * @param file File
+	 * @param start Offset to start reading
+	 * @param limit Offset to read up to, or -1 for the end of the file
+	 * @return Bytes read (fewer if the file is shorter)
+	 * @throws IOException Any error reading the file
+	 */
+	private static byte[] readBytes(File file, long start, long limit)
+		throws IOException
+	{
+		RandomAccessFile input = new RandomAccessFile(file, "r");
+		try
+		{
+			long end = input.length();
+			if(limit != -1)
+			{
+				end = Math.min(end, limit);
+			}
+			if(end <= start)
+			{
+				return new byte[0];
+			}
+			byte[] bytes = new byte[(int)(end - start)];
+			input.seek(start);
+			int read = 0;
+			while(read < bytes.length)
+			{
+				int got = input.read(bytes, read, bytes.length - read);
+				if(got == -1)
+				{
+					return Arrays.copyOf(bytes, read);
+				}
+				read += got;
+			}
+			return bytes;
+		}
+		finally
+		{
+			input.close();
+		}
+	}
+}
@@ -0,0 +1,70 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+/**
+ * Receives measurements from {@link KanjiList} loading and searches. Install
+ * an implementation with {@link KanjiList#setMetrics(SearchMetrics)};
+ * {@link SearchStatistics} is a ready-made one.
+ * <p>
+ * Methods are called on the thread doing the work, possibly from many
+ * threads at once, so they must be thread-safe, quick, and must not throw
+ * exceptions. Searches that are cancelled or fail are not reported.
+ */
+public interface SearchMetrics
+{
+	/**
+	 * Called when a list has been loaded from XML or binary data.
+	 * @param kanji Number of kanji in list
+	 * @param nanos Time taken in nanoseconds
+	 */
+	public void listLoaded(int kanji, long nanos);
+
+	/**
+	 * Called for each stroke count that a search includes.
+	 * @param algo Match algorithm
+	 * @param strokeCount Stroke count of candidates
+	 * @param candidates Number of candidates with that stroke count
+	 */
+	public void candidatesGathered(KanjiInfo.MatchAlgorithm algo,
+		int strokeCount, int candidates);
+
+	/**
+	 * Called once per search with the work done by the comparer. A search
+	 * using several algorithms only scores each candidate once for algorithms
+	 * that share a comparer; the work for each stroke count is reported
+	 * against the first of them that includes it.
+	 * @param algo Match algorithm
+	 * @param scored Number of candidates that were fully scored
+	 * @param pruned Number of candidates the comparer gave up on early because
+	 *   they could not be among the results
+	 */
+	public void candidatesScored(KanjiInfo.MatchAlgorithm algo, int scored,
+		int pruned);
+
+	/**
+	 * Called at the end of each search.
+	 * @param algo Match algorithm
+	 * @param nanos Time taken in nanoseconds (for a search using several
+	 *   algorithms, the time for all of them)
+	 * @param results Number of results returned
+	 */
+	public void searchFinished(KanjiInfo.MatchAlgorithm algo, long nanos,
+		int results);
+}
@@ -0,0 +1,474 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs searches in the background for one or more input surfaces (e.g.
+ * drawing panels). Each surface has at most one search that matters: when a
+ * new search is requested for a surface, any earlier search for it is
+ * cancelled, and its results are never delivered even if it had already
+ * finished.
+ * <p>
+ * Results are passed to the callback on a delivery executor of your choice.
+ * For a Swing UI, use an executor that calls
+ * <code>SwingUtilities.invokeLater</code>; if searches are also requested on
+ * the event thread, a result can never arrive after a newer search has been
+ * requested.
+ */
+public class SearchScheduler
+{
+	/**
+	 * Receives the results of a search.
+	 */
+	public interface Callback
+	{
+		/**
+		 * Called with the results of a search that has not been superseded.
+		 * @param drawn Kanji that was searched for
+		 * @param matches Results
+		 */
+		public void searchFinished(KanjiInfo drawn, KanjiMatch[] matches);
+
+		/**
+		 * Called if a search that has not been superseded throws an exception
+		 * or error, or with a {@link CancellationException} if the executor
+		 * discarded it (by cancelling its future) before it ran.
+		 * @param t Exception or error
+		 */
+		public void searchFailed(Throwable t);
+	}
+
+	/**
+	 * Receives the results of a search using several algorithms.
+	 */
+	public interface MultiCallback
+	{
+		/**
+		 * Called with the results of a search that has not been superseded.
+		 * @param drawn Kanji that was searched for
+		 * @param matches Results for each algorithm
+		 */
+		public void searchFinished(KanjiInfo drawn,
+			Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> matches);
+
+		/**
+		 * Called if a search that has not been superseded throws an exception
+		 * or error, or with a {@link CancellationException} if the executor
+		 * discarded it (by cancelling its future) before it ran.
+		 * @param t Exception or error
+		 */
+		public void searchFailed(Throwable t);
+	}
+
+	private final KanjiList list;
+	private final ExecutorService executor;
+	private final Executor delivery;
+
+	/**
+	 * Current generation for each surface with a search in progress.
+	 */
+	private final Map<Object, Generation> current =
+		new HashMap<Object, Generation>();
+
+	/**
+	 * A single search request. Cancelling it stops the search and prevents
+	 * delivery.
+	 */
+	private static class Generation implements KanjiList.Cancellation
+	{
+		private volatile boolean cancelled;
+		private Future<?> future;
+
+		@Override
+		public boolean isCancelled()
+		{
+			return cancelled;
+		}
+
+		private void cancel()
+		{
+			cancelled = true;
+			if(future != null)
+			{
+				// Removes it from the queue if it hasn't started yet
+				future.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Constructs a scheduler that delivers results on the search thread.
+	 * @param list List to search
+	 * @param executor Executor that runs searches
+	 */
+	public SearchScheduler(KanjiList list, ExecutorService executor)
+	{
+		this(list, executor, new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				command.run();
+			}
+		});
+	}
+
+	/**
+	 * @param list List to search
+	 * @param executor Executor that runs searches
+	 * @param delivery Executor used to call the callback
+	 */
+	public SearchScheduler(KanjiList list, ExecutorService executor,
+		Executor delivery)
+	{
+		this.list = list;
+		this.executor = executor;
+		this.delivery = delivery;
+	}
+
+	/**
+	 * Starts a search, cancelling any earlier search for the same surface.
+	 * @param surface Input surface (any object with suitable equals/hashCode)
+	 * @param drawn Kanji to search for
+	 * @param algo Match algorithm
+	 * @param max Maximum number of results
+	 * @param callback Callback that receives results
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws RejectedExecutionException If the executor will not run it
+	 */
+	public void search(Object surface, final KanjiInfo drawn,
+		final KanjiInfo.MatchAlgorithm algo, final int max, Callback callback)
+		throws IllegalArgumentException, RejectedExecutionException
+	{
+		checkMax(max);
+		schedule(surface, new SingleSearch(callback)
+		{
+			@Override
+			public void run(KanjiList.Cancellation cancel)
+			{
+				searched = drawn;
+				results = list.getTopMatches(drawn, algo, max, null, cancel);
+			}
+		});
+	}
+
+	/**
+	 * Starts a search for the current state of a recognition session,
+	 * cancelling any earlier search for the same surface. The session state
+	 * is read when the search runs, so strokes added before then are included.
+	 * @param surface Input surface (any object with suitable equals/hashCode)
+	 * @param session Session to search
+	 * @param algo Match algorithm
+	 * @param max Maximum number of results
+	 * @param callback Callback that receives results
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws RejectedExecutionException If the executor will not run it
+	 */
+	public void search(Object surface, final RecognitionSession session,
+		final KanjiInfo.MatchAlgorithm algo, final int max, Callback callback)
+		throws IllegalArgumentException, RejectedExecutionException
+	{
+		checkMax(max);
+		schedule(surface, new SingleSearch(callback)
+		{
+			@Override
+			public void run(KanjiList.Cancellation cancel)
+			{
+				// Make sure the drawn kanji matches the results
+				synchronized(session)
+				{
+					searched = session.getKanji();
+					results = session.getTopMatches(algo, max, null, cancel);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Starts a search for the current state of a recognition session using
+	 * several algorithms at once (see
+	 * {@link RecognitionSession#getTopMatches(EnumSet, int, KanjiList.Progress)}),
+	 * cancelling any earlier search for the same surface. The session state
+	 * is read when the search runs, so strokes added before then are included.
+	 * @param surface Input surface (any object with suitable equals/hashCode)
+	 * @param session Session to search
+	 * @param algos Match algorithms
+	 * @param max Maximum number of results for each algorithm
+	 * @param callback Callback that receives results
+	 * @throws IllegalArgumentException If max is less than 1
+	 * @throws RejectedExecutionException If the executor will not run it
+	 */
+	public void search(Object surface, final RecognitionSession session,
+		final EnumSet<KanjiInfo.MatchAlgorithm> algos, final int max,
+		final MultiCallback callback)
+		throws IllegalArgumentException, RejectedExecutionException
+	{
+		checkMax(max);
+		schedule(surface, new Search()
+		{
+			private KanjiInfo drawn;
+			private Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> matches;
+
+			@Override
+			public void run(KanjiList.Cancellation cancel)
+			{
+				synchronized(session)
+				{
+					drawn = session.getKanji();
+					matches = session.getTopMatches(algos, max, null, cancel);
+				}
+			}
+
+			@Override
+			public void finished()
+			{
+				callback.searchFinished(drawn, matches);
+			}
+
+			@Override
+			public void failed(Throwable t)
+			{
+				callback.searchFailed(t);
+			}
+		});
+	}
+
+	/**
+	 * Cancels the search for a surface, if any. Its results will not be
+	 * delivered.
+	 * @param surface Input surface
+	 */
+	public synchronized void cancel(Object surface)
+	{
+		Generation generation = current.remove(surface);
+		if(generation != null)
+		{
+			generation.cancel();
+		}
+	}
+
+	/**
+	 * Work done by a search.
+	 */
+	private interface Search
+	{
+		/**
+		 * Runs the search and keeps the results.
+		 * @param cancel Cancellation token
+		 * @throws CancellationException If cancelled
+		 */
+		void run(KanjiList.Cancellation cancel) throws CancellationException;
+
+		/**
+		 * Passes the results to the callback.
+		 */
+		void finished();
+
+		/**
+		 * Passes an exception to the callback.
+		 * @param t Exception
+		 */
+		void failed(Throwable t);
+	}
+
+	/**
+	 * Search using a single algorithm.
+	 */
+	private static abstract class SingleSearch implements Search
+	{
+		private final Callback callback;
+		KanjiInfo searched;
+		KanjiMatch[] results;
+
+		SingleSearch(Callback callback)
+		{
+			this.callback = callback;
+		}
+
+		@Override
+		public void finished()
+		{
+			callback.searchFinished(searched, results);
+		}
+
+		@Override
+		public void failed(Throwable t)
+		{
+			callback.searchFailed(t);
+		}
+	}
+
+	private static void checkMax(int max) throws IllegalArgumentException
+	{
+		if(max < 1)
+		{
+			throw new IllegalArgumentException("Invalid max results: " + max);
+		}
+	}
+
+	/**
+	 * Starts a new generation for a surface and submits its search. The
+	 * search is submitted without holding the lock, as the executor may run
+	 * it straight away in this thread.
+	 * @param surface Input surface
+	 * @param search Search to run
+	 * @throws RejectedExecutionException If the executor will not run it
+	 */
+	private void schedule(final Object surface, final Search search)
+		throws RejectedExecutionException
+	{
+		final Generation generation = new Generation();
+		FutureTask<Object> task = new FutureTask<Object>(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				if(generation.isCancelled())
+				{
+					return;
+				}
+				try
+				{
+					search.run(generation);
+					deliver(surface, generation, new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							search.finished();
+						}
+					});
+				}
+				catch(CancellationException e)
+				{
+					// Superseded; nothing to deliver
+				}
+				catch(final Throwable t)
+				{
+					// Includes errors, which FutureTask would otherwise hide
+					deliver(surface, generation, new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							search.failed(t);
+						}
+					});
+				}
+			}
+		}, null)
+		{
+			@Override
+			protected void done()
+			{
+				// Cancelled without being superseded, so the executor discarded it
+				if(isCancelled() && !generation.isCancelled())
+				{
+					deliver(surface, generation, new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							search.failed(new CancellationException(
+								"Search discarded because the queue was full"));
+						}
+					});
+				}
+			}
+		};
+		generation.future = task;
+		Generation previous;
+		synchronized(this)
+		{
+			previous = current.put(surface, generation);
+		}
+		if(previous != null)
+		{
+			previous.cancel();
+		}
+
+		try
+		{
+			executor.execute(task);
+		}
+		catch(RejectedExecutionException e)
+		{
+			synchronized(this)
+			{
+				if(current.get(surface) == generation)
+				{
+					current.remove(surface);
+				}
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Delivers results, if the generation is still current when the delivery
+	 * executor runs it. The callback is called without holding the lock, so
+	 * it may start or cancel searches, or take as long as it likes.
+	 * @param surface Input surface
+	 * @param generation Generation that produced results
+	 * @param action Action that calls the callback
+	 */
+	private void deliver(final Object surface, final Generation generation,
+		final Runnable action)
+	{
+		delivery.execute(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				synchronized(SearchScheduler.this)
+				{
+					if(current.get(surface) != generation)
+					{
+						return;
+					}
+				}
+
+				// The generation stays current until delivered, so a newer search
+				// or cancel for the surface cancels it; check again just before
+				// calling back
+				if(generation.isCancelled())
+				{
+					return;
+				}
+				try
+				{
+					action.run();
+				}
+				finally
+				{
+					synchronized(SearchScheduler.this)
+					{
+						if(current.get(surface) == generation)
+						{
+							current.remove(surface);
+						}
+					}
+				}
+			}
+		});
+	}
+}
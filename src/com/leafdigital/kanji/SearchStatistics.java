@@ -0,0 +1,221 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * {@link SearchMetrics} implementation that keeps running totals and latency
+ * histograms in memory. It does not lock, so it can be shared by any number
+ * of searching threads; read the values whenever convenient (e.g. to export
+ * them to a monitoring system).
+ */
+public class SearchStatistics implements SearchMetrics
+{
+	/**
+	 * Candidate counts are kept separately for stroke counts up to this; any
+	 * higher stroke counts are added to this one.
+	 */
+	public final static int MAX_STROKE_COUNT = 40;
+
+	/**
+	 * Totals for a single match algorithm.
+	 */
+	public static class AlgoStatistics
+	{
+		private final AtomicLong results = new AtomicLong(),
+			scored = new AtomicLong(), pruned = new AtomicLong();
+		private final AtomicLongArray candidates =
+			new AtomicLongArray(MAX_STROKE_COUNT + 1);
+		private final LatencyHistogram latency = new LatencyHistogram();
+
+		private AlgoStatistics()
+		{
+		}
+
+		/**
+		 * @return Number of searches
+		 */
+		public long getSearches()
+		{
+			return latency.getCount();
+		}
+
+		/**
+		 * @return Search times in nanoseconds
+		 */
+		public LatencyHistogram getLatency()
+		{
+			return latency;
+		}
+
+		/**
+		 * @return Total number of results returned
+		 */
+		public long getResults()
+		{
+			return results.get();
+		}
+
+		/**
+		 * @return Total number of candidates fully scored
+		 */
+		public long getScored()
+		{
+			return scored.get();
+		}
+
+		/**
+		 * @return Total number of candidates that were given up early
+		 */
+		public long getPruned()
+		{
+			return pruned.get();
+		}
+
+		/**
+		 * @param strokeCount Stroke count
+		 * @return Total number of candidates gathered with that stroke count
+		 *   (for {@link SearchStatistics#MAX_STROKE_COUNT}, that count or more)
+		 * @throws IllegalArgumentException If stroke count is out of range
+		 */
+		public long getCandidates(int strokeCount) throws IllegalArgumentException
+		{
+			if(strokeCount < 1 || strokeCount > MAX_STROKE_COUNT)
+			{
+				throw new IllegalArgumentException(
+					"Invalid stroke count: " + strokeCount);
+			}
+			return candidates.get(strokeCount);
+		}
+	}
+
+	private final AlgoStatistics[] algos =
+		new AlgoStatistics[KanjiInfo.MatchAlgorithm.values().length];
+	private final AtomicLong loadedKanji = new AtomicLong();
+	private final LatencyHistogram loadTime = new LatencyHistogram();
+
+	/**
+	 * Constructs with all totals zero.
+	 */
+	public SearchStatistics()
+	{
+		for(int i=0; i<algos.length; i++)
+		{
+			algos[i] = new AlgoStatistics();
+		}
+	}
+
+	/**
+	 * @param algo Match algorithm
+	 * @return Totals for that algorithm
+	 */
+	public AlgoStatistics get(KanjiInfo.MatchAlgorithm algo)
+	{
+		return algos[algo.ordinal()];
+	}
+
+	/**
+	 * @return Times taken to load lists, in nanoseconds
+	 */
+	public LatencyHistogram getLoadTime()
+	{
+		return loadTime;
+	}
+
+	/**
+	 * @return Total number of kanji in all lists loaded
+	 */
+	public long getLoadedKanji()
+	{
+		return loadedKanji.get();
+	}
+
+	@Override
+	public void listLoaded(int kanji, long nanos)
+	{
+		loadedKanji.addAndGet(kanji);
+		loadTime.record(nanos);
+	}
+
+	@Override
+	public void candidatesGathered(KanjiInfo.MatchAlgorithm algo,
+		int strokeCount, int candidates)
+	{
+		get(algo).candidates.addAndGet(
+			Math.min(strokeCount, MAX_STROKE_COUNT), candidates);
+	}
+
+	@Override
+	public void candidatesScored(KanjiInfo.MatchAlgorithm algo, int scored,
+		int pruned)
+	{
+		AlgoStatistics statistics = get(algo);
+		if(scored != 0)
+		{
+			statistics.scored.addAndGet(scored);
+		}
+		if(pruned != 0)
+		{
+			statistics.pruned.addAndGet(pruned);
+		}
+	}
+
+	@Override
+	public void searchFinished(KanjiInfo.MatchAlgorithm algo, long nanos,
+		int results)
+	{
+		AlgoStatistics statistics = get(algo);
+		statistics.results.addAndGet(results);
+		statistics.latency.record(nanos);
+	}
+
+	/**
+	 * @return Summary of all totals, one line per algorithm that has been used
+	 */
+	@Override
+	public String toString()
+	{
+		StringBuilder out = new StringBuilder();
+		if(loadTime.getCount() > 0)
+		{
+			out.append(String.format(
+				"Loaded %d lists (%d kanji), mean %.1f ms%n", loadTime.getCount(),
+				loadedKanji.get(), loadTime.getMean() / 1000000.0));
+		}
+		for(KanjiInfo.MatchAlgorithm algo : KanjiInfo.MatchAlgorithm.values())
+		{
+			AlgoStatistics statistics = get(algo);
+			LatencyHistogram latency = statistics.latency;
+			if(latency.getCount() == 0)
+			{
+				continue;
+			}
+			out.append(String.format(
+				"%s: %d searches, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, "
+				+ "max %.2f ms; %d scored, %d pruned, %d results%n", algo,
+				latency.getCount(), latency.getPercentile(50) / 1000000.0,
+				latency.getPercentile(90) / 1000000.0,
+				latency.getPercentile(99) / 1000000.0,
+				latency.getMax() / 1000000.0, statistics.scored.get(),
+				statistics.pruned.get(), statistics.results.get()));
+		}
+		return out.toString();
+	}
+}
@@ -25,7 +25,7 @@ import java.util.*;
  * This algorithm is a lot faster than the fuzzy algorithm, but is currently
  * distinctly worse.
  */
-public class SpansComparer implements KanjiComparer
+public class SpansComparer implements BucketComparer
 {
 	/**
 	 * Number of categories for X and Y. Note: There is one array with (this
@@ -47,133 +47,103 @@ public class SpansComparer implements KanjiComparer
 	private final static int NO_MATCH = -1;
 
 	/**
-	 * Array of possible matching strokes. The indexes of this array are in
-	 * the form startX * LOCATION_RANGE^3 + startY * LOCATION_RANGE^2 +
-	 * endX * LOCATION_RANGE + endY
+	 * Number of distinct span scores.
 	 */
-	private Position[] positions;
-
-	private int count;
-
-	private static class SpanScore implements Comparable<SpanScore>
-	{
-		private int stroke;
-		private int score;
-
-		/**
-		 * @param stroke Index of stroke within drawn kanji
-		 * @param score Score of this combination (how closely it reflects the stroke)
-		 */
-		SpanScore(int stroke, int score)
-		{
-			this.stroke = stroke;
-			this.score = score;
-		}
+	private final static int SCORE_LEVELS = MAX_SCORE - MIN_SCORE + 1;
 
-		@Override
-		public int compareTo(SpanScore other)
-		{
-			if(other.score > score)
-			{
-				return 1;
-			}
-			else if(other.score < score)
-			{
-				return -1;
-			}
-			return other.stroke - stroke;
-		}
-
-		@Override
-		public boolean equals(Object obj)
-		{
-			SpanScore other = (SpanScore)obj;
-			return other.score == score && other.stroke == stroke;
-		}
+	/**
+	 * Spans store the score in the upper bits and the stroke index in the
+	 * lower bits.
+	 */
+	private final static int STROKE_BITS = 16, STROKE_MASK = (1 << STROKE_BITS) - 1;
 
-		@Override
-		public int hashCode()
-		{
-			// Score never gets that high, just use bits to keep all of them
-			return score + stroke * 1024;
-		}
-	}
+	/**
+	 * Start of each position's entries in {@link #spans}, plus a final entry
+	 * for the end of the array. Position indexes are in the form
+	 * startX * LOCATION_RANGE^3 + startY * LOCATION_RANGE^2 +
+	 * endX * LOCATION_RANGE + endY
+	 * <p>
+	 * This is not changed after init, so is shared between workers.
+	 */
+	private int[] positionStarts;
 
-	private static class Position
-	{
-		private SortedSet<SpanScore> spanSet = new TreeSet<SpanScore>();
-		private SpanScore[] spanScores;
+	/**
+	 * Possible matching strokes for each position, packed as
+	 * (score &lt;&lt; STROKE_BITS | stroke) and sorted with the highest score
+	 * (then highest stroke) first.
+	 * <p>
+	 * This is not changed after init, so is shared between workers.
+	 */
+	private int[] spans;
 
-		void add(int stroke, int score)
-		{
-			spanSet.add(new SpanScore(stroke, score));
-		}
+	private int count;
 
-		void finish()
-		{
-			spanScores = spanSet.toArray(new SpanScore[spanSet.size()]);
-			spanSet = null;
-		}
+	// Scratch space (not shared)
+	private boolean[] used, otherUsed = new boolean[0];
+	private int[] otherIndexes = new int[0];
 
-		/**
-		 * Returns the id of the stroke that matches this position at this score
-		 * or NO_MATCH if none
-		 * @param minScore Required score
-		 * @param used Array of used strokes
-		 * @return Stroke index or NO_MATCH if nothing with that score
-		 */
-		int match(int minScore, boolean[] used)
-		{
-			for(SpanScore score : spanScores)
-			{
-				if(score.score < minScore)
-				{
-					return NO_MATCH;
-				}
-				if(!used[score.stroke])
-				{
-					return score.stroke;
-				}
-			}
-			return NO_MATCH;
-		}
-	}
+	/**
+	 * Number of candidates given up early.
+	 */
+	private int pruned;
 
 	/**
 	 * Initialises with given drawn kanji.
 	 * @param info Drawn kanji
+	 * @throws IllegalArgumentException If the kanji has too many strokes
 	 */
 	@Override
-	public void init(KanjiInfo info)
+	public void init(KanjiInfo info) throws IllegalArgumentException
 	{
-		// Create positions array
-		positions = new Position[ARRAY_SIZE];
-		for(int i=0; i<positions.length; i++)
+		count = info.getStrokeCount();
+		if(count > STROKE_MASK)
 		{
-			positions[i] = new Position();
+			throw new IllegalArgumentException("Too many strokes: " + count);
 		}
-
-		// Loop through all the strokes
-		count = info.getStrokeCount();
+		int[] locations = new int[count * 4];
 		for(int i=0; i<count; i++)
 		{
 			Stroke s = info.getStroke(i);
 
 			// Work out X and Y
-			int startX = (s.getStartX() * LOCATION_RANGE) >> 8;
-			int startY = (s.getStartY() * LOCATION_RANGE) >> 8;
-			int endX = (s.getEndX() * LOCATION_RANGE) >> 8;
-			int endY = (s.getEndY() * LOCATION_RANGE) >> 8;
-
-			addSpan(i, startX, startY, endX, endY, true);
-			addSpan(i, endX, endY, startX, startY, false);
+			locations[i * 4] = (s.getStartX() * LOCATION_RANGE) >> 8;
+			locations[i * 4 + 1] = (s.getStartY() * LOCATION_RANGE) >> 8;
+			locations[i * 4 + 2] = (s.getEndX() * LOCATION_RANGE) >> 8;
+			locations[i * 4 + 3] = (s.getEndY() * LOCATION_RANGE) >> 8;
 		}
 
-		// Finish everything
-		for(int i=0; i<ARRAY_SIZE; i++)
+		// Counting sort by position, then score (descending). The first pass
+		// counts spans for each key; the second places them. Strokes are added
+		// in descending order so that they stay in that order within a score.
+		int[] keyStarts = new int[ARRAY_SIZE * SCORE_LEVELS + 1];
+		addSpans(locations, keyStarts, null);
+		int total = 0;
+		for(int key=0; key<keyStarts.length; key++)
+		{
+			int keyCount = keyStarts[key];
+			keyStarts[key] = total;
+			total += keyCount;
+		}
+		positionStarts = new int[ARRAY_SIZE + 1];
+		for(int i=0; i<=ARRAY_SIZE; i++)
 		{
-			positions[i].finish();
+			positionStarts[i] = keyStarts[i * SCORE_LEVELS];
 		}
+		spans = new int[total];
+		addSpans(locations, keyStarts, spans);
+
+		used = new boolean[count];
+	}
+
+	@Override
+	public KanjiComparer newWorker()
+	{
+		SpansComparer worker = new SpansComparer();
+		worker.positionStarts = positionStarts;
+		worker.spans = spans;
+		worker.count = count;
+		worker.used = new boolean[count];
+		return worker;
 	}
 	
 	private static int getIndex(int sX, int sY, int eX, int eY)
@@ -184,8 +154,26 @@ public class SpansComparer implements KanjiComparer
 			+ eY;
 	}
 
-	private void addSpan(int stroke, int startX, int startY, int endX, int endY,
-		boolean rightDirection)
+	/**
+	 * Adds spans in both directions for all strokes, from last to first.
+	 * @param locations Start X, start Y, end X, end Y for each stroke
+	 * @param keys Counts for each key (if spans is null) or next index for
+	 *   each key (otherwise)
+	 * @param spans Array to place spans in, or null to count them
+	 */
+	private void addSpans(int[] locations, int[] keys, int[] spans)
+	{
+		for(int i=count-1; i>=0; i--)
+		{
+			int startX = locations[i * 4], startY = locations[i * 4 + 1],
+				endX = locations[i * 4 + 2], endY = locations[i * 4 + 3];
+			addSpan(i, startX, startY, endX, endY, true, keys, spans);
+			addSpan(i, endX, endY, startX, startY, false, keys, spans);
+		}
+	}
+
+	private static void addSpan(int stroke, int startX, int startY, int endX,
+		int endY, boolean rightDirection, int[] keys, int[] spans)
 	{
 		for(int sX=startX-1; sX<=startX+1; sX++)
 		{
@@ -243,14 +231,48 @@ public class SpansComparer implements KanjiComparer
 							score += SCORE_RIGHTDIRECTION;
 						}
 
-						// Add to positions
-						positions[getIndex(sX, sY, eX, eY)].add(stroke, score);
+						// Count or place it
+						int key = getIndex(sX, sY, eX, eY) * SCORE_LEVELS
+							+ (MAX_SCORE - score);
+						if(spans == null)
+						{
+							keys[key]++;
+						}
+						else
+						{
+							spans[keys[key]++] = (score << STROKE_BITS) | stroke;
+						}
 					}
 				}
 			}
 		}
 	}
 
+	/**
+	 * Returns the id of the stroke that matches a position at a score
+	 * or NO_MATCH if none
+	 * @param position Position index
+	 * @param minScore Required score
+	 * @return Stroke index or NO_MATCH if nothing with that score
+	 */
+	private int match(int position, int minScore)
+	{
+		for(int i=positionStarts[position], end=positionStarts[position + 1];
+			i<end; i++)
+		{
+			int span = spans[i];
+			if((span >> STROKE_BITS) < minScore)
+			{
+				return NO_MATCH;
+			}
+			int stroke = span & STROKE_MASK;
+			if(!used[stroke])
+			{
+				return stroke;
+			}
+		}
+		return NO_MATCH;
+	}
 
 	/**
 	 * Compares against the given other kanji.
@@ -259,36 +281,64 @@ public class SpansComparer implements KanjiComparer
 	 */
 	@Override
 	public float getMatchScore(KanjiInfo other)
+	{
+		return getMatchScore(other.getColumns(), 0);
+	}
+
+	@Override
+	public float getMatchScore(StrokeBucket bucket, int index)
+	{
+		return getMatchScore(bucket, index, Float.NEGATIVE_INFINITY);
+	}
+
+	@Override
+	public float getMatchScore(StrokeBucket bucket, int index, float minScore)
 	{
 		// Set up used array with nothing used
-		boolean[] used = new boolean[count];
+		Arrays.fill(used, false);
 		int unmatched = count;
 
 		// Convert each stroke ion the target kanji to a position index
-		int otherCount = other.getStrokeCount();
+		int otherCount = bucket.strokeCount;
 		int otherUnmatched = otherCount;
-		boolean[] otherUsed = new boolean[otherCount];
-		int[] otherIndexes = new int[otherCount];
+		if(otherUsed.length < otherCount)
+		{
+			otherUsed = new boolean[otherCount];
+			otherIndexes = new int[otherCount];
+		}
+		else
+		{
+			Arrays.fill(otherUsed, 0, otherCount, false);
+		}
+		int offset = index * otherCount;
 		for(int i=0; i<otherCount; i++)
 		{
-			Stroke s = other.getStroke(i);
-
 			// Work out X and Y
-			int startX = (s.getStartX() * LOCATION_RANGE) >> 8;
-			int startY = (s.getStartY() * LOCATION_RANGE) >> 8;
-			int endX = (s.getEndX() * LOCATION_RANGE) >> 8;
-			int endY = (s.getEndY() * LOCATION_RANGE) >> 8;
+			int startX = ((bucket.startX[offset + i] & 0xff) * LOCATION_RANGE) >> 8;
+			int startY = ((bucket.startY[offset + i] & 0xff) * LOCATION_RANGE) >> 8;
+			int endX = ((bucket.endX[offset + i] & 0xff) * LOCATION_RANGE) >> 8;
+			int endY = ((bucket.endY[offset + i] & 0xff) * LOCATION_RANGE) >> 8;
 
 			otherIndexes[i] = getIndex(startX, startY, endX, endY);
 		}
 
 		// Calculate total score
 		int score = 0;
+		int maxScore = Math.min(count, otherCount) * MAX_SCORE;
 
 		// Loop through all the strokes in the other kanji and try to match them
 		// Begin with max score
 		for(int requiredScore = MAX_SCORE; requiredScore >= MIN_SCORE; requiredScore--)
 		{
+			// Stop if matching all remaining strokes at this score won't do
+			int bound = score
+				+ Math.min(unmatched, otherUnmatched) * requiredScore;
+			if(100f * ((float)bound / (float)maxScore) < minScore)
+			{
+				pruned++;
+				return 100f * ((float)bound / (float)maxScore);
+			}
+
 			for(int i=0; i<otherCount; i++)
 			{
 				if(otherUsed[i])
@@ -296,7 +346,7 @@ public class SpansComparer implements KanjiComparer
 					continue;
 				}
 
-				int match = positions[otherIndexes[i]].match(requiredScore, used);
+				int match = match(otherIndexes[i], requiredScore);
 				if(match != NO_MATCH)
 				{
 					// Add score
@@ -316,7 +366,12 @@ public class SpansComparer implements KanjiComparer
 		}
 
 		// Work out as a proportion of max possible score
-		int maxScore = Math.min(count, otherCount) * MAX_SCORE;
 		return 100f * ((float)score / (float)maxScore);
 	}
+
+	@Override
+	public int getPrunedCount()
+	{
+		return pruned;
+	}
 }
@@ -33,6 +33,16 @@ public abstract class StatsReporter
 	private static final String baseUrl =
 		"http://live.leafdigital.com/kanji/report.jsp";
 
+	/**
+	 * Maximum number of reports waiting to be sent; any more are dropped.
+	 */
+	private static final int MAX_QUEUED_REPORTS = 100;
+
+	/**
+	 * Transport used for reports (created when first needed).
+	 */
+	private static Transport transport;
+
 	/**
 	 * Interface you can implement if you want to get information about the
 	 * phone-home process.
@@ -45,14 +55,72 @@ public abstract class StatsReporter
 		public void phoneHomeStart();
 
 		/**
-		 * Called when phone-home ends.
+		 * Called when phone-home ends. Success means the transport has finished
+		 * with the report: for the default {@link ReportSender}, that the
+		 * server accepted it. A {@link ReportSpool} reports success once the
+		 * report is written to the spool, not when it is delivered; it may
+		 * still be rejected by the server, or deleted to limit the spool size.
 		 * @param ok True if it was successful
 		 */
 		public void phoneHomeEnd(boolean ok);
 	}
 
 	/**
-	 * Phones home with information about the kanji match.
+	 * Delivers reports to the server.
+	 */
+	public interface Transport
+	{
+		/**
+		 * Sends a report in the background. The callback (if any) must be told
+		 * the report has started before this returns, and later told the
+		 * result.
+		 * @param post Report as form-encoded POST body
+		 * @param callback Callback, or null if not required
+		 */
+		public void send(String post, Callback callback);
+
+		/**
+		 * Stops sending reports.
+		 */
+		public void shutdown();
+	}
+
+	/**
+	 * Sets the transport used for reports, e.g. to send them somewhere else,
+	 * in batches, or via a {@link ReportSpool}. By default, reports are kept
+	 * in memory and sent one per request to the leafdigital server by a
+	 * {@link ReportSender}. The previous transport is not shut down.
+	 * @param newTransport New transport
+	 */
+	public static synchronized void setTransport(Transport newTransport)
+	{
+		transport = newTransport;
+	}
+
+	/**
+	 * @return Transport used for reports
+	 */
+	private static synchronized Transport getTransport()
+	{
+		if(transport == null)
+		{
+			transport = new ReportSender(baseUrl, 1, 0, MAX_QUEUED_REPORTS);
+		}
+		return transport;
+	}
+
+	/**
+	 * @return URL of the leafdigital server's report page
+	 */
+	public static String getDefaultUrl()
+	{
+		return baseUrl;
+	}
+
+	/**
+	 * Phones home with information about the kanji match. Reports are sent
+	 * in the background; with the default transport, if too many are
+	 * waiting, the oldest is dropped and its callback is told it failed.
 	 * @param drawn Drawn kanji (should include the strokes that the user drew;
 	 *   this is the drawn kanji that you matched against other kanjis)
 	 * @param kanji Final selected kanji as string
@@ -68,7 +136,7 @@ public abstract class StatsReporter
 	{
 		try
 		{
-			new SendThread(baseUrl, "drawing=" + drawn.getFullSummary() + "&kanji=" + kanji
+			getTransport().send("drawing=" + drawn.getFullSummary() + "&kanji=" + kanji
 				+ "&algo=" + algo + "&ranking=" + ranking + "&clientname=" +
 				URLEncoder.encode(clientName, "UTF-8"), callback);
 		}
@@ -78,78 +146,4 @@ public abstract class StatsReporter
 			throw new Error(e);
 		}
 	}
-
-	private static class SendThread extends Thread
-	{
-		private Callback callback;
-		private String url, post;
-
-		private SendThread(String url, String post, Callback callback)
-		{
-			this.url = url;
-			this.post = post;
-			this.callback = callback;
-			if(callback != null)
-			{
-				callback.phoneHomeStart();
-			}
-			start();
-		}
-
-		@Override
-		public void run()
-		{
-			boolean ok = false;
-			try
-			{
-				URL u = new URL(url);
-				HttpURLConnection conn = (HttpURLConnection)u.openConnection();
-				conn.setRequestMethod("POST");
-				conn.setDoOutput(true);
-				conn.setConnectTimeout(10000);
-				conn.setReadTimeout(10000);
-				conn.connect();
-				OutputStream outputStream = conn.getOutputStream();
-				outputStream.write(post.getBytes("UTF-8"));
-				outputStream.close();
-
-				InputStream input;
-				try
-				{
-					input = conn.getInputStream();
-				}
-				catch(IOException e)
-				{
-					input = conn.getErrorStream();
-				}
-				if(input != null)
-				{
-					BufferedReader reader = new BufferedReader(
-						new InputStreamReader(input, "UTF-8"));
-
-					String firstLine = reader.readLine();
-					if(firstLine == null)
-					{
-						// Empty response
-					}
-					else if(firstLine.equals("OK"))
-					{
-						ok = true;
-					}
-
-					reader.close();
-				}
-			}
-			catch(IOException e)
-			{
-			}
-			finally
-			{
-				if(callback != null)
-				{
-					callback.phoneHomeEnd(ok);
-				}
-			}
-		}
-	}
 }
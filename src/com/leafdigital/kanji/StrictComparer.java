@@ -24,16 +24,106 @@ import com.leafdigital.kanji.Stroke.Location;
 /**
  * Compares entered strokes with other kanji using slightly fuzzy logic.
  */
-public class StrictComparer implements KanjiComparer
+public class StrictComparer implements BatchComparer
 {
-	private final static float STROKE_DIRECTION_WEIGHT = 1.0f;
-	private final static float MOVE_DIRECTION_WEIGHT = 0.8f;
-	private final static float STROKE_LOCATION_WEIGHT = 0.6f;
+	// Weights are fixed-point (hundredths), so scores are exact integers
+	private final static int STROKE_DIRECTION_WEIGHT = 100;
+	private final static int MOVE_DIRECTION_WEIGHT = 80;
+	private final static int STROKE_LOCATION_WEIGHT = 60;
 
-	private final static float CLOSE_WEIGHT = 0.7f;
+	/**
+	 * Percentage of the weight given for close (but not equal) values.
+	 */
+	private final static int CLOSE_PERCENT = 70;
+
+	/**
+	 * Length of each row in score tables. Must be at least the number of
+	 * {@link Location} and {@link Direction} values.
+	 */
+	private final static int ROW_LENGTH = 16;
+
+	/**
+	 * Score tables for each feature in {@link StrokeBucket#features}, indexed
+	 * by [feature][drawn ordinal * ROW_LENGTH + other ordinal].
+	 */
+	private final static int[][] FEATURE_SCORES =
+		new int[StrokeBucket.FEATURES_PER_STROKE][];
+	static
+	{
+		Location[] locations = Location.values();
+		Direction[] directions = Direction.values();
+		int[] startScores = new int[ROW_LENGTH * ROW_LENGTH],
+			endScores = new int[ROW_LENGTH * ROW_LENGTH],
+			directionScores = new int[ROW_LENGTH * ROW_LENGTH],
+			moveScores = new int[ROW_LENGTH * ROW_LENGTH];
+		for(int i=0; i<locations.length; i++)
+		{
+			for(int j=0; j<locations.length; j++)
+			{
+				int score = getScore(STROKE_LOCATION_WEIGHT,
+					i == j, locations[i].isClose(locations[j]));
+				startScores[i * ROW_LENGTH + j] = score;
+				endScores[i * ROW_LENGTH + j] = score;
+			}
+		}
+		for(int i=0; i<directions.length; i++)
+		{
+			for(int j=0; j<directions.length; j++)
+			{
+				boolean close = directions[i].isClose(directions[j]);
+				directionScores[i * ROW_LENGTH + j] =
+					getScore(STROKE_DIRECTION_WEIGHT, i == j, close);
+				moveScores[i * ROW_LENGTH + j] =
+					getScore(MOVE_DIRECTION_WEIGHT, i == j, close);
+			}
+		}
+		FEATURE_SCORES[StrokeBucket.FEATURE_START] = startScores;
+		FEATURE_SCORES[StrokeBucket.FEATURE_DIRECTION] = directionScores;
+		FEATURE_SCORES[StrokeBucket.FEATURE_END] = endScores;
+		FEATURE_SCORES[StrokeBucket.FEATURE_MOVE] = moveScores;
+	}
+
+	/**
+	 * Size of the section of {@link #strokeScores} for each drawn stroke.
+	 */
+	private final static int STROKE_TABLE_LENGTH =
+		StrokeBucket.FEATURES_PER_STROKE * ROW_LENGTH;
 
-	private Location[] drawnStarts, drawnEnds;
-	private Direction[] drawnDirections, drawnMoves;
+	/**
+	 * Drawn kanji in the same format as the ones it is compared against.
+	 */
+	private StrokeBucket drawn;
+
+	/**
+	 * Rows of {@link #FEATURE_SCORES} for each feature of each drawn stroke
+	 * [stroke * STROKE_TABLE_LENGTH + feature * ROW_LENGTH + other ordinal].
+	 * The move row for the first stroke is all zero.
+	 */
+	private int[] strokeScores;
+
+	/**
+	 * Scratch space for batch totals (not shared).
+	 */
+	private int[] totals = new int[0];
+
+	/**
+	 * @param weight Weight
+	 * @param equal True if values are equal
+	 * @param close True if values are close
+	 * @return Score for the combination
+	 */
+	private static int getScore(int weight, boolean equal, boolean close)
+	{
+		if(equal)
+		{
+			return weight;
+		}
+		else if(close)
+		{
+			return weight * CLOSE_PERCENT / 100;
+		}
+		return 0;
+	}
 
 	/**
 	 * Initialises with given drawn kanji.
@@ -42,10 +132,23 @@ public class StrictComparer implements KanjiComparer
 	@Override
 	public void init(KanjiInfo info)
 	{
-		drawnStarts = info.getStrokeStarts();
-		drawnEnds = info.getStrokeEnds();
-		drawnDirections = info.getStrokeDirections();
-		drawnMoves = info.getMoveDirections();
+		drawn = info.getColumns();
+		int count = drawn.strokeCount;
+		strokeScores = new int[count * STROKE_TABLE_LENGTH];
+		for(int stroke=0; stroke<count; stroke++)
+		{
+			for(int feature=0; feature<StrokeBucket.FEATURES_PER_STROKE; feature++)
+			{
+				if(stroke == 0 && feature == StrokeBucket.FEATURE_MOVE)
+				{
+					continue;
+				}
+				int value = drawn.features[drawn.getFeatureColumn(stroke, feature)];
+				System.arraycopy(FEATURE_SCORES[feature], value * ROW_LENGTH,
+					strokeScores, stroke * STROKE_TABLE_LENGTH + feature * ROW_LENGTH,
+					ROW_LENGTH);
+			}
+		}
 	}
 
 	/**
@@ -56,66 +159,189 @@ public class StrictComparer implements KanjiComparer
 	@Override
 	public float getMatchScore(KanjiInfo other)
 	{
-		Location[] otherStarts = other.getStrokeStarts(),
-			otherEnds = other.getStrokeEnds();
-		Direction[] otherDirections = other.getStrokeDirections(),
-			otherMoves = other.getMoveDirections();
+		return getMatchScore(other.getColumns(), 0);
+	}
 
-		if(otherStarts.length != drawnStarts.length)
+	@Override
+	public float getMatchScore(StrokeBucket bucket, int index)
+	{
+		int count = drawn.strokeCount;
+		checkCount(bucket);
+
+		byte[] features = bucket.features;
+		int[] scores = strokeScores;
+		int stride = bucket.getFeatureColumn(0, 1); // Distance between columns
+		int column = index;
+		int score = 0;
+		for(int stroke=0, row=0; stroke<count; stroke++,
+			row+=STROKE_TABLE_LENGTH, column+=StrokeBucket.FEATURES_PER_STROKE * stride)
 		{
-			throw new IllegalArgumentException(
-				"Can only compare with same match length");
+			score += scores[row + features[column]]
+				+ scores[row + ROW_LENGTH + features[column + stride]]
+				+ scores[row + 2 * ROW_LENGTH + features[column + 2 * stride]]
+				+ scores[row + 3 * ROW_LENGTH + features[column + 3 * stride]];
 		}
+		return getFinalScore(score, count);
+	}
+
+	/**
+	 * Always scores in full. {@link KanjiList} scores this comparer in batches
+	 * with {@link #getMatchScores}, which is faster than giving up early on
+	 * single kanji.
+	 */
+	@Override
+	public float getMatchScore(StrokeBucket bucket, int index, float minScore)
+	{
+		return getMatchScore(bucket, index);
+	}
 
-		float score = 0;
-		for(int i=0; i<drawnStarts.length; i++)
+	/**
+	 * @return Always 0, as this comparer never gives up early
+	 */
+	@Override
+	public int getPrunedCount()
+	{
+		return 0;
+	}
+
+	@Override
+	public void getMatchScores(StrokeBucket bucket, int start, int end,
+		float[] results)
+	{
+		int length = end - start;
+		if(totals.length < length)
 		{
-			// Stroke direction
-			if(drawnDirections[i] == otherDirections[i])
-			{
-				score += STROKE_DIRECTION_WEIGHT;
-			}
-			else if(drawnDirections[i].isClose(otherDirections[i]))
-			{
-				score += STROKE_DIRECTION_WEIGHT * CLOSE_WEIGHT;
-			}
+			totals = new int[length];
+		}
+		getTotals(bucket, start, end, totals);
+		int count = drawn.strokeCount;
+		for(int i=0; i<length; i++)
+		{
+			results[i] = getFinalScore(totals[i], count);
+		}
+	}
 
-			// Move direction
-			if(i>0)
+	/**
+	 * Calculates the total (before {@link #getFinalScore(int, int)}) for a
+	 * range of kanji in a bucket. Totals are the sum of a score for each
+	 * feature of each stroke, so they can be kept and adjusted later with
+	 * {@link #changeFeatureScores} when only some features of the drawing
+	 * change (see {@link RecognitionSession}).
+	 * @param bucket Bucket
+	 * @param start Index of first kanji within bucket
+	 * @param end Index after last kanji
+	 * @param totals Array that receives totals (the total for kanji
+	 *   <code>start</code> goes at position 0)
+	 * @throws IllegalArgumentException If the bucket has a different stroke
+	 *   count
+	 */
+	void getTotals(StrokeBucket bucket, int start, int end, int[] totals)
+		throws IllegalArgumentException
+	{
+		int count = drawn.strokeCount;
+		checkCount(bucket);
+
+		int length = end - start;
+		int[] scores = strokeScores;
+		byte[] features = bucket.features;
+		int stride = bucket.getFeatureColumn(0, 1); // Distance between columns
+
+		// Go through one stroke at a time for all kanji, reading the four
+		// feature columns in order
+		for(int stroke=0, row=0; stroke<count; stroke++, row+=STROKE_TABLE_LENGTH)
+		{
+			int column = bucket.getFeatureColumn(stroke, 0) + start;
+			int row1 = row + ROW_LENGTH, row2 = row1 + ROW_LENGTH,
+				row3 = row2 + ROW_LENGTH;
+			int column1 = column + stride, column2 = column1 + stride,
+				column3 = column2 + stride;
+			if(stroke == 0)
 			{
-				if(drawnMoves[i-1] == otherMoves[i-1])
+				for(int i=0; i<length; i++)
 				{
-					score += MOVE_DIRECTION_WEIGHT;
+					totals[i] = scores[row + features[column + i]]
+						+ scores[row1 + features[column1 + i]]
+						+ scores[row2 + features[column2 + i]]
+						+ scores[row3 + features[column3 + i]];
 				}
-				else if(drawnMoves[i-1].isClose(otherMoves[i-1]))
+			}
+			else
+			{
+				for(int i=0; i<length; i++)
 				{
-					score += MOVE_DIRECTION_WEIGHT * CLOSE_WEIGHT;
+					totals[i] += scores[row + features[column + i]]
+						+ scores[row1 + features[column1 + i]]
+						+ scores[row2 + features[column2 + i]]
+						+ scores[row3 + features[column3 + i]];
 				}
 			}
+		}
+	}
 
-			// Start and end locations
-			if(drawnStarts[i] == otherStarts[i])
-			{
-				score += STROKE_LOCATION_WEIGHT;
-			}
-			else if(drawnStarts[i].isClose(otherStarts[i]))
-			{
-				score += STROKE_LOCATION_WEIGHT * CLOSE_WEIGHT;
-			}
-			if(drawnEnds[i] == otherEnds[i])
-			{
-				score += STROKE_LOCATION_WEIGHT;
-			}
-			else if(drawnEnds[i].isClose(otherEnds[i]))
-			{
-				score += STROKE_LOCATION_WEIGHT * CLOSE_WEIGHT;
-			}
+	/**
+	 * @param bucket Bucket
+	 * @throws IllegalArgumentException If it has a different stroke count
+	 */
+	private void checkCount(StrokeBucket bucket) throws IllegalArgumentException
+	{
+		if(bucket.strokeCount != drawn.strokeCount)
+		{
+			throw new IllegalArgumentException(
+				"Can only compare with same match length");
 		}
+	}
 
-		float max = drawnStarts.length * (STROKE_DIRECTION_WEIGHT
-			+ 2 * STROKE_LOCATION_WEIGHT)
-			+	(drawnStarts.length - 1) * MOVE_DIRECTION_WEIGHT;
+	/**
+	 * Adjusts totals from {@link #getTotals} after one feature of the
+	 * drawn kanji has changed value.
+	 * @param bucket Bucket containing other kanji
+	 * @param stroke Stroke index
+	 * @param feature Feature index
+	 * @param oldValue Value the totals were calculated with
+	 * @param newValue New value
+	 * @param totals Total for each kanji in bucket (updated)
+	 */
+	static void changeFeatureScores(StrokeBucket bucket, int stroke,
+		int feature, int oldValue, int newValue, int[] totals)
+	{
+		int[] scores = FEATURE_SCORES[feature];
+		int oldRow = oldValue * ROW_LENGTH, newRow = newValue * ROW_LENGTH;
+		byte[] features = bucket.features;
+		int column = bucket.getFeatureColumn(stroke, feature);
+		for(int i=0; i<bucket.size; i++)
+		{
+			int other = features[column + i];
+			totals[i] += scores[newRow + other] - scores[oldRow + other];
+		}
+	}
+
+	/**
+	 * @param count Stroke count
+	 * @return Highest possible total from {@link #getTotals}
+	 */
+	private static int getMaxScore(int count)
+	{
+		return count * (STROKE_DIRECTION_WEIGHT + 2 * STROKE_LOCATION_WEIGHT)
+			+ (count - 1) * MOVE_DIRECTION_WEIGHT;
+	}
+
+	/**
+	 * Converts a total from {@link #getTotals} to the final score.
+	 * @param score Total for all strokes
+	 * @param count Stroke count
+	 * @return Score in range 0 to 100
+	 */
+	static float getFinalScore(int score, int count)
+	{
+		return 100.0f * score / getMaxScore(count);
+	}
 
-		return 100.0f * score / max;
+	@Override
+	public KanjiComparer newWorker()
+	{
+		StrictComparer worker = new StrictComparer();
+		worker.drawn = drawn;
+		worker.strokeScores = strokeScores;
+		return worker;
 	}
 }
@@ -0,0 +1,258 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+/**
+ * All kanji with the same stroke count, stored as columns of primitive data
+ * so that comparers can scan them without following object references.
+ * <p>
+ * Per-stroke columns are indexed by <code>kanji * strokeCount + stroke</code>.
+ * The features column is the exception: it is column-major (see
+ * {@link #getFeatureColumn(int, int)}). The facets column (see {@link FuzzyComparer#getFacets(Stroke[])}) has
+ * {@link #FACETS_PER_STROKE} entries per stroke.
+ * <p>
+ * Buckets do not change once created. Adding a kanji returns a new bucket,
+ * which may share arrays with the old one (it writes only beyond the old
+ * bucket's size, which the old bucket never reads).
+ */
+class StrokeBucket
+{
+	/**
+	 * Number of fuzzy facet bytes per stroke (six for each of two points).
+	 */
+	final static int FACETS_PER_STROKE = 12;
+
+	/**
+	 * Number of feature bytes per stroke, and the position of each one.
+	 */
+	final static int FEATURES_PER_STROKE = 4, FEATURE_START = 0,
+		FEATURE_DIRECTION = 1, FEATURE_END = 2, FEATURE_MOVE = 3;
+
+	private final static int INITIAL_CAPACITY = 16;
+
+	/** Stroke count of all kanji in bucket */
+	final int strokeCount;
+	/** Number of kanji in bucket */
+	final int size;
+
+	/** Kanji objects */
+	final KanjiInfo[] kanji;
+
+	/** Stroke positions, 0-255 (read as unsigned) */
+	final byte[] startX, startY, endX, endY;
+
+	/**
+	 * Features used by {@link StrictComparer}, for each stroke: ordinals of
+	 * {@link Stroke.Location} for the start, of {@link Stroke.Direction} for
+	 * the stroke, of {@link Stroke.Location} for the end, and of
+	 * {@link Stroke.Direction} for movement from the previous stroke to this
+	 * one (0 for the first stroke of each kanji, not used).
+	 * <p>
+	 * This is stored column-major, with one column of all kanji for each
+	 * feature of each stroke, so that a comparer can score many kanji at once.
+	 */
+	final byte[] features;
+
+	/** Facets used by {@link FuzzyComparer} */
+	final byte[] facets;
+
+	/**
+	 * Creates an empty bucket.
+	 * @param strokeCount Stroke count
+	 */
+	StrokeBucket(int strokeCount)
+	{
+		this(strokeCount, 0, INITIAL_CAPACITY);
+	}
+
+	/**
+	 * Creates an empty bucket with arrays of the given capacity.
+	 * @param strokeCount Stroke count
+	 * @param size Number of kanji that will be in bucket
+	 * @param capacity Number of kanji there is space for
+	 */
+	private StrokeBucket(int strokeCount, int size, int capacity)
+	{
+		this.strokeCount = strokeCount;
+		this.size = size;
+		kanji = new KanjiInfo[capacity];
+		int strokes = capacity * strokeCount;
+		startX = new byte[strokes];
+		startY = new byte[strokes];
+		endX = new byte[strokes];
+		endY = new byte[strokes];
+		features = new byte[strokes * FEATURES_PER_STROKE];
+		facets = new byte[strokes * FACETS_PER_STROKE];
+	}
+
+	/**
+	 * Creates a bucket that shares the arrays of another, but is larger.
+	 * @param previous Previous bucket
+	 * @param size New size
+	 */
+	private StrokeBucket(StrokeBucket previous, int size)
+	{
+		this.strokeCount = previous.strokeCount;
+		this.size = size;
+		kanji = previous.kanji;
+		startX = previous.startX;
+		startY = previous.startY;
+		endX = previous.endX;
+		endY = previous.endY;
+		features = previous.features;
+		facets = previous.facets;
+	}
+
+	/**
+	 * Creates a bucket containing only one kanji.
+	 * @param info Kanji
+	 * @return New bucket
+	 */
+	static StrokeBucket single(KanjiInfo info)
+	{
+		StrokeBucket bucket = new StrokeBucket(info.getStrokeCount(), 0, 1);
+		return bucket.append(info);
+	}
+
+	/**
+	 * Adds a kanji. This bucket is not changed, but the arrays may be shared
+	 * with the result, so this should only be called on the latest bucket.
+	 * @param info Kanji to add (must have correct stroke count)
+	 * @return New bucket including the kanji
+	 * @throws IllegalArgumentException If stroke count is wrong
+	 */
+	StrokeBucket append(KanjiInfo info) throws IllegalArgumentException
+	{
+		if(info.getStrokeCount() != strokeCount)
+		{
+			throw new IllegalArgumentException("Incorrect stroke count");
+		}
+
+		// Make a bigger copy if needed
+		StrokeBucket target;
+		if(size == kanji.length)
+		{
+			target = new StrokeBucket(strokeCount, size + 1, kanji.length * 2);
+			int strokes = size * strokeCount;
+			System.arraycopy(kanji, 0, target.kanji, 0, size);
+			System.arraycopy(startX, 0, target.startX, 0, strokes);
+			System.arraycopy(startY, 0, target.startY, 0, strokes);
+			System.arraycopy(endX, 0, target.endX, 0, strokes);
+			System.arraycopy(endY, 0, target.endY, 0, strokes);
+			for(int column=0; column<strokeCount * FEATURES_PER_STROKE; column++)
+			{
+				System.arraycopy(features, column * kanji.length, target.features,
+					column * target.kanji.length, size);
+			}
+			System.arraycopy(facets, 0, target.facets, 0,
+				strokes * FACETS_PER_STROKE);
+		}
+		else
+		{
+			target = null;
+		}
+
+		// Write new data (beyond the end of this bucket)
+		(target == null ? this : target).write(size, info);
+
+		// Data is written before the new bucket is constructed, so final field
+		// semantics make it visible to anyone who can see the new bucket
+		return target == null ? new StrokeBucket(this, size + 1) : target;
+	}
+
+	/**
+	 * Creates a bucket containing the given kanji, with no spare capacity.
+	 * This is faster than appending them one at a time.
+	 * @param strokeCount Stroke count
+	 * @param all Kanji (must all have that stroke count)
+	 * @return New bucket
+	 * @throws IllegalArgumentException If any stroke count is wrong
+	 */
+	static StrokeBucket create(int strokeCount, KanjiInfo[] all)
+		throws IllegalArgumentException
+	{
+		StrokeBucket bucket = new StrokeBucket(strokeCount, all.length,
+			all.length);
+		for(int i=0; i<all.length; i++)
+		{
+			if(all[i].getStrokeCount() != strokeCount)
+			{
+				throw new IllegalArgumentException("Incorrect stroke count");
+			}
+			bucket.write(i, all[i]);
+		}
+		return bucket;
+	}
+
+	/**
+	 * Writes a kanji's data into the arrays. Only used while the bucket is
+	 * being built, or beyond the size of any bucket that shares the arrays.
+	 * @param index Index of kanji within arrays
+	 * @param info Kanji
+	 */
+	private void write(int index, KanjiInfo info)
+	{
+		kanji[index] = info;
+		Stroke[] strokes = new Stroke[strokeCount];
+		Stroke.Location[] starts = info.getStrokeStarts(), ends = info.getStrokeEnds();
+		Stroke.Direction[] strokeDirections = info.getStrokeDirections(),
+			moveDirections = info.getMoveDirections();
+		int offset = index * strokeCount;
+		for(int i=0; i<strokeCount; i++)
+		{
+			strokes[i] = info.getStroke(i);
+			startX[offset + i] = (byte)strokes[i].getStartX();
+			startY[offset + i] = (byte)strokes[i].getStartY();
+			endX[offset + i] = (byte)strokes[i].getEndX();
+			endY[offset + i] = (byte)strokes[i].getEndY();
+			features[getFeatureColumn(i, FEATURE_START) + index] =
+				(byte)starts[i].ordinal();
+			features[getFeatureColumn(i, FEATURE_DIRECTION) + index] =
+				(byte)strokeDirections[i].ordinal();
+			features[getFeatureColumn(i, FEATURE_END) + index] =
+				(byte)ends[i].ordinal();
+			features[getFeatureColumn(i, FEATURE_MOVE) + index] =
+				i == 0 ? 0 : (byte)moveDirections[i - 1].ordinal();
+		}
+		byte[] kanjiFacets = FuzzyComparer.getFacets(strokes);
+		System.arraycopy(kanjiFacets, 0, facets,
+			offset * FACETS_PER_STROKE, kanjiFacets.length);
+	}
+
+	/**
+	 * @param stroke Stroke index
+	 * @param feature Feature (FEATURE_xx constant)
+	 * @return Offset in {@link #features} of the column for that feature;
+	 *   add the kanji index to get its value
+	 */
+	int getFeatureColumn(int stroke, int feature)
+	{
+		return (stroke * FEATURES_PER_STROKE + feature) * kanji.length;
+	}
+
+	/**
+	 * @return Array of all kanji in this bucket
+	 */
+	KanjiInfo[] getKanji()
+	{
+		KanjiInfo[] result = new KanjiInfo[size];
+		System.arraycopy(kanji, 0, result, 0, size);
+		return result;
+	}
+}
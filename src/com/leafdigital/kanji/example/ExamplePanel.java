@@ -20,6 +20,8 @@ package com.leafdigital.kanji.example;
 
 import java.awt.*;
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.Executor;
 
 import javax.swing.*;
 
@@ -32,6 +34,9 @@ import com.leafdigital.kanji.*;
 public class ExamplePanel extends JPanel
 {
 	private KanjiList list;
+	private RecognitionSession session;
+	private SearchScheduler scheduler;
+	private ResultsPanel[] panels;
 	
 	/**
 	 * Constructs panel and loads kanji list.
@@ -85,27 +90,42 @@ public class ExamplePanel extends JPanel
 
 		ResultReporter handler = new ResultReporter(layeredPane, resultsHandler);
 
+		// All panels are updated from one search of one session. Results are
+		// delivered on the event thread, where searches start, so old results
+		// never replace newer ones
+		session = new RecognitionSession(list);
+		scheduler = new KanjiRecognizer(list).newScheduler(new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				SwingUtilities.invokeLater(command);
+			}
+		});
+
 		JPanel resultsGrid = new JPanel(new GridLayout(1, 2, 4, 0));
 		resultsGrid.setOpaque(false);
 		add(resultsGrid, BorderLayout.EAST);
 		
-		final ResultsPanel results = new ResultsPanel(list, "Exact match",
+		ResultsPanel results = new ResultsPanel("Exact match",
 			KanjiInfo.MatchAlgorithm.STRICT, handler);
 		resultsGrid.add(results);
 
-		final ResultsPanel results2 = new ResultsPanel(list, "Fuzzy match",
+		ResultsPanel results2 = new ResultsPanel("Fuzzy match",
 			KanjiInfo.MatchAlgorithm.FUZZY, handler);
 		resultsGrid.add(results2);
 
-		final ResultsPanel results3 = new ResultsPanel(list, "\u00b11 stroke",
+		ResultsPanel results3 = new ResultsPanel("\u00b11 stroke",
 			KanjiInfo.MatchAlgorithm.FUZZY_1OUT, handler);
 		// Add extra borders to indicate difference in stroke count
 		results3.setBorder(BorderFactory.createEmptyBorder(0, 4, 0, 4));
 		resultsGrid.add(results3);
 		
-		final ResultsPanel results4 = new ResultsPanel(list, "\u00b12 strokes",
+		ResultsPanel results4 = new ResultsPanel("\u00b12 strokes",
 			KanjiInfo.MatchAlgorithm.FUZZY_2OUT, handler);
 		resultsGrid.add(results4);
+
+		panels = new ResultsPanel[] { results, results2, results3, results4 };
 		
 		JPanel middle = new JPanel(new BorderLayout(4, 4));
 		middle.setOpaque(false);
@@ -116,10 +136,7 @@ public class ExamplePanel extends JPanel
 			@Override
 			public void kanjiChanged(InputStroke[] strokes)
 			{
-				results.kanjiChanged(strokes);
-				results2.kanjiChanged(strokes);
-				results3.kanjiChanged(strokes);
-				results4.kanjiChanged(strokes);
+				search(strokes);
 			}
 		});
 		middle.add(kanjiPanel, BorderLayout.CENTER);
@@ -136,4 +153,44 @@ public class ExamplePanel extends JPanel
 
 		handler.setKanjiPanel(kanjiPanel);
 	}
+
+	/**
+	 * Searches for the drawn strokes using the algorithms of all the results
+	 * panels at once.
+	 * @param strokes Strokes drawn so far
+	 */
+	private void search(InputStroke[] strokes)
+	{
+		EnumSet<KanjiInfo.MatchAlgorithm> algos =
+			EnumSet.noneOf(KanjiInfo.MatchAlgorithm.class);
+		int max = 1;
+		for(ResultsPanel panel : panels)
+		{
+			algos.add(panel.getAlgorithm());
+			max = Math.max(max, panel.getMaxResults());
+		}
+
+		// Stop any search that is using the session before changing it
+		scheduler.cancel(this);
+		session.setStrokes(strokes);
+		scheduler.search(this, session, algos, max,
+			new SearchScheduler.MultiCallback()
+			{
+				@Override
+				public void searchFinished(KanjiInfo drawn,
+					Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> matches)
+				{
+					for(ResultsPanel panel : panels)
+					{
+						panel.showResults(drawn, matches.get(panel.getAlgorithm()));
+					}
+				}
+
+				@Override
+				public void searchFailed(Throwable t)
+				{
+					t.printStackTrace();
+				}
+			});
+	}
 }
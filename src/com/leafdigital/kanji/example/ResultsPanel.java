@@ -29,15 +29,13 @@ import com.leafdigital.kanji.KanjiInfo.MatchAlgorithm;
 /** 
  * Panel for displaying resulting kanji.
  */
-public class ResultsPanel extends JPanel implements KanjiPanel.Handler
+public class ResultsPanel extends JPanel
 {
 	/**
 	 * Font used on Mac. 
 	 */
 	private static final String MAC_FONT = "Hiragino Kaku Gothic Pro";
 
-	private KanjiList kanjiList;
-	
 	private Font smallFont = new Font("Verdana", Font.BOLD, 10);
 	private KanjiBox[] boxes;
 //	private KanjiBox other;
@@ -237,15 +235,13 @@ public class ResultsPanel extends JPanel implements KanjiPanel.Handler
 	*/
 	
 	/**
-	 * @param kanjiList Kanji list
 	 * @param title Title of panel
-	 * @param algo Match algorithm
+	 * @param algo Match algorithm of results shown in this panel
 	 * @param handler Handler for when something is selected
 	 */
-	public ResultsPanel(KanjiList kanjiList, String title,
-		KanjiInfo.MatchAlgorithm algo, Handler handler)
+	public ResultsPanel(String title, KanjiInfo.MatchAlgorithm algo,
+		Handler handler)
 	{
-		this.kanjiList = kanjiList;
 		this.algo = algo;
 		this.handler = handler;
 		setLayout(new BorderLayout(4, 4));
@@ -314,13 +310,28 @@ public class ResultsPanel extends JPanel implements KanjiPanel.Handler
 		return result;
 	}
 
-	@Override
-	public void kanjiChanged(InputStroke[] strokes)
+	/**
+	 * @return Match algorithm of results shown in this panel
+	 */
+	public KanjiInfo.MatchAlgorithm getAlgorithm()
 	{
-		new SearchThread(strokes);
+		return algo;
 	}
-	
-	private void updateResults(KanjiInfo potentialKanji, KanjiMatch[] matches)
+
+	/**
+	 * @return Number of results this panel can show
+	 */
+	public int getMaxResults()
+	{
+		return boxes.length;
+	}
+
+	/**
+	 * Shows new results.
+	 * @param potentialKanji Kanji that was drawn
+	 * @param matches Matches found using this panel's algorithm
+	 */
+	public void showResults(KanjiInfo potentialKanji, KanjiMatch[] matches)
 	{
 		int count = 0;
 		for(KanjiMatch match : matches)
@@ -338,37 +349,4 @@ public class ResultsPanel extends JPanel implements KanjiPanel.Handler
 		}
 		this.currentDrawing = potentialKanji;
 	}
-	
-	private class SearchThread extends Thread
-	{
-		private KanjiInfo potentialKanji;
-		
-		private SearchThread(InputStroke[] strokes)
-		{
-			potentialKanji = new KanjiInfo("?");
-			for(InputStroke stroke : strokes)
-			{
-				potentialKanji.addStroke(stroke);
-			}
-			potentialKanji.finish();
-//			currentStrokes = potentialKanji.getAllDirections();
-			start();
-		}
-		
-		@Override
-		public void run()
-		{
-			final KanjiMatch[] matches = kanjiList.getTopMatches(
-				potentialKanji, algo, null);
-			SwingUtilities.invokeLater(new Runnable()
-			{
-				@Override
-				public void run()
-				{
-					updateResults(potentialKanji, matches);
-				}
-			});
-		}
-		
-	}
 }
@@ -20,6 +20,14 @@ This is an expensive operation, taking approximately 0.2 seconds on a desktop
 PC, so make sure you keep the object around rather than reloading it each time.
 </p>
 
+<p>
+If startup time matters, save the list once using
+{@link com.leafdigital.kanji.KanjiList#saveBinary(java.io.OutputStream)} and
+load that file with {@link com.leafdigital.kanji.KanjiList#loadBinary(java.io.File)},
+which reads it without parsing XML. The loaded list still takes the same
+memory as one loaded from XML.
+</p>
+
 <h3>Obtain the user's drawing</h3>
 
 <p>
@@ -50,12 +58,23 @@ You now have a finished {@link com.leafdigital.kanji.KanjiInfo} object represent
 drawing.
 </p>
 
+<p>
+If you search again after every stroke the user draws, use a
+{@link com.leafdigital.kanji.RecognitionSession} instead: add each stroke with
+{@link com.leafdigital.kanji.RecognitionSession#addStroke(InputStroke)} and call its
+<code>getTopMatches</code> method. This gives the same results, and is faster
+when the user undoes or redraws strokes; adding a new stroke costs the same
+as a new search.
+</p>
+
 <h3>Compare it against the database</h3>
 
 <p>
 To compare and rank the user's drawing, use 
 {@link com.leafdigital.kanji.KanjiList#getTopMatches(KanjiInfo, KanjiInfo.MatchAlgorithm, KanjiList.Progress)}
-to obtain matches.
+to obtain matches. If you only display a fixed number of results, use
+{@link com.leafdigital.kanji.KanjiList#getTopMatches(KanjiInfo, KanjiInfo.MatchAlgorithm, int, KanjiList.Progress)}
+instead, which only keeps that many candidates during the search.
 </p>
 
 <p>
@@ -75,6 +94,28 @@ for example, the plus/minus 1 won't return results that actually have the
 correct stroke count.</li>
 </ul>
 
+<p>
+If you show results for several algorithms at once, use
+{@link com.leafdigital.kanji.KanjiList#getTopMatches(KanjiInfo, java.util.EnumSet, int, KanjiList.Progress)},
+which returns results for each algorithm but only scores each candidate once
+per comparer. A {@link com.leafdigital.kanji.RecognitionSession} and a
+{@link com.leafdigital.kanji.SearchScheduler} can search for several algorithms
+in the same way.
+</p>
+
+<p>
+If the same drawings are often searched for again (for example, in a server
+handling retries), search through a {@link com.leafdigital.kanji.MatchCache},
+which keeps recent results and returns them without searching.
+</p>
+
+<p>
+To search in the background (for example, from a user interface), use a
+{@link com.leafdigital.kanji.KanjiRecognizer}. It runs searches on a fixed
+number of threads with a limited queue, and can provide a
+{@link com.leafdigital.kanji.SearchScheduler} for each input surface.
+</p>
+
 <h3>Process results</h3>
 
 <p>
@@ -90,6 +131,17 @@ user choice, perhaps you'll then need to run a different match algorithm.
 Otherwise, if the user selects a matched kanji, you now have your answer.
 </p>
 
+<h3>Measure performance (optional)</h3>
+
+<p>
+To see where search time goes, install a
+{@link com.leafdigital.kanji.SearchMetrics} implementation with
+{@link com.leafdigital.kanji.KanjiList#setMetrics(SearchMetrics)}. The
+supplied {@link com.leafdigital.kanji.SearchStatistics} keeps latency
+histograms and candidate counts for each algorithm. Nothing is measured
+unless metrics are installed.
+</p>
+
 <h3>Report statistics (optional)</h3>
 
 <p>
@@ -101,6 +153,14 @@ which passes information about the user's drawing to the database at
 live.leafdigital.com (if it happens to be available at the time).
 </p>
 
+<p>
+Reports are normally kept in memory until sent, so any still waiting are lost
+when the application exits. To keep them on disk until the server accepts
+them, call
+{@link com.leafdigital.kanji.StatsReporter#setTransport(StatsReporter.Transport)}
+with a {@link com.leafdigital.kanji.ReportSpool}.
+</p>
+
 <p>
 For privacy reasons, it is a good idea to let users opt into
 this facility. Please be ready to upgrade to a new library
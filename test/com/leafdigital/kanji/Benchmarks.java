@@ -0,0 +1,594 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.io.*;
+import java.lang.management.*;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Benchmarks for loading, normalisation, comparers and searches with every
+ * match algorithm. This is a command-line tool; run it from the project
+ * folder (or use <code>ant benchmark</code>).
+ * <p>
+ * Each benchmark is warmed up, then measured over several timed iterations.
+ * Results show throughput, average time per operation (with the standard
+ * deviation between iterations) and, where the JVM supports per-thread
+ * allocation counts, bytes allocated per operation and allocation rate.
+ * Numbers are only comparable between runs on the same machine.
+ * <p>
+ * Arguments (all optional): <code>-quick</code> for shorter runs, then a
+ * regular expression; only benchmarks whose names contain a match are run.
+ */
+public class Benchmarks
+{
+	/**
+	 * Stroke counts of the drawings used as input.
+	 */
+	private final static int[] STROKE_COUNTS = { 3, 8, 14 };
+
+	/**
+	 * Scale of drawn co-ordinates.
+	 */
+	private final static float DRAWING_SIZE = 255f;
+
+	/**
+	 * Random jitter added to drawn co-ordinates.
+	 */
+	private final static float DRAWING_JITTER = 15f;
+
+	/**
+	 * Number of results for searches while drawing (as in the example).
+	 */
+	private final static int SESSION_RESULTS = 11;
+
+	private final static String STROKES_FILE = "data/strokes-20100823.xml";
+	private final static String KANJIVG_FILE = "data/kanjivg-20100823.xml";
+
+	private int warmupIterations = 3, iterations = 5;
+	private long iterationTime = 1000;
+
+	/**
+	 * Results are written here so that the JIT can't remove the work.
+	 */
+	private static volatile Object sink;
+
+	/**
+	 * A single benchmark.
+	 */
+	private static abstract class Benchmark
+	{
+		private final String name;
+
+		/**
+		 * @param name Name
+		 */
+		Benchmark(String name)
+		{
+			this.name = name;
+		}
+
+		/**
+		 * Runs the benchmark once.
+		 * @return Number of operations performed
+		 * @throws Exception Any error
+		 */
+		abstract int run() throws Exception;
+	}
+
+	/**
+	 * @param args Command-line arguments
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		Benchmarks benchmarks = new Benchmarks();
+		Pattern filter = null;
+		for(String arg : args)
+		{
+			if(arg.equals("-quick"))
+			{
+				benchmarks.warmupIterations = 1;
+				benchmarks.iterations = 3;
+				benchmarks.iterationTime = 200;
+			}
+			else
+			{
+				filter = Pattern.compile(arg);
+			}
+		}
+
+		List<Benchmark> all = benchmarks.create();
+		System.out.println(String.format("%-36s %14s %21s %12s %10s",
+			"Benchmark", "ops/s", "us/op", "B/op", "MB/s"));
+		for(Benchmark benchmark : all)
+		{
+			if(filter == null || filter.matcher(benchmark.name).find())
+			{
+				benchmarks.measure(benchmark);
+			}
+		}
+	}
+
+	/**
+	 * Creates all benchmarks.
+	 * @return List of benchmarks
+	 * @throws IOException Error loading data
+	 */
+	private List<Benchmark> create() throws IOException
+	{
+		final byte[] strokesXml = readFile(new File(STROKES_FILE));
+		final KanjiList list = new KanjiList(new ByteArrayInputStream(strokesXml));
+		List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+		// Loading
+		benchmarks.add(new Benchmark("KanjiList.load")
+		{
+			@Override
+			int run() throws Exception
+			{
+				sink = new KanjiList(new ByteArrayInputStream(strokesXml));
+				return 1;
+			}
+		});
+		final File binary = File.createTempFile("kanjirecog", ".bin");
+		binary.deleteOnExit();
+		FileOutputStream binaryOut = new FileOutputStream(binary);
+		list.saveBinary(binaryOut);
+		binaryOut.close();
+		benchmarks.add(new Benchmark("KanjiList.loadBinary")
+		{
+			@Override
+			int run() throws Exception
+			{
+				sink = KanjiList.loadBinary(binary);
+				return 1;
+			}
+		});
+		File kanjiVgFile = new File(KANJIVG_FILE);
+		final byte[] kanjiVg = kanjiVgFile.exists()
+			? readFile(kanjiVgFile) : createKanjiVg(list);
+		benchmarks.add(new Benchmark(kanjiVgFile.exists()
+			? "KanjiVgLoader.loadKanji" : "KanjiVgLoader.loadKanji(generated)")
+		{
+			@Override
+			int run() throws Exception
+			{
+				sink = new KanjiVgLoader(new ByteArrayInputStream(kanjiVg)).loadKanji();
+				return 1;
+			}
+		});
+		final List<String> paths = new ArrayList<String>();
+		Matcher pathMatcher = Pattern.compile("path=[\"']([^\"']*)[\"']").matcher(
+			new String(kanjiVg, "UTF-8"));
+		while(pathMatcher.find())
+		{
+			paths.add(pathMatcher.group(1));
+		}
+		benchmarks.add(new Benchmark(kanjiVgFile.exists()
+			? "InputStroke.parse" : "InputStroke.parse(generated)")
+		{
+			@Override
+			int run()
+			{
+				InputStroke last = null;
+				for(String path : paths)
+				{
+					last = new InputStroke(path);
+				}
+				sink = last;
+				return paths.size();
+			}
+		});
+
+		// Preparing drawings
+		Random random = new Random(1);
+		final Map<Integer, InputStroke[]> drawings =
+			new TreeMap<Integer, InputStroke[]>();
+		final Map<Integer, KanjiInfo> drawn = new TreeMap<Integer, KanjiInfo>();
+		for(int count : STROKE_COUNTS)
+		{
+			InputStroke[] drawing = createDrawing(list.getKanji(count)[0], random);
+			drawings.put(count, drawing);
+			drawn.put(count, createKanji(drawing));
+		}
+		for(final int count : STROKE_COUNTS)
+		{
+			final InputStroke[] drawing = drawings.get(count);
+			benchmarks.add(new Benchmark("InputStroke.normalise/" + count)
+			{
+				@Override
+				int run()
+				{
+					sink = InputStroke.normalise(drawing);
+					return 1;
+				}
+			});
+			benchmarks.add(new Benchmark("KanjiInfo.finish/" + count)
+			{
+				@Override
+				int run()
+				{
+					sink = createKanji(drawing);
+					return 1;
+				}
+			});
+		}
+
+		// Comparers (one of each type; each getMatchScore operation is one
+		// comparison)
+		List<KanjiInfo.MatchAlgorithm> comparerAlgorithms =
+			new ArrayList<KanjiInfo.MatchAlgorithm>();
+		for(KanjiInfo.MatchAlgorithm algo : KanjiInfo.MatchAlgorithm.values())
+		{
+			if(algo.getFamily() == algo.ordinal())
+			{
+				comparerAlgorithms.add(algo);
+			}
+		}
+		for(final KanjiInfo.MatchAlgorithm algo : comparerAlgorithms)
+		{
+			String comparerName = algo.newComparer(drawn.get(STROKE_COUNTS[0]))
+				.getClass().getSimpleName();
+			for(final int count : STROKE_COUNTS)
+			{
+				final KanjiInfo info = drawn.get(count);
+				benchmarks.add(new Benchmark(comparerName + ".init/" + count)
+				{
+					@Override
+					int run()
+					{
+						sink = algo.newComparer(info);
+						return 1;
+					}
+				});
+				final KanjiComparer comparer = algo.newComparer(info);
+				final KanjiInfo[] others = list.getKanji(count);
+				benchmarks.add(new Benchmark(comparerName + ".getMatchScore/" + count)
+				{
+					@Override
+					int run()
+					{
+						float total = 0;
+						for(KanjiInfo other : others)
+						{
+							total += comparer.getMatchScore(other);
+						}
+						sink = total;
+						return others.length;
+					}
+				});
+			}
+		}
+
+		// Full searches
+		for(final KanjiInfo.MatchAlgorithm algo : KanjiInfo.MatchAlgorithm.values())
+		{
+			for(final int count : STROKE_COUNTS)
+			{
+				final InputStroke[] drawing = drawings.get(count);
+				benchmarks.add(new Benchmark("getTopMatches." + algo + "/" + count)
+				{
+					@Override
+					int run()
+					{
+						// New kanji each time, so no comparer is reused
+						sink = list.getTopMatches(createKanji(drawing), algo, null);
+						return 1;
+					}
+				});
+			}
+		}
+
+		// Recognition while drawing: search after every stroke of a different
+		// kanji each time (draw), or after redrawing the last stroke of the
+		// same kanji (redraw), either building a new kanji for each search or
+		// using one session throughout. The session only saves work on redraw;
+		// on draw every search scores a new stroke count from scratch, so
+		// draw.STRICT.session should match draw.STRICT.fresh (not be slower)
+		for(final int count : STROKE_COUNTS)
+		{
+			KanjiInfo[] targets = list.getKanji(count);
+			final InputStroke[][] variants = new InputStroke[16][];
+			for(int i=0; i<variants.length; i++)
+			{
+				variants[i] = createDrawing(targets[i % targets.length], random);
+			}
+			final InputStroke[][] redraws = new InputStroke[variants.length][];
+			for(int i=0; i<redraws.length; i++)
+			{
+				redraws[i] = variants[0].clone();
+				redraws[i][count - 1] =
+					createDrawing(targets[0], random)[count - 1];
+			}
+			final RecognitionSession session = new RecognitionSession(list);
+			benchmarks.add(new Benchmark("draw.STRICT.fresh/" + count)
+			{
+				private int next;
+
+				@Override
+				int run()
+				{
+					InputStroke[] drawing = variants[next++ % variants.length];
+					for(int strokes=1; strokes<=count; strokes++)
+					{
+						sink = list.getTopMatches(createKanji(
+							Arrays.copyOf(drawing, strokes)), KanjiInfo.MatchAlgorithm.STRICT,
+							SESSION_RESULTS, null);
+					}
+					return 1;
+				}
+			});
+			benchmarks.add(new Benchmark("draw.STRICT.session/" + count)
+			{
+				private int next;
+
+				@Override
+				int run()
+				{
+					InputStroke[] drawing = variants[next++ % variants.length];
+					session.clear();
+					for(InputStroke stroke : drawing)
+					{
+						session.addStroke(stroke);
+						sink = session.getTopMatches(KanjiInfo.MatchAlgorithm.STRICT,
+							SESSION_RESULTS, null);
+					}
+					return 1;
+				}
+			});
+			benchmarks.add(new Benchmark("redraw.STRICT.fresh/" + count)
+			{
+				private int next;
+
+				@Override
+				int run()
+				{
+					sink = list.getTopMatches(
+						createKanji(redraws[next++ % redraws.length]),
+						KanjiInfo.MatchAlgorithm.STRICT, SESSION_RESULTS, null);
+					return 1;
+				}
+			});
+			benchmarks.add(new Benchmark("redraw.STRICT.session/" + count)
+			{
+				private int next;
+
+				@Override
+				int run()
+				{
+					session.setStrokes(redraws[next++ % redraws.length]);
+					sink = session.getTopMatches(KanjiInfo.MatchAlgorithm.STRICT,
+						SESSION_RESULTS, null);
+					return 1;
+				}
+			});
+		}
+
+		return benchmarks;
+	}
+
+	/**
+	 * Warms up and measures a benchmark, printing the results.
+	 * @param benchmark Benchmark
+	 * @throws Exception Any error
+	 */
+	private void measure(Benchmark benchmark) throws Exception
+	{
+		for(int i=0; i<warmupIterations; i++)
+		{
+			runIteration(benchmark);
+		}
+		double[] nsPerOp = new double[iterations];
+		long totalOps = 0, totalTime = 0, totalAllocated = 0;
+		for(int i=0; i<iterations; i++)
+		{
+			long[] result = runIteration(benchmark);
+			nsPerOp[i] = (double)result[1] / result[0];
+			totalOps += result[0];
+			totalTime += result[1];
+			totalAllocated += result[2];
+		}
+
+		double mean = (double)totalTime / totalOps, variance = 0;
+		for(double value : nsPerOp)
+		{
+			variance += (value - mean) * (value - mean);
+		}
+		double deviation = Math.sqrt(variance / iterations);
+		String allocated = "n/a", allocationRate = "n/a";
+		if(totalAllocated >= 0)
+		{
+			allocated = String.format("%.0f", (double)totalAllocated / totalOps);
+			allocationRate = String.format("%.1f",
+				totalAllocated / (totalTime / 1e9) / (1024 * 1024));
+		}
+		System.out.println(String.format("%-36s %14.1f %11.3f +- %6.3f %12s %10s",
+			benchmark.name, totalOps / (totalTime / 1e9), mean / 1000,
+			deviation / 1000, allocated, allocationRate));
+	}
+
+	/**
+	 * Runs a benchmark repeatedly for one iteration.
+	 * @param benchmark Benchmark
+	 * @return Array of operation count, time in nanoseconds, and bytes
+	 *   allocated (-1 if not available)
+	 * @throws Exception Any error
+	 */
+	private long[] runIteration(Benchmark benchmark) throws Exception
+	{
+		long allocatedBefore = getAllocatedBytes();
+		long start = System.nanoTime(), end = start + iterationTime * 1000000L;
+		long ops = 0, now;
+		do
+		{
+			ops += benchmark.run();
+			now = System.nanoTime();
+		}
+		while(now < end);
+		long allocatedAfter = getAllocatedBytes();
+		return new long[] { ops, now - start,
+			allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore };
+	}
+
+	private static Method getThreadAllocatedBytes;
+	static
+	{
+		// This is only available on some JVMs, so use reflection
+		try
+		{
+			Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+			if(beanClass.isInstance(ManagementFactory.getThreadMXBean()))
+			{
+				getThreadAllocatedBytes =
+					beanClass.getMethod("getThreadAllocatedBytes", long.class);
+			}
+		}
+		catch(Exception e)
+		{
+			getThreadAllocatedBytes = null;
+		}
+	}
+
+	/**
+	 * @return Bytes allocated by current thread so far, or -1 if unknown
+	 */
+	private static long getAllocatedBytes()
+	{
+		if(getThreadAllocatedBytes == null)
+		{
+			return -1;
+		}
+		try
+		{
+			return (Long)getThreadAllocatedBytes.invoke(
+				ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+		}
+		catch(Exception e)
+		{
+			return -1;
+		}
+	}
+
+	/**
+	 * Creates a drawing that looks roughly like a kanji.
+	 * @param kanji Kanji to draw
+	 * @param random Random number generator
+	 * @return Strokes
+	 */
+	private static InputStroke[] createDrawing(KanjiInfo kanji, Random random)
+	{
+		InputStroke[] strokes = new InputStroke[kanji.getStrokeCount()];
+		for(int i=0; i<strokes.length; i++)
+		{
+			Stroke stroke = kanji.getStroke(i);
+			strokes[i] = new InputStroke(
+				jitter(stroke.getStartX(), random), jitter(stroke.getStartY(), random),
+				jitter(stroke.getEndX(), random), jitter(stroke.getEndY(), random));
+		}
+		return strokes;
+	}
+
+	private static float jitter(int position, Random random)
+	{
+		float value = position + (random.nextFloat() * 2 - 1) * DRAWING_JITTER;
+		return Math.max(0, Math.min(DRAWING_SIZE, value));
+	}
+
+	/**
+	 * @param drawing Strokes
+	 * @return Finished kanji
+	 */
+	private static KanjiInfo createKanji(InputStroke[] drawing)
+	{
+		KanjiInfo info = new KanjiInfo("?");
+		for(InputStroke stroke : drawing)
+		{
+			info.addStroke(stroke);
+		}
+		info.finish();
+		return info;
+	}
+
+	/**
+	 * Creates a file in KanjiVG format from the strokes in a list, for use
+	 * when the real file is not available. Each stroke is a single curve.
+	 * @param list List
+	 * @return File data
+	 * @throws IOException Any error
+	 */
+	private static byte[] createKanjiVg(KanjiList list) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		Writer out = new OutputStreamWriter(bytes, "UTF-8");
+		out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<kanjis>\n");
+		for(int count=1; count<list.getBuckets().length; count++)
+		{
+			for(KanjiInfo kanji : list.getKanji(count))
+			{
+				out.write("<kanji id=\""
+					+ Integer.toHexString(kanji.getKanji().codePointAt(0)) + "\">\n");
+				for(int i=0; i<count; i++)
+				{
+					Stroke stroke = kanji.getStroke(i);
+					int startX = stroke.getStartX(), startY = stroke.getStartY(),
+						endX = stroke.getEndX(), endY = stroke.getEndY();
+					out.write("<stroke path=\"M" + startX + "," + startY + "c"
+						+ ((endX - startX) / 3) + "," + ((endY - startY) / 3) + ","
+						+ ((endX - startX) * 2 / 3) + "," + ((endY - startY) * 2 / 3) + ","
+						+ (endX - startX) + "," + (endY - startY) + "\"/>\n");
+				}
+				out.write("</kanji>\n");
+			}
+		}
+		out.write("</kanjis>\n");
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @param file File
+	 * @return Entire contents
+	 * @throws IOException Any error
+	 */
+	private static byte[] readFile(File file) throws IOException
+	{
+		InputStream in = new FileInputStream(file);
+		try
+		{
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[65536];
+			while(true)
+			{
+				int read = in.read(buffer);
+				if(read == -1)
+				{
+					return out.toByteArray();
+				}
+				out.write(buffer, 0, read);
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+}
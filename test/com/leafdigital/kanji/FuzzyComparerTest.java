@@ -18,11 +18,14 @@ Copyright 2011 Samuel Marshall.
 */
 package com.leafdigital.kanji;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 import java.io.FileInputStream;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.*;
 
-import org.junit.Test;
+import org.junit.*;
 
 /** Test fuzzy comparer. */
 public class FuzzyComparerTest
@@ -63,4 +66,103 @@ public class FuzzyComparerTest
 			assertEquals(big.getKanji(), matches[0].getKanji().getKanji());
 		}
 	}
+
+	/**
+	 * Tests that one drawn kanji can be scored from several threads at once.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testConcurrent() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		final KanjiInfo drawn = list.getKanji(9)[0];
+		final KanjiInfo[] others = list.getKanji(9);
+		final float[] expected = new float[others.length];
+		for(int i=0; i<others.length; i++)
+		{
+			expected[i] = drawn.getMatchScore(others[i],
+				KanjiInfo.MatchAlgorithm.FUZZY);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			List<Future<Boolean>> results = new LinkedList<Future<Boolean>>();
+			for(int thread=0; thread<8; thread++)
+			{
+				results.add(executor.submit(new Callable<Boolean>()
+				{
+					@Override
+					public Boolean call() throws Exception
+					{
+						for(int repeat=0; repeat<5; repeat++)
+						{
+							for(int i=0; i<others.length; i++)
+							{
+								if(drawn.getMatchScore(others[i],
+									KanjiInfo.MatchAlgorithm.FUZZY) != expected[i])
+								{
+									return false;
+								}
+							}
+						}
+						return true;
+					}
+				}));
+			}
+			for(Future<Boolean> result : results)
+			{
+				assertTrue(result.get());
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that scoring does not allocate memory once the comparer exists.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testNoAllocation() throws Exception
+	{
+		// Needs the HotSpot extension to count allocated bytes
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean()
+			instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean threads =
+			(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo drawn = list.getKanji(12)[0];
+		KanjiInfo[] others = list.getKanji(14);
+		KanjiComparer comparer =
+			KanjiInfo.MatchAlgorithm.FUZZY_2OUT.newComparer(drawn);
+
+		// Warm up, then measure
+		float total = 0;
+		for(KanjiInfo other : others)
+		{
+			total += comparer.getMatchScore(other);
+		}
+		long threadId = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(threadId);
+		for(int repeat=0; repeat<10; repeat++)
+		{
+			for(KanjiInfo other : others)
+			{
+				total += comparer.getMatchScore(other);
+			}
+		}
+		long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+		assertTrue(total > 0);
+		// Allow a little for the measurement itself
+		assertTrue("Allocated " + allocated + " bytes", allocated < 1024);
+	}
 }
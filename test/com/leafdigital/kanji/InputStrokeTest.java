@@ -75,6 +75,49 @@ public class InputStrokeTest
 		assertInputStroke(stroke, 6.93, 103.36, 6.93, 103.36);		
 	}
 	
+	/**
+	 * Tests number formats and invalid paths.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testPathNumbers() throws Exception
+	{
+		// Signs, whitespace, leading or trailing point, numbers run together
+		InputStroke stroke = new InputStroke(" M +1.5 -.25 c1,2,3,4,5.,-6 \t"
+			+ "s.5,.5-1-1");
+		assertInputStroke(stroke, 1.5, -0.25, 1.5 + 5 - 1, -0.25 - 6 - 1);
+		assertEquals(1.5f, stroke.getStartX(), 0f);
+
+		// Exactly the same as Float.parseFloat, including long numbers
+		String[] numbers =
+		{
+			"23.78", "0.1", "-7.4963375", "16777217", "33554433.0", "0.000001",
+			"1234567890123456789012", "1.00000000000000000000000001"
+		};
+		for(String number : numbers)
+		{
+			stroke = new InputStroke("M" + number + ",0");
+			assertEquals(number, Float.parseFloat(number), stroke.getStartX(), 0f);
+		}
+
+		String[] invalid =
+		{
+			"", "M", "M1", "Mx,1", "M-,1", "M.,1", "M1.2.3,1", "M1,1e5", "M1,1x",
+			"M1,1 2", "M1,1c1,2", "M1,1z2"
+		};
+		for(String path : invalid)
+		{
+			try
+			{
+				new InputStroke(path);
+				fail(path);
+			}
+			catch(IllegalArgumentException e)
+			{
+			}
+		}
+	}
+
 	/**
 	 * Tests creating a stroke by supplying parameters.
 	 * @throws Exception Any error
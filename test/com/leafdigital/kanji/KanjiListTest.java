@@ -18,9 +18,12 @@ Copyright 2011 Samuel Marshall.
 */
 package com.leafdigital.kanji;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
-import java.io.FileInputStream;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
 
 import org.junit.Test;
 
@@ -63,4 +66,367 @@ public class KanjiListTest
 	{
 		new KanjiList(new FileInputStream("data/strokes-20100823.xml"));
 	}
+
+	/**
+	 * Tests that limited searches return the same order as sorting every
+	 * candidate.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testTopMatches() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo[] all8 = list.getKanji(8);
+		for(int i=0; i<all8.length && i<5; i++)
+		{
+			KanjiInfo drawn = all8[i];
+			for(KanjiInfo.MatchAlgorithm algo : new KanjiInfo.MatchAlgorithm[] {
+				KanjiInfo.MatchAlgorithm.STRICT, KanjiInfo.MatchAlgorithm.FUZZY_1OUT })
+			{
+				// Sort all candidates the slow way
+				TreeSet<KanjiMatch> sorted = new TreeSet<KanjiMatch>();
+				for(int count = 8 - algo.getOut(); count <= 8 + algo.getOut();
+					count += Math.max(1, 2 * algo.getOut()))
+				{
+					for(KanjiInfo other : list.getKanji(count))
+					{
+						sorted.add(new KanjiMatch(other, drawn.getMatchScore(other, algo)));
+					}
+				}
+				List<KanjiMatch> expected = new ArrayList<KanjiMatch>();
+				for(KanjiMatch match : sorted)
+				{
+					if(match.getScore() < sorted.first().getScore() * 0.75f)
+					{
+						break;
+					}
+					expected.add(match);
+				}
+
+				KanjiMatch[] matches = list.getTopMatches(drawn, algo, null);
+				assertEquals(expected.size(), matches.length);
+				for(int j=0; j<matches.length; j++)
+				{
+					assertSame(expected.get(j).getKanji(), matches[j].getKanji());
+					assertEquals(expected.get(j).getScore(), matches[j].getScore(), 0f);
+				}
+
+				KanjiMatch[] top = list.getTopMatches(drawn, algo, 3, null);
+				assertEquals(Math.min(3, expected.size()), top.length);
+				for(int j=0; j<top.length; j++)
+				{
+					assertSame(expected.get(j).getKanji(), top[j].getKanji());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that STRICT candidates scoring exactly 75% of the best are
+	 * included. STRICT scores are exact, so \u5316 and \u6c34 score exactly
+	 * 75.0 against \u4ec4; when scores were summed as floats they came out
+	 * just below the cutoff and there were only 14 results.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testStrictCutoff() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo drawn = list.find("\u4ec4");
+		KanjiMatch[] matches = list.getTopMatches(drawn,
+			KanjiInfo.MatchAlgorithm.STRICT, null);
+		assertEquals(16, matches.length);
+		assertSame(drawn, matches[0].getKanji());
+		assertEquals(100f, matches[0].getScore(), 0f);
+		assertEquals("\u5316", matches[14].getKanji().getKanji());
+		assertEquals(75f, matches[14].getScore(), 0f);
+		assertEquals("\u6c34", matches[15].getKanji().getKanji());
+		assertEquals(75f, matches[15].getScore(), 0f);
+		assertTrue(matches[13].getScore() > 75f);
+
+		// A session scores the same way
+		RecognitionSession session = new RecognitionSession(list);
+		for(int i=0; i<drawn.getStrokeCount(); i++)
+		{
+			Stroke stroke = drawn.getStroke(i);
+			session.addStroke(new InputStroke(stroke.getStartX(),
+				stroke.getStartY(), stroke.getEndX(), stroke.getEndY()));
+		}
+		KanjiMatch[] sessionMatches = session.getTopMatches(
+			KanjiInfo.MatchAlgorithm.STRICT, 100, null);
+		assertEquals(16, sessionMatches.length);
+		assertEquals(75f, sessionMatches[15].getScore(), 0f);
+	}
+
+	/**
+	 * Tests that parallel searches give the same results as normal ones.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testParallel() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try
+		{
+			KanjiInfo[] all10 = list.getKanji(10);
+			for(int i=0; i<all10.length && i<5; i++)
+			{
+				for(KanjiInfo.MatchAlgorithm algo : KanjiInfo.MatchAlgorithm.values())
+				{
+					KanjiMatch[] expected = list.getTopMatches(all10[i], algo, 20, null);
+					KanjiMatch[] actual = list.getTopMatchesParallel(all10[i], algo, 20, executor);
+					assertEquals(expected.length, actual.length);
+					for(int j=0; j<expected.length; j++)
+					{
+						assertSame(expected[j].getKanji(), actual[j].getKanji());
+						assertEquals(expected[j].getScore(), actual[j].getScore(), 0f);
+					}
+				}
+			}
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests searching while another thread adds kanji.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testAddWhileSearching() throws Exception
+	{
+		KanjiList source = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		final KanjiInfo[] all = source.getKanji(7);
+		final KanjiList list = new KanjiList();
+		final KanjiInfo drawn = all[0];
+		list.add(drawn);
+
+		Thread adder = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				for(int i=1; i<all.length; i++)
+				{
+					list.add(all[i]);
+				}
+			}
+		};
+		adder.start();
+		int lastCount = 1;
+		while(true)
+		{
+			boolean finished = !adder.isAlive();
+			int count = list.getKanji(7).length;
+			assertTrue(count >= lastCount);
+			lastCount = count;
+			KanjiMatch[] matches = list.getTopMatches(drawn,
+				KanjiInfo.MatchAlgorithm.STRICT, null);
+			assertSame(drawn, matches[0].getKanji());
+			assertNotNull(list.lookup(drawn.getKanji()));
+			if(finished)
+			{
+				break;
+			}
+		}
+		adder.join();
+		assertEquals(all.length, list.getKanji(7).length);
+	}
+
+	/**
+	 * Tests finding kanji by string.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testFind() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		for(int strokes=1; strokes<=20; strokes++)
+		{
+			for(KanjiInfo info : list.getKanji(strokes))
+			{
+				assertSame(info, list.find(info.getKanji()));
+				assertSame(info, list.lookup(info.getKanji()));
+			}
+		}
+
+		assertNull(list.lookup("x"));
+		assertNull(list.lookup(""));
+		assertNull(list.lookup(list.getKanji(3)[0].getKanji() + "x"));
+		try
+		{
+			list.find("x");
+			fail();
+		}
+		catch(IllegalArgumentException e)
+		{
+		}
+	}
+
+	/**
+	 * Tests that a multi-algorithm search gives the same results as separate
+	 * searches.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testMultiAlgorithm() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		EnumSet<KanjiInfo.MatchAlgorithm> all =
+			EnumSet.allOf(KanjiInfo.MatchAlgorithm.class);
+		for(int strokes : new int[] { 1, 2, 7, 12 })
+		{
+			KanjiInfo drawn = list.getKanji(strokes)[0];
+			final int[] last = new int[2];
+			Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> results =
+				list.getTopMatches(drawn, all, 10, new KanjiList.Progress()
+				{
+					@Override
+					public void progress(int done, int max)
+					{
+						last[0] = done;
+						last[1] = max;
+					}
+				});
+			assertEquals(all, results.keySet());
+			assertEquals(last[1], last[0]);
+
+			int total = 0;
+			for(KanjiInfo.MatchAlgorithm algo : all)
+			{
+				KanjiMatch[] expected = list.getTopMatches(drawn, algo, 10, null);
+				KanjiMatch[] actual = results.get(algo);
+				assertEquals(expected.length, actual.length);
+				for(int i=0; i<expected.length; i++)
+				{
+					assertSame(expected[i].getKanji(), actual[i].getKanji());
+					assertEquals(expected[i].getScore(), actual[i].getScore(), 0f);
+				}
+				total += list.getTopMatches(drawn, algo, null).length;
+			}
+			assertTrue(last[1] >= total);
+		}
+
+		// A subset only includes the requested algorithms
+		KanjiInfo drawn = list.getKanji(5)[0];
+		Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> results = list.getTopMatches(
+			drawn, EnumSet.of(KanjiInfo.MatchAlgorithm.STRICT,
+			KanjiInfo.MatchAlgorithm.FUZZY_1OUT), 5, null);
+		assertEquals(2, results.size());
+		assertEquals(5, results.get(KanjiInfo.MatchAlgorithm.FUZZY_1OUT).length);
+	}
+
+	/**
+	 * Tests saving and loading the binary format.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testBinary() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		list.saveBinary(out);
+		byte[] data = out.toByteArray();
+
+		// Load from memory
+		KanjiList loaded = KanjiList.loadBinary(ByteBuffer.wrap(data));
+		checkSame(list, loaded);
+
+		// Bucket data gives the same search results
+		KanjiInfo drawn = list.find("\u5b57");
+		for(KanjiInfo.MatchAlgorithm algo : KanjiInfo.MatchAlgorithm.values())
+		{
+			KanjiMatch[] expected = list.getTopMatches(drawn, algo, 20, null),
+				actual = loaded.getTopMatches(drawn, algo, 20, null);
+			assertEquals(expected.length, actual.length);
+			for(int i=0; i<expected.length; i++)
+			{
+				assertEquals(expected[i].getKanji().getKanji(),
+					actual[i].getKanji().getKanji());
+				assertEquals(expected[i].getScore(), actual[i].getScore(), 0f);
+			}
+		}
+
+		// Load from (mapped) file
+		File file = File.createTempFile("kanjilist", ".bin");
+		try
+		{
+			FileOutputStream fileOut = new FileOutputStream(file);
+			fileOut.write(data);
+			fileOut.close();
+			checkSame(list, KanjiList.loadBinary(file));
+		}
+		finally
+		{
+			file.delete();
+		}
+
+		// Wrong format
+		try
+		{
+			KanjiList.loadBinary(ByteBuffer.wrap(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 }));
+			fail();
+		}
+		catch(IOException e)
+		{
+		}
+		try
+		{
+			KanjiList.loadBinary(ByteBuffer.wrap(data, 0, data.length - 1));
+			fail();
+		}
+		catch(IOException e)
+		{
+		}
+
+		// Corrupt header: maximum stroke count, then offset and count for
+		// stroke count 1
+		int[][] corrupt =
+		{
+			{ 4, -1 }, { 4, Integer.MAX_VALUE }, { 4, data.length },
+			{ 8, 0 }, { 8, data.length }, { 8, -8 },
+			{ 12, -1 }, { 12, Integer.MAX_VALUE }, { 12, data.length / 8 }
+		};
+		for(int[] change : corrupt)
+		{
+			ByteBuffer buffer = ByteBuffer.wrap(data.clone());
+			buffer.putInt(change[0], change[1]);
+			try
+			{
+				KanjiList.loadBinary(buffer);
+				fail("Corrupt value " + change[1] + " at " + change[0]);
+			}
+			catch(IOException e)
+			{
+			}
+		}
+	}
+
+	private static void checkSame(KanjiList expected, KanjiList actual)
+	{
+		for(int count=1; count<50; count++)
+		{
+			KanjiInfo[] expectedKanji = expected.getKanji(count),
+				actualKanji = actual.getKanji(count);
+			assertEquals(expectedKanji.length, actualKanji.length);
+			for(int i=0; i<expectedKanji.length; i++)
+			{
+				assertEquals(expectedKanji[i].getKanji(), actualKanji[i].getKanji());
+				assertEquals(expectedKanji[i].getFullSummary(),
+					actualKanji[i].getFullSummary());
+				assertEquals(expectedKanji[i].getAllDirections(),
+					actualKanji[i].getAllDirections());
+			}
+		}
+	}
 }
@@ -0,0 +1,326 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+
+import com.leafdigital.kanji.KanjiInfo.MatchAlgorithm;
+import com.leafdigital.kanji.KanjiRecognizer.RejectionPolicy;
+
+/** Test background searches on a bounded executor. */
+public class KanjiRecognizerTest
+{
+	/**
+	 * Tests that searches give normal results on a fixed number of threads.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testSearch() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiRecognizer recognizer =
+			new KanjiRecognizer(list, 2, 200, RejectionPolicy.ABORT);
+		KanjiInfo[] all = list.getKanji(7);
+
+		final Set<String> threads =
+			Collections.synchronizedSet(new HashSet<String>());
+		final CountDownLatch done = new CountDownLatch(100);
+		List<Future<KanjiMatch[]>> futures = new ArrayList<Future<KanjiMatch[]>>();
+		for(int i=0; i<100; i++)
+		{
+			futures.add(recognizer.search(all[i], MatchAlgorithm.SPANS, 5,
+				new SearchScheduler.Callback()
+				{
+					@Override
+					public void searchFinished(KanjiInfo drawn, KanjiMatch[] matches)
+					{
+						threads.add(Thread.currentThread().getName());
+						done.countDown();
+					}
+
+					@Override
+					public void searchFailed(Throwable t)
+					{
+						t.printStackTrace();
+					}
+				}, null));
+		}
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+		assertTrue(threads.size() <= 2);
+
+		KanjiMatch[] expected = list.getTopMatches(all[3], MatchAlgorithm.SPANS, 5,
+			null);
+		KanjiMatch[] actual = futures.get(3).get();
+		assertEquals(expected.length, actual.length);
+		for(int i=0; i<expected.length; i++)
+		{
+			assertEquals(expected[i].getKanji(), actual[i].getKanji());
+		}
+		recognizer.shutdown();
+	}
+
+	/**
+	 * Tests what happens when the queue is full.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testRejection() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo drawn = list.getKanji(3)[0];
+
+		// Abort: third search doesn't fit
+		KanjiRecognizer recognizer =
+			new KanjiRecognizer(list, 1, 1, RejectionPolicy.ABORT);
+		CountDownLatch release = new CountDownLatch(1);
+		Future<KanjiMatch[]> first = recognizer.search(drawn,
+			MatchAlgorithm.STRICT, 5, new Recorder(), new Blocker(release));
+		Future<KanjiMatch[]> second = queueSearch(recognizer, drawn);
+		try
+		{
+			recognizer.search(drawn, MatchAlgorithm.STRICT, 5);
+			fail();
+		}
+		catch(RejectedExecutionException e)
+		{
+		}
+
+		// Cancelled searches make room
+		second.cancel(false);
+		Future<KanjiMatch[]> third =
+			recognizer.search(drawn, MatchAlgorithm.STRICT, 5);
+		release.countDown();
+		assertTrue(first.get().length > 0);
+		assertTrue(third.get().length > 0);
+		recognizer.shutdown();
+
+		// Discard oldest: second search is cancelled to make room
+		recognizer = new KanjiRecognizer(list, 1, 1,
+			RejectionPolicy.DISCARD_OLDEST);
+		release = new CountDownLatch(1);
+		recognizer.search(drawn, MatchAlgorithm.STRICT, 5, new Recorder(),
+			new Blocker(release));
+		second = queueSearch(recognizer, drawn);
+		third = recognizer.search(drawn, MatchAlgorithm.STRICT, 5);
+		assertTrue(second.isCancelled());
+		release.countDown();
+		assertTrue(third.get().length > 0);
+		recognizer.shutdown();
+
+		// Caller runs: third search happens in this thread
+		recognizer = new KanjiRecognizer(list, 1, 1, RejectionPolicy.CALLER_RUNS);
+		release = new CountDownLatch(1);
+		recognizer.search(drawn, MatchAlgorithm.STRICT, 5, new Recorder(),
+			new Blocker(release));
+		second = queueSearch(recognizer, drawn);
+		Recorder recorder = new Recorder();
+		recognizer.search(drawn, MatchAlgorithm.STRICT, 5, recorder, null);
+		assertEquals(Thread.currentThread().getName(), recorder.thread);
+		release.countDown();
+		assertTrue(second.get().length > 0);
+		recognizer.shutdown();
+	}
+
+	/**
+	 * Tests that searches discarded to make room tell their callbacks, and
+	 * that superseded scheduler searches are removed first.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testDiscardCallback() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo drawn = list.getKanji(3)[0];
+		KanjiRecognizer recognizer = new KanjiRecognizer(list, 1, 1,
+			RejectionPolicy.DISCARD_OLDEST);
+		CountDownLatch release = new CountDownLatch(1);
+		recognizer.search(drawn, MatchAlgorithm.STRICT, 5, new Recorder(),
+			new Blocker(release));
+
+		// Plain search with a callback
+		Recorder discarded = new Recorder();
+		recognizer.search(drawn, MatchAlgorithm.STRICT, 5, discarded, null);
+		assertEquals(1, recognizer.getQueueLength());
+		queueSearch(recognizer, drawn).cancel(false);
+		assertTrue(discarded.failure instanceof CancellationException);
+		assertNull(discarded.thread);
+
+		// Scheduler search: the superseded one makes room for its replacement,
+		// then the replacement is discarded by another search
+		SearchScheduler scheduler = recognizer.newScheduler(new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				command.run();
+			}
+		});
+		Recorder superseded = new Recorder(), replacement = new Recorder();
+		scheduler.search("x", drawn, MatchAlgorithm.STRICT, 5, superseded);
+		scheduler.search("x", drawn, MatchAlgorithm.STRICT, 5, replacement);
+		assertEquals(1, recognizer.getQueueLength());
+		assertNull(replacement.failure);
+		Future<KanjiMatch[]> last = queueSearch(recognizer, drawn);
+		assertNull(superseded.failure);
+		assertTrue(replacement.failure instanceof CancellationException);
+
+		// One thread, so the discarded searches would have run before this
+		release.countDown();
+		assertTrue(last.get().length > 0);
+		recognizer.shutdown();
+		assertNull(superseded.thread);
+		assertNull(replacement.thread);
+	}
+
+	/**
+	 * Tests that a scheduler search run in the calling thread (because the
+	 * queue is full) does not stop other threads using the scheduler.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testCallerRunsScheduler() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		final KanjiInfo drawn = list.getKanji(3)[0];
+		KanjiRecognizer recognizer = new KanjiRecognizer(list, 1, 1,
+			RejectionPolicy.CALLER_RUNS);
+		CountDownLatch release = new CountDownLatch(1);
+		recognizer.search(drawn, MatchAlgorithm.STRICT, 5, new Recorder(),
+			new Blocker(release));
+		queueSearch(recognizer, drawn);
+
+		final SearchScheduler scheduler = recognizer.newScheduler(new Executor()
+		{
+			@Override
+			public void execute(Runnable command)
+			{
+				command.run();
+			}
+		});
+		final CountDownLatch otherDone = new CountDownLatch(1);
+		final boolean[] result = new boolean[1];
+		final String thisThread = Thread.currentThread().getName();
+		final String[] searchThread = new String[1];
+		scheduler.search("a", drawn, MatchAlgorithm.STRICT, 5,
+			new SearchScheduler.Callback()
+			{
+				@Override
+				public void searchFinished(KanjiInfo kanji, KanjiMatch[] matches)
+				{
+					searchThread[0] = Thread.currentThread().getName();
+					new Thread(new Runnable()
+					{
+						@Override
+						public void run()
+						{
+							scheduler.cancel("b");
+							otherDone.countDown();
+						}
+					}).start();
+					try
+					{
+						result[0] = otherDone.await(10, TimeUnit.SECONDS);
+					}
+					catch(InterruptedException e)
+					{
+					}
+				}
+
+				@Override
+				public void searchFailed(Throwable t)
+				{
+					t.printStackTrace();
+				}
+			});
+		assertEquals(thisThread, searchThread[0]);
+		assertTrue(result[0]);
+		release.countDown();
+		recognizer.shutdown();
+	}
+
+	/**
+	 * Starts a search that has to wait in the queue, because the only thread
+	 * was given the first search directly and is held up delivering it.
+	 * @param recognizer Recognizer
+	 * @param drawn Kanji to search for
+	 * @return Future for queued search
+	 */
+	private static Future<KanjiMatch[]> queueSearch(KanjiRecognizer recognizer,
+		KanjiInfo drawn)
+	{
+		Future<KanjiMatch[]> result =
+			recognizer.search(drawn, MatchAlgorithm.STRICT, 5);
+		assertEquals(1, recognizer.getQueueLength());
+		return result;
+	}
+
+	/**
+	 * Delivery executor that holds up the search thread until released.
+	 */
+	private static class Blocker implements Executor
+	{
+		private CountDownLatch release;
+
+		private Blocker(CountDownLatch release)
+		{
+			this.release = release;
+		}
+
+		@Override
+		public void execute(Runnable command)
+		{
+			try
+			{
+				release.await();
+			}
+			catch(InterruptedException e)
+			{
+			}
+			command.run();
+		}
+	}
+
+	private static class Recorder implements SearchScheduler.Callback
+	{
+		private volatile String thread;
+		private volatile Throwable failure;
+
+		@Override
+		public void searchFinished(KanjiInfo drawn, KanjiMatch[] matches)
+		{
+			thread = Thread.currentThread().getName();
+		}
+
+		@Override
+		public void searchFailed(Throwable t)
+		{
+			failure = t;
+		}
+	}
+}
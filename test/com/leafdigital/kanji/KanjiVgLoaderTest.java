@@ -18,10 +18,10 @@ Copyright 2011 Samuel Marshall.
 */
 package com.leafdigital.kanji;
 
-import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.*;
 
-import java.io.FileInputStream;
-import java.util.TreeSet;
+import java.io.*;
+import java.util.*;
 
 import org.junit.Test;
 
@@ -124,4 +124,66 @@ public class KanjiVgLoaderTest
 		
 		assertTrue(duplicates <= 17);		
 	}
+
+	/**
+	 * Test loading one kanji at a time, and stopping part way.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testCallback() throws Exception
+	{
+		String xml = "<?xml version='1.0' encoding='UTF-8'?>\n<kanjis>"
+			+ "<kanji id='4e00'><stroke path='M11,54c8,1,60-3,78-2'/></kanji>"
+			+ "<kanji id='41'><stroke path='M10,10c1,0,10,10,20,20'/></kanji>"
+			+ "<kanji id='4e8c'><stroke path='M25,28c5,1,40-2,49-2'/>"
+			+ "<stroke path='M12,77c8,1,63-2,77-2'/></kanji>"
+			+ "<kanji id='4e09'><stroke/></kanji>"
+			+ "</kanjis>";
+
+		final List<String> loaded = new ArrayList<String>();
+		KanjiVgLoader loader = new KanjiVgLoader(
+			new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		loader.loadKanji(new KanjiVgLoader.Callback()
+		{
+			@Override
+			public void kanjiLoaded(KanjiInfo kanji)
+			{
+				loaded.add(kanji.getKanji() + kanji.getStrokeCount());
+			}
+		});
+		assertEquals(Arrays.asList("\u4e001", "\u4e8c2"), loaded);
+		assertEquals(1, loader.getWarnings().length);
+
+		// Loading again is not allowed
+		try
+		{
+			loader.loadKanji();
+			fail();
+		}
+		catch(IOException e)
+		{
+		}
+
+		// Errors from the callback stop loading
+		loaded.clear();
+		loader = new KanjiVgLoader(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+		try
+		{
+			loader.loadKanji(new KanjiVgLoader.Callback()
+			{
+				@Override
+				public void kanjiLoaded(KanjiInfo kanji) throws IOException
+				{
+					loaded.add(kanji.getKanji());
+					throw new IOException("Stop");
+				}
+			});
+			fail();
+		}
+		catch(IOException e)
+		{
+			assertEquals("Stop", e.getMessage());
+		}
+		assertEquals(1, loaded.size());
+	}
 }
@@ -0,0 +1,134 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+
+import org.junit.Test;
+
+import com.leafdigital.kanji.KanjiInfo.MatchAlgorithm;
+
+/** Test search result cache. */
+public class MatchCacheTest
+{
+	/**
+	 * Tests that repeated drawings are answered from the cache.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testHits() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		MatchCache cache = new MatchCache(list, 100, 0);
+		KanjiInfo drawn = list.getKanji(5)[0];
+
+		KanjiMatch[] first = cache.getTopMatches(drawn, MatchAlgorithm.FUZZY, 10);
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getMisses());
+		assertResultsEqual(
+			list.getTopMatches(drawn, MatchAlgorithm.FUZZY, 10, null), first);
+
+		// Same strokes in a different object
+		KanjiInfo again = new KanjiInfo("?", drawn.getFullSummary());
+		KanjiMatch[] second = cache.getTopMatches(again, MatchAlgorithm.FUZZY, 10);
+		assertEquals(1, cache.getHits());
+		assertResultsEqual(first, second);
+
+		// Modifying results doesn't affect the cache
+		second[0] = null;
+		assertNotNull(cache.getTopMatches(drawn, MatchAlgorithm.FUZZY, 10)[0]);
+		assertEquals(2, cache.getHits());
+
+		// Different algorithm or max is a different entry
+		cache.getTopMatches(drawn, MatchAlgorithm.SPANS, 10);
+		cache.getTopMatches(drawn, MatchAlgorithm.FUZZY, 5);
+		assertEquals(3, cache.getMisses());
+		assertEquals(3, cache.size());
+
+		// Adding to the list discards results
+		KanjiInfo extra = new KanjiInfo("x");
+		extra.addStroke(new InputStroke(0, 0, 100, 100));
+		extra.finish();
+		list.add(extra);
+		cache.getTopMatches(drawn, MatchAlgorithm.FUZZY, 10);
+		assertEquals(4, cache.getMisses());
+		assertEquals(1, cache.getEvictions());
+		assertEquals(3, cache.size());
+
+		cache.clear();
+		assertEquals(0, cache.size());
+	}
+
+	/**
+	 * Tests size and age limits.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testEviction() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo[] all = list.getKanji(4);
+
+		// One segment of two entries; the least recently used goes first
+		MatchCache cache = new MatchCache(list, 2, 0);
+		cache.getTopMatches(all[0], MatchAlgorithm.STRICT, 5);
+		cache.getTopMatches(all[1], MatchAlgorithm.STRICT, 5);
+		cache.getTopMatches(all[0], MatchAlgorithm.STRICT, 5);
+		cache.getTopMatches(all[2], MatchAlgorithm.STRICT, 5);
+		assertEquals(1, cache.getEvictions());
+		assertEquals(2, cache.size());
+		cache.getTopMatches(all[0], MatchAlgorithm.STRICT, 5);
+		assertEquals(2, cache.getHits());
+		cache.getTopMatches(all[1], MatchAlgorithm.STRICT, 5);
+		assertEquals(2, cache.getHits());
+
+		// Many entries spread over segments stay close to the limit
+		cache = new MatchCache(list, 64, 0);
+		KanjiInfo[] many = list.getKanji(8);
+		for(int i=0; i<200; i++)
+		{
+			cache.getTopMatches(many[i], MatchAlgorithm.STRICT, 5);
+		}
+		assertTrue(cache.size() <= 64 && cache.size() > 32);
+		assertEquals(cache.getMisses() - cache.size(), cache.getEvictions());
+
+		// Old results are discarded
+		cache = new MatchCache(list, 10, 1);
+		cache.getTopMatches(all[0], MatchAlgorithm.STRICT, 5);
+		Thread.sleep(20);
+		cache.getTopMatches(all[0], MatchAlgorithm.STRICT, 5);
+		assertEquals(0, cache.getHits());
+		assertEquals(1, cache.getEvictions());
+	}
+
+	private static void assertResultsEqual(KanjiMatch[] expected,
+		KanjiMatch[] actual)
+	{
+		assertEquals(expected.length, actual.length);
+		for(int i=0; i<expected.length; i++)
+		{
+			assertEquals(expected[i].getKanji(), actual[i].getKanji());
+			assertEquals(expected[i].getScore(), actual[i].getScore(), 0f);
+		}
+	}
+}
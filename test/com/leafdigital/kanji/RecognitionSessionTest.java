@@ -0,0 +1,163 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+
+/** Test incremental recognition. */
+public class RecognitionSessionTest
+{
+	/**
+	 * Tests that drawing one stroke at a time (with undo and clear) gives the
+	 * same results as searching for the whole drawing each time.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testIncremental() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		Random random = new Random(1);
+		RecognitionSession session = new RecognitionSession(list);
+		for(int test=0; test<20; test++)
+		{
+			// Draw a known kanji, roughly
+			KanjiInfo target = list.getKanji(3 + test % 8)[test];
+			List<InputStroke> drawn = new ArrayList<InputStroke>();
+			for(int i=0; i<target.getStrokeCount(); i++)
+			{
+				Stroke stroke = target.getStroke(i);
+				InputStroke input = new InputStroke(
+					stroke.getStartX() + random.nextInt(30) - 15,
+					stroke.getStartY() + random.nextInt(30) - 15,
+					stroke.getEndX() + random.nextInt(30) - 15,
+					stroke.getEndY() + random.nextInt(30) - 15);
+				drawn.add(input);
+				session.addStroke(input);
+				checkSame(list, session, drawn);
+
+				// Sometimes undo and redo the stroke
+				if(random.nextInt(3) == 0)
+				{
+					session.removeLastStroke();
+					drawn.remove(drawn.size() - 1);
+					checkSame(list, session, drawn);
+					session.setStrokes(drawn.toArray(new InputStroke[drawn.size()]));
+					checkSame(list, session, drawn);
+					drawn.add(input);
+					session.addStroke(input);
+					checkSame(list, session, drawn);
+				}
+			}
+			assertEquals(target.getStrokeCount(), session.getStrokeCount());
+			session.clear();
+			assertEquals(0, session.getStrokeCount());
+			assertEquals(0, session.getTopMatches(
+				KanjiInfo.MatchAlgorithm.STRICT, 10, null).length);
+		}
+	}
+
+	/**
+	 * Tests redrawing the last stroke many times, and searches cancelled part
+	 * way through updating the scores.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testRedraw() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		Random random = new Random(2);
+		RecognitionSession session = new RecognitionSession(list);
+		KanjiInfo target = list.getKanji(9)[5];
+		List<InputStroke> drawn = new ArrayList<InputStroke>();
+		for(int i=0; i<target.getStrokeCount(); i++)
+		{
+			drawn.add(jitter(target.getStroke(i), random, 15));
+		}
+		for(int redraw=0; redraw<40; redraw++)
+		{
+			// Sometimes a wild stroke that moves the bounds
+			drawn.set(drawn.size() - 1, jitter(target.getStroke(drawn.size() - 1),
+				random, redraw % 5 == 0 ? 120 : 15));
+			session.setStrokes(drawn.toArray(new InputStroke[drawn.size()]));
+			if(redraw % 3 == 0)
+			{
+				final int[] checks = new int[1];
+				try
+				{
+					session.getTopMatches(KanjiInfo.MatchAlgorithm.STRICT, 20, null,
+						new KanjiList.Cancellation()
+						{
+							@Override
+							public boolean isCancelled()
+							{
+								return ++checks[0] > 4;
+							}
+						});
+					fail();
+				}
+				catch(CancellationException e)
+				{
+				}
+			}
+			checkSame(list, session, drawn);
+		}
+	}
+
+	private static InputStroke jitter(Stroke stroke, Random random, int amount)
+	{
+		return new InputStroke(
+			stroke.getStartX() + random.nextInt(amount * 2) - amount,
+			stroke.getStartY() + random.nextInt(amount * 2) - amount,
+			stroke.getEndX() + random.nextInt(amount * 2) - amount,
+			stroke.getEndY() + random.nextInt(amount * 2) - amount);
+	}
+
+	private static void checkSame(KanjiList list, RecognitionSession session,
+		List<InputStroke> strokes)
+	{
+		KanjiInfo info = new KanjiInfo("?");
+		for(InputStroke stroke : strokes)
+		{
+			info.addStroke(stroke);
+		}
+		info.finish();
+		assertEquals(info.getFullSummary(), session.getKanji().getFullSummary());
+
+		for(KanjiInfo.MatchAlgorithm algo : new KanjiInfo.MatchAlgorithm[] {
+			KanjiInfo.MatchAlgorithm.STRICT, KanjiInfo.MatchAlgorithm.SPANS })
+		{
+			KanjiMatch[] expected = list.getTopMatches(info, algo, 20, null);
+			KanjiMatch[] actual = session.getTopMatches(algo, 20, null);
+			assertEquals(expected.length, actual.length);
+			for(int i=0; i<expected.length; i++)
+			{
+				assertSame(expected[i].getKanji(), actual[i].getKanji());
+				assertEquals(expected[i].getScore(), actual[i].getScore(), 0f);
+			}
+		}
+	}
+}
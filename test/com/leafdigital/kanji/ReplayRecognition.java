@@ -0,0 +1,499 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.leafdigital.kanji.KanjiInfo.MatchAlgorithm;
+
+/**
+ * Replays recorded drawings from a local file and reports accuracy and search
+ * latency for each algorithm, like {@link AnalyseRecognition} but without a
+ * database. This is a command-line tool; run it from the project folder.
+ * <p>
+ * The file is UTF-8 text with one drawing per line: the full summary (in
+ * {@link KanjiInfo#getFullSummary()} format), a tab, then the kanji the user
+ * selected. Blank lines and lines beginning with # are ignored. This is the
+ * format written by PostgreSQL for
+ * <code>\copy (SELECT drawing, kanji FROM attempts) TO 'file'</code>.
+ * <p>
+ * Usage:
+ * <pre>
+ * ReplayRecognition file [-threads n] [-warmup n] [-algo ALGO]
+ * ReplayRecognition -generate file [count] [seed]
+ * </pre>
+ * The second form writes a sample file of jittered drawings made from the
+ * stroke data, some with a stroke missing.
+ */
+public class ReplayRecognition
+{
+	/**
+	 * Number of sample drawings generated by default.
+	 */
+	private final static int DEFAULT_GENERATE_COUNT = 1000;
+
+	/**
+	 * Maximum amount (out of 255) each coordinate moves in generated drawings.
+	 */
+	private final static int GENERATE_JITTER = 24;
+
+	/**
+	 * Chance that a generated drawing has a stroke missing.
+	 */
+	private final static double GENERATE_MISSING_STROKE = 0.2;
+
+	/**
+	 * Percentiles of latency to display.
+	 */
+	private final static double[] PERCENTILES = { 50, 90, 99 };
+
+	/**
+	 * @param args Command-line arguments (see class comment)
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		if(args.length > 1 && args[0].equals("-generate"))
+		{
+			int count = args.length > 2 ? Integer.parseInt(args[2])
+				: DEFAULT_GENERATE_COUNT;
+			long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+			generate(new File(args[1]), count, seed);
+			return;
+		}
+
+		File file = null;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int warmup = 1;
+		MatchAlgorithm soloAlgo = null;
+		for(int i=0; i<args.length; i++)
+		{
+			if(args[i].equals("-threads") && i + 1 < args.length)
+			{
+				threads = Integer.parseInt(args[++i]);
+			}
+			else if(args[i].equals("-warmup") && i + 1 < args.length)
+			{
+				warmup = Integer.parseInt(args[++i]);
+			}
+			else if(args[i].equals("-algo") && i + 1 < args.length)
+			{
+				soloAlgo = MatchAlgorithm.valueOf(args[++i]);
+			}
+			else if(file == null && !args[i].startsWith("-"))
+			{
+				file = new File(args[i]);
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+			}
+		}
+		if(file == null || threads < 1 || warmup < 0)
+		{
+			System.err.println("Usage: ReplayRecognition file [-threads n] "
+				+ "[-warmup n] [-algo ALGO]");
+			System.err.println("       ReplayRecognition -generate file "
+				+ "[count] [seed]");
+			System.exit(1);
+		}
+
+		new ReplayRecognition().run(file, threads, warmup, soloAlgo);
+	}
+
+	private KanjiList list;
+
+	/**
+	 * A single drawing from the file.
+	 */
+	private static class Drawing
+	{
+		private KanjiInfo info;
+		private List<MatchAlgorithm> algorithms = new LinkedList<MatchAlgorithm>();
+	}
+
+	/**
+	 * Tracks results for a specific algorithm.
+	 */
+	private static class AlgoResults
+	{
+		private MatchAlgorithm algo;
+		private int max;
+		private int total, first, top5, shown;
+		private long[] latencies = new long[64];
+
+		private AlgoResults(MatchAlgorithm algo)
+		{
+			this.algo = algo;
+			// Maximum ranking that is actually displayed by the Android app
+			max = algo == MatchAlgorithm.STRICT ? 7 : 24;
+		}
+
+		/**
+		 * Adds a result.
+		 * @param ranking Ranking (starting from 1), or 0 if not found
+		 * @param latency Search time in nanoseconds
+		 */
+		private synchronized void add(int ranking, long latency)
+		{
+			if(total == latencies.length)
+			{
+				latencies = Arrays.copyOf(latencies, total * 2);
+			}
+			latencies[total++] = latency;
+			if(ranking == 1)
+			{
+				first++;
+			}
+			if(ranking >= 1 && ranking <= 5)
+			{
+				top5++;
+			}
+			if(ranking >= 1 && ranking <= max)
+			{
+				shown++;
+			}
+		}
+
+		/**
+		 * Displays results to standard out.
+		 */
+		private synchronized void display()
+		{
+			String algoName = algo.toString();
+			System.out.println();
+			System.out.println(algoName);
+			for(int i=0; i<algoName.length(); i++)
+			{
+				System.out.print("=");
+			}
+			System.out.println();
+			System.out.println();
+
+			display("Rank 1", first);
+			display("Top 5", top5);
+			display("Top " + max, shown);
+			display("Fail", total - shown);
+
+			long[] sorted = Arrays.copyOf(latencies, total);
+			Arrays.sort(sorted);
+			StringBuilder line = new StringBuilder("Latency");
+			for(double percentile : PERCENTILES)
+			{
+				line.append(String.format(" p%.0f %.2f ms", percentile,
+					getPercentile(sorted, percentile) / 1000000.0));
+			}
+			line.append(String.format(" max %.2f ms",
+				sorted[sorted.length - 1] / 1000000.0));
+			System.out.println();
+			System.out.println(line);
+		}
+
+		/**
+		 * Displays a line of data with count and percentage.
+		 * @param label Label at left
+		 * @param count Count for this line
+		 */
+		private void display(String label, int count)
+		{
+			System.out.println(String.format("%-7s %7d %7.1f%%",
+				label, count, 100.0 * count / total));
+		}
+	}
+
+	/**
+	 * @param sorted Sorted values (at least one)
+	 * @param percentile Percentile (0-100)
+	 * @return Value at percentile (nearest rank)
+	 */
+	static long getPercentile(long[] sorted, double percentile)
+	{
+		int rank = (int)Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(0, Math.min(sorted.length - 1, rank - 1))];
+	}
+
+	/**
+	 * @param file File of drawings
+	 * @param threads Number of search threads
+	 * @param warmup Number of passes to run before measuring
+	 * @param soloAlgo Match algorithm or null for all
+	 * @throws Exception Any error
+	 */
+	private void run(File file, int threads, int warmup, MatchAlgorithm soloAlgo)
+		throws Exception
+	{
+		list = new KanjiList(new FileInputStream("data/strokes-20100823.xml"));
+		List<Drawing> drawings = load(file, soloAlgo);
+		System.err.println("Loaded " + drawings.size() + " drawings");
+
+		ExecutorService threadPool = Executors.newFixedThreadPool(threads);
+		try
+		{
+			for(int i=0; i<warmup; i++)
+			{
+				System.err.println("Warm-up pass " + (i + 1));
+				replay(threadPool, drawings);
+			}
+			long startTime = System.nanoTime();
+			Map<MatchAlgorithm, AlgoResults> results =
+				replay(threadPool, drawings);
+			long endTime = System.nanoTime();
+
+			for(AlgoResults algoResults : results.values())
+			{
+				algoResults.display();
+			}
+			System.out.println();
+			System.out.println("PERFORMANCE");
+			System.out.println("===========");
+			System.out.println();
+			System.out.println(String.format(
+				"%d drawings on %d threads in %.2f s (%.1f drawings / s)",
+				drawings.size(), threads, (endTime - startTime) / 1000000000.0,
+				drawings.size() * 1000000000.0 / (endTime - startTime)));
+		}
+		finally
+		{
+			threadPool.shutdown();
+		}
+	}
+
+	/**
+	 * Loads drawings from the file and decides which algorithms to use for
+	 * each, based on the difference in stroke count.
+	 * @param file File
+	 * @param soloAlgo Match algorithm or null for all
+	 * @return Drawings that need at least one algorithm
+	 * @throws IOException Any error reading file
+	 */
+	private List<Drawing> load(File file, MatchAlgorithm soloAlgo)
+		throws IOException
+	{
+		List<Drawing> drawings = new ArrayList<Drawing>();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(
+			new FileInputStream(file), "UTF-8"));
+		try
+		{
+			int lineNumber = 0;
+			while(true)
+			{
+				String line = reader.readLine();
+				if(line == null)
+				{
+					break;
+				}
+				lineNumber++;
+				line = line.trim();
+				if(line.length() == 0 || line.startsWith("#"))
+				{
+					continue;
+				}
+				int tab = line.indexOf('\t');
+				if(tab == -1)
+				{
+					throw new IOException("Missing tab on line " + lineNumber);
+				}
+				String kanji = line.substring(tab + 1).trim();
+				KanjiInfo actual = list.lookup(kanji);
+				if(actual == null)
+				{
+					System.err.println("Skipping unknown kanji " + kanji + " on line "
+						+ lineNumber);
+					continue;
+				}
+
+				Drawing drawing = new Drawing();
+				try
+				{
+					drawing.info = new KanjiInfo(kanji, line.substring(0, tab));
+				}
+				catch(IllegalArgumentException e)
+				{
+					throw new IOException("Invalid drawing on line " + lineNumber);
+				}
+				int out = Math.abs(actual.getStrokeCount()
+					- drawing.info.getStrokeCount());
+				for(MatchAlgorithm algo : MatchAlgorithm.values())
+				{
+					if(algo.getOut() == out && (soloAlgo == null || soloAlgo == algo))
+					{
+						drawing.algorithms.add(algo);
+					}
+				}
+				if(!drawing.algorithms.isEmpty())
+				{
+					drawings.add(drawing);
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+		return drawings;
+	}
+
+	/**
+	 * Runs all drawings through the search.
+	 * @param threadPool Threads to use
+	 * @param drawings Drawings
+	 * @return Results for each algorithm that was used
+	 * @throws Exception Any error
+	 */
+	private Map<MatchAlgorithm, AlgoResults> replay(ExecutorService threadPool,
+		List<Drawing> drawings) throws Exception
+	{
+		final Map<MatchAlgorithm, AlgoResults> results =
+			new EnumMap<MatchAlgorithm, AlgoResults>(MatchAlgorithm.class);
+		for(MatchAlgorithm algo : MatchAlgorithm.values())
+		{
+			results.put(algo, new AlgoResults(algo));
+		}
+
+		List<Future<?>> futures = new ArrayList<Future<?>>(drawings.size());
+		for(final Drawing drawing : drawings)
+		{
+			futures.add(threadPool.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					for(MatchAlgorithm algo : drawing.algorithms)
+					{
+						process(drawing.info, algo, results.get(algo));
+					}
+				}
+			}));
+		}
+		for(Future<?> future : futures)
+		{
+			future.get();
+		}
+
+		for(Iterator<AlgoResults> i = results.values().iterator(); i.hasNext();)
+		{
+			if(i.next().total == 0)
+			{
+				i.remove();
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Processes a single kanji drawing with a single algorithm.
+	 * @param drawingInfo Drawing
+	 * @param algo Algorithm to use
+	 * @param algoResults Results for algorithm
+	 */
+	private void process(KanjiInfo drawingInfo, MatchAlgorithm algo,
+		AlgoResults algoResults)
+	{
+		long start = System.nanoTime();
+		KanjiMatch[] matches = list.getTopMatches(drawingInfo, algo,
+			algoResults.max, null);
+		long latency = System.nanoTime() - start;
+
+		int ranking = 0;
+		for(int i=0; i<matches.length; i++)
+		{
+			if(matches[i].getKanji().getKanji().equals(drawingInfo.getKanji()))
+			{
+				ranking = i + 1;
+				break;
+			}
+		}
+		algoResults.add(ranking, latency);
+	}
+
+	/**
+	 * Writes a sample file of drawings made by moving the strokes of randomly
+	 * chosen kanji, sometimes with a stroke missing.
+	 * @param file File to write
+	 * @param count Number of drawings
+	 * @param seed Random seed
+	 * @throws IOException Any error
+	 */
+	private static void generate(File file, int count, long seed)
+		throws IOException
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		List<KanjiInfo> all = new ArrayList<KanjiInfo>();
+		for(StrokeBucket bucket : list.getBuckets())
+		{
+			if(bucket != null)
+			{
+				all.addAll(Arrays.asList(bucket.kanji).subList(0, bucket.size));
+			}
+		}
+
+		Random random = new Random(seed);
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try
+		{
+			out.write("# Generated by ReplayRecognition (seed " + seed + ")\n");
+			for(int i=0; i<count; i++)
+			{
+				KanjiInfo kanji = all.get(random.nextInt(all.size()));
+				int strokeCount = kanji.getStrokeCount();
+				int missing = -1;
+				if(strokeCount > 1 && random.nextDouble() < GENERATE_MISSING_STROKE)
+				{
+					missing = random.nextInt(strokeCount);
+				}
+
+				List<Stroke> strokes = new ArrayList<Stroke>();
+				for(int stroke=0; stroke<strokeCount; stroke++)
+				{
+					if(stroke == missing)
+					{
+						continue;
+					}
+					Stroke original = kanji.getStroke(stroke);
+					strokes.add(new Stroke(
+						jitter(random, original.getStartX()),
+						jitter(random, original.getStartY()),
+						jitter(random, original.getEndX()),
+						jitter(random, original.getEndY())));
+				}
+				KanjiInfo drawing = new KanjiInfo(kanji.getKanji(),
+					strokes.toArray(new Stroke[strokes.size()]));
+				out.write(drawing.getFullSummary() + "\t" + kanji.getKanji() + "\n");
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	 * @param random Random number generator
+	 * @param value Coordinate (0-255)
+	 * @return Coordinate moved by a random amount, within range
+	 */
+	private static int jitter(Random random, int value)
+	{
+		value += random.nextInt(GENERATE_JITTER * 2 + 1) - GENERATE_JITTER;
+		return Math.max(0, Math.min(255, value));
+	}
+}
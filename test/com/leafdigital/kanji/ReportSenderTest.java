@@ -0,0 +1,305 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.*;
+
+import com.sun.net.httpserver.*;
+
+/** Test sending reports to a local HTTP server. */
+public class ReportSenderTest
+{
+	private HttpServer server;
+	private String url;
+
+	/** Bodies received by the server. */
+	private final List<String> bodies =
+		Collections.synchronizedList(new ArrayList<String>());
+
+	/** Server waits for this before responding. */
+	private volatile CountDownLatch release = new CountDownLatch(0);
+
+	/** Response sent by the server. */
+	private volatile String response = "OK";
+
+	/**
+	 * Starts local server.
+	 * @throws Exception Any error
+	 */
+	@Before
+	public void setUp() throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/report", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				ByteArrayOutputStream body = new ByteArrayOutputStream();
+				InputStream input = exchange.getRequestBody();
+				byte[] buffer = new byte[1024];
+				while(true)
+				{
+					int read = input.read(buffer);
+					if(read == -1)
+					{
+						break;
+					}
+					body.write(buffer, 0, read);
+				}
+				bodies.add(body.toString("UTF-8"));
+				try
+				{
+					release.await();
+				}
+				catch(InterruptedException e)
+				{
+				}
+				byte[] out = (response + "\n").getBytes("UTF-8");
+				exchange.sendResponseHeaders(200, out.length);
+				exchange.getResponseBody().write(out);
+				exchange.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/report";
+	}
+
+	/**
+	 * Stops local server.
+	 */
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+	}
+
+	/**
+	 * Tests single reports and batches.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testBatches() throws Exception
+	{
+		// One per request
+		ReportSender sender = new ReportSender(url, 1, 0, 100);
+		Recorder recorder = new Recorder(3);
+		for(int i=0; i<3; i++)
+		{
+			sender.send("a=" + i, recorder);
+		}
+		assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+		assertEquals(3, recorder.started);
+		assertEquals(3, recorder.ok);
+		assertEquals(Arrays.asList("a=0", "a=1", "a=2"), bodies);
+		assertEquals(3, sender.getSent());
+		assertEquals(3, sender.getRequests());
+		sender.shutdown();
+
+		// Reports that arrive together are batched
+		bodies.clear();
+		sender = new ReportSender(url, 4, 500, 100);
+		recorder = new Recorder(6);
+		for(int i=0; i<6; i++)
+		{
+			sender.send("b=" + i, recorder);
+		}
+		assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("b=0\nb=1\nb=2\nb=3\n", "b=4\nb=5\n"), bodies);
+		assertEquals(6, sender.getSent());
+		assertEquals(2, sender.getRequests());
+
+		// Failure response
+		response = "ERROR";
+		recorder = new Recorder(1);
+		sender.send("c=1", recorder);
+		assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+		assertEquals(0, recorder.ok);
+		assertEquals(1, sender.getFailed());
+		sender.shutdown();
+	}
+
+	/**
+	 * Tests that the oldest reports are dropped when the queue is full.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testDrop() throws Exception
+	{
+		release = new CountDownLatch(1);
+		ReportSender sender = new ReportSender(url, 1, 0, 2);
+		Recorder recorder = new Recorder(5);
+
+		// First report is sent, but the server holds it up
+		sender.send("d=0", recorder);
+		long start = System.currentTimeMillis();
+		while(bodies.isEmpty())
+		{
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			Thread.sleep(10);
+		}
+
+		// Queue holds two; the oldest two of these are dropped
+		for(int i=1; i<5; i++)
+		{
+			sender.send("d=" + i, recorder);
+		}
+		assertEquals(2, sender.getDropped());
+		assertEquals(2, sender.getQueueLength());
+
+		release.countDown();
+		assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList("d=0", "d=3", "d=4"), bodies);
+		assertEquals(3, recorder.ok);
+		assertEquals(3, sender.getSent());
+
+		// Nothing is sent after shutdown
+		sender.shutdown();
+		recorder = new Recorder(1);
+		sender.send("e=0", recorder);
+		assertEquals(0, recorder.done.getCount());
+		assertEquals(3, sender.getDropped());
+	}
+
+	/**
+	 * Tests that callbacks which throw exceptions don't stop reports being
+	 * sent, or pass the exception to whoever is sending a report.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testThrowingCallback() throws Exception
+	{
+		release = new CountDownLatch(1);
+		ReportSender sender = new ReportSender(url, 1, 0, 2);
+		StatsReporter.Callback thrower = new StatsReporter.Callback()
+		{
+			@Override
+			public void phoneHomeStart()
+			{
+				throw new IllegalStateException("Start");
+			}
+
+			@Override
+			public void phoneHomeEnd(boolean success)
+			{
+				throw new IllegalStateException("End " + success);
+			}
+		};
+
+		// First report is sent, but the server holds it up
+		sender.send("f=0", thrower);
+		long start = System.currentTimeMillis();
+		while(bodies.isEmpty())
+		{
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			Thread.sleep(10);
+		}
+
+		// The first of these is dropped when the last arrives
+		sender.send("f=1", thrower);
+		Recorder recorder = new Recorder(2);
+		sender.send("f=2", recorder);
+		sender.send("f=3", recorder);
+		assertEquals(1, sender.getDropped());
+
+		release.countDown();
+		assertTrue(recorder.done.await(10, TimeUnit.SECONDS));
+		assertEquals(2, recorder.ok);
+		assertEquals(Arrays.asList("f=0", "f=2", "f=3"), bodies);
+		assertEquals(3, sender.getSent());
+
+		// After shutdown too
+		sender.shutdown();
+		sender.send("f=4", thrower);
+		assertEquals(2, sender.getDropped());
+	}
+
+	/**
+	 * Tests that a report is still ended if the sender shuts down, and its
+	 * thread finishes, while the report is being sent.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testShutdownWhileSending() throws Exception
+	{
+		final ReportSender sender = new ReportSender(url, 1, 0, 4);
+		final Recorder recorder = new Recorder(1);
+		sender.send("h=0", new StatsReporter.Callback()
+		{
+			@Override
+			public void phoneHomeStart()
+			{
+				recorder.phoneHomeStart();
+				sender.shutdown();
+				try
+				{
+					assertTrue(sender.awaitTermination(10000));
+				}
+				catch(InterruptedException e)
+				{
+				}
+			}
+
+			@Override
+			public void phoneHomeEnd(boolean success)
+			{
+				recorder.phoneHomeEnd(success);
+			}
+		});
+		assertEquals(0, recorder.done.getCount());
+		assertEquals(0, recorder.ok);
+		assertEquals(1, sender.getDropped());
+		assertEquals(0, sender.getQueueLength());
+		assertEquals(0, bodies.size());
+	}
+
+	private static class Recorder implements StatsReporter.Callback
+	{
+		private int started, ok;
+		private CountDownLatch done;
+
+		private Recorder(int count)
+		{
+			done = new CountDownLatch(count);
+		}
+
+		@Override
+		public synchronized void phoneHomeStart()
+		{
+			started++;
+		}
+
+		@Override
+		public synchronized void phoneHomeEnd(boolean success)
+		{
+			if(success)
+			{
+				ok++;
+			}
+			done.countDown();
+		}
+	}
+}
@@ -0,0 +1,396 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import static org.junit.Assert.*;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.*;
+
+import org.junit.*;
+
+import com.sun.net.httpserver.*;
+
+/** Test spooling reports to disk and sending them to a local HTTP server. */
+public class ReportSpoolTest
+{
+	private HttpServer server;
+	private String url;
+	private File directory;
+
+	/** Bodies received by the server. */
+	private final List<String> bodies =
+		Collections.synchronizedList(new ArrayList<String>());
+
+	/** Response sent by the server. */
+	private volatile String response = "OK";
+
+	/** HTTP status sent by the server. */
+	private volatile int status = 200;
+
+	/**
+	 * Starts local server and creates spool directory.
+	 * @throws Exception Any error
+	 */
+	@Before
+	public void setUp() throws Exception
+	{
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/report", new HttpHandler()
+		{
+			@Override
+			public void handle(HttpExchange exchange) throws IOException
+			{
+				BufferedReader reader = new BufferedReader(
+					new InputStreamReader(exchange.getRequestBody(), "UTF-8"));
+				StringBuilder body = new StringBuilder();
+				while(true)
+				{
+					int c = reader.read();
+					if(c == -1)
+					{
+						break;
+					}
+					body.append((char)c);
+				}
+				bodies.add(body.toString());
+				byte[] out = (response + "\n").getBytes("UTF-8");
+				exchange.sendResponseHeaders(status, out.length);
+				exchange.getResponseBody().write(out);
+				exchange.close();
+			}
+		});
+		server.start();
+		url = "http://127.0.0.1:" + server.getAddress().getPort() + "/report";
+
+		directory = File.createTempFile("spool", "");
+		directory.delete();
+	}
+
+	/**
+	 * Stops local server and deletes spool directory.
+	 */
+	@After
+	public void tearDown()
+	{
+		server.stop(0);
+		File[] files = directory.listFiles();
+		if(files != null)
+		{
+			for(File file : files)
+			{
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Tests that reports are sent in order and segments are then deleted.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testSend() throws Exception
+	{
+		ReportSpool spool = new ReportSpool(directory, url, 2, 65536, 50, 1 << 20, 10,
+			40, 1000);
+		Recorder recorder = new Recorder();
+		for(int i=0; i<5; i++)
+		{
+			spool.send("a=" + i, recorder);
+		}
+		assertEquals(5, recorder.started);
+		assertEquals(5, recorder.ok);
+
+		waitFor(spool, 5);
+		Set<String> received = new HashSet<String>();
+		for(String body : bodies)
+		{
+			received.addAll(Arrays.asList(body.split("\n")));
+		}
+		assertEquals(5, received.size());
+		assertEquals("a=0", bodies.get(0).split("\n")[0]);
+		waitForSegments(spool, 0);
+		spool.shutdown();
+		assertTrue(spool.awaitTermination(10000));
+
+		// Nothing is written after shutdown
+		spool.send("a=5", recorder);
+		assertEquals(5, recorder.ok);
+		assertEquals(1, spool.getDropped());
+	}
+
+	/**
+	 * Tests that failed requests are retried until the server accepts them.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testRetry() throws Exception
+	{
+		response = "ERROR";
+		ReportSpool spool = new ReportSpool(directory, url, 1, 65536, 50, 1 << 20,
+			10, 40, 1000);
+		spool.send("b=0", null);
+		spool.send("b=1", null);
+		long start = System.currentTimeMillis();
+		while(spool.getFailed() < 3)
+		{
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			Thread.sleep(10);
+		}
+		assertEquals(0, spool.getSent());
+
+		response = "OK";
+		waitFor(spool, 2);
+		List<String> last = bodies.subList(bodies.size() - 2, bodies.size());
+		assertEquals(Arrays.asList("b=0", "b=1"), last);
+		waitForSegments(spool, 0);
+		spool.shutdown();
+	}
+
+	/**
+	 * Tests that reports left in the spool are sent by the next spool that
+	 * uses the directory.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testRestart() throws Exception
+	{
+		// Server rejects everything, and segments hold one report each
+		response = "ERROR";
+		ReportSpool spool = new ReportSpool(directory, url, 1, 1, 60000, 1 << 20,
+			60000, 60000, 1000);
+		for(int i=0; i<3; i++)
+		{
+			spool.send("c=" + i, null);
+		}
+		spool.shutdown();
+		assertTrue(spool.awaitTermination(10000));
+		assertEquals(0, spool.getSent());
+		assertEquals(3, spool.getSegmentCount());
+
+		// Report that was not completely written is ignored
+		File[] files = directory.listFiles();
+		Arrays.sort(files);
+		FileOutputStream out = new FileOutputStream(files[2], true);
+		out.write("c=torn".getBytes("UTF-8"));
+		out.close();
+
+		bodies.clear();
+		response = "OK";
+		spool = new ReportSpool(directory, url, 1, 65536, 50, 1 << 20, 10, 40,
+			1000);
+		spool.send("c=3", null);
+		waitFor(spool, 4);
+		assertEquals(Arrays.asList("c=0", "c=1", "c=2", "c=3"), bodies);
+		waitForSegments(spool, 0);
+		spool.shutdown();
+	}
+
+	/**
+	 * Tests that reports the server will never accept are skipped, while
+	 * server errors are retried.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testReject() throws Exception
+	{
+		// Client error: skipped straight away
+		status = 400;
+		ReportSpool spool = new ReportSpool(directory, url, 1, 65536, 50, 1 << 20,
+			10, 40, 3);
+		spool.send("d=0", null);
+		waitForRejected(spool, 1);
+		assertEquals(1, bodies.size());
+		status = 200;
+		spool.send("d=1", null);
+		waitFor(spool, 1);
+
+		// Not OK: skipped after the maximum number of attempts
+		bodies.clear();
+		response = "ERROR";
+		spool.send("d=2", null);
+		waitForRejected(spool, 2);
+		assertEquals(Arrays.asList("d=2", "d=2", "d=2"), bodies);
+		response = "OK";
+		spool.send("d=3", null);
+		waitFor(spool, 2);
+
+		// Server error: retried as often as it takes
+		status = 503;
+		spool.send("d=4", null);
+		long start = System.currentTimeMillis();
+		while(spool.getFailed() < 2 + 5)
+		{
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			Thread.sleep(10);
+		}
+		status = 200;
+		waitFor(spool, 3);
+		assertEquals(2, spool.getRejected());
+		assertEquals("d=4", bodies.get(bodies.size() - 1));
+		waitForSegments(spool, 0);
+		spool.shutdown();
+	}
+
+	/**
+	 * Tests that the oldest segments are deleted when the spool is full.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testMaxSize() throws Exception
+	{
+		// Segments hold one report of 4 bytes each, and the spool holds 5
+		response = "ERROR";
+		ReportSpool spool = new ReportSpool(directory, url, 1, 1, 60000, 20,
+			60000, 60000, 1000);
+		for(int i=0; i<10; i++)
+		{
+			spool.send("e=" + i, null);
+		}
+
+		// The background thread deletes them
+		waitForSegments(spool, 5);
+		assertEquals(5, spool.getDropped());
+		spool.shutdown();
+		assertTrue(spool.awaitTermination(10000));
+
+		// The newest are still there
+		bodies.clear();
+		response = "OK";
+		spool = new ReportSpool(directory, url, 1, 65536, 50, 1 << 20, 10, 40,
+			1000);
+		waitFor(spool, 5);
+		assertTrue(bodies.containsAll(Arrays.asList("e=7", "e=8", "e=9")));
+		waitForSegments(spool, 0);
+		spool.shutdown();
+	}
+
+	/**
+	 * Tests that reports the server has accepted are not sent again after a
+	 * restart, even if their segment is still in the spool.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testAcknowledged() throws Exception
+	{
+		// First report is accepted, second is not, both in the same segment
+		ReportSpool spool = new ReportSpool(directory, url, 1, 65536, 60000,
+			1 << 20, 10, 40, 1000);
+		spool.send("g=0", null);
+		waitFor(spool, 1);
+		response = "ERROR";
+		spool.send("g=1", null);
+		long start = System.currentTimeMillis();
+		while(spool.getFailed() < 1)
+		{
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			Thread.sleep(10);
+		}
+		spool.shutdown();
+		assertTrue(spool.awaitTermination(10000));
+		assertEquals(1, spool.getSegmentCount());
+
+		bodies.clear();
+		response = "OK";
+		spool = new ReportSpool(directory, url, 1, 65536, 50, 1 << 20, 10, 40,
+			1000);
+		waitFor(spool, 1);
+		assertEquals(Arrays.asList("g=1"), bodies);
+		waitForSegments(spool, 0);
+		assertEquals(0, directory.listFiles().length);
+		spool.shutdown();
+	}
+
+	/**
+	 * Tests that a segment which can't be read is skipped after the maximum
+	 * number of attempts.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testUnreadable() throws Exception
+	{
+		// A directory in place of the oldest segment can't be read
+		assertTrue(new File(directory, "reports-0000000000.log").mkdirs());
+		ReportSpool spool = new ReportSpool(directory, url, 1, 65536, 50, 1 << 20,
+			10, 40, 3);
+		spool.send("f=0", null);
+		waitForRejected(spool, 1);
+		assertEquals(3, spool.getFailed());
+		waitFor(spool, 1);
+		assertEquals(Arrays.asList("f=0"), bodies);
+		waitForSegments(spool, 0);
+		spool.shutdown();
+	}
+
+	private static void waitForRejected(ReportSpool spool, int rejected)
+		throws Exception
+	{
+		long start = System.currentTimeMillis();
+		while(spool.getRejected() < rejected)
+		{
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			Thread.sleep(10);
+		}
+		assertEquals(rejected, spool.getRejected());
+	}
+
+	private static void waitFor(ReportSpool spool, int sent) throws Exception
+	{
+		long start = System.currentTimeMillis();
+		while(spool.getSent() < sent)
+		{
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			Thread.sleep(10);
+		}
+		assertEquals(sent, spool.getSent());
+	}
+
+	private static void waitForSegments(ReportSpool spool, int count)
+		throws Exception
+	{
+		long start = System.currentTimeMillis();
+		while(spool.getSegmentCount() != count)
+		{
+			assertTrue(System.currentTimeMillis() - start < 10000);
+			Thread.sleep(10);
+		}
+	}
+
+	private static class Recorder implements StatsReporter.Callback
+	{
+		private int started, ok;
+
+		@Override
+		public synchronized void phoneHomeStart()
+		{
+			started++;
+		}
+
+		@Override
+		public synchronized void phoneHomeEnd(boolean success)
+		{
+			if(success)
+			{
+				ok++;
+			}
+		}
+	}
+}
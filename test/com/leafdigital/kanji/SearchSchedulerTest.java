@@ -0,0 +1,392 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+
+/** Test cancellable and superseding searches. */
+public class SearchSchedulerTest
+{
+	/**
+	 * Tests that a cancelled search stops.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testCancel() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo drawn = list.getKanji(8)[0];
+
+		// Not cancelled: same as normal search
+		final int[] checks = new int[1];
+		KanjiMatch[] matches = list.getTopMatches(drawn,
+			KanjiInfo.MatchAlgorithm.FUZZY_1OUT, 10, null,
+			new KanjiList.Cancellation()
+			{
+				@Override
+				public boolean isCancelled()
+				{
+					checks[0]++;
+					return false;
+				}
+			});
+		assertEquals(10, matches.length);
+		assertTrue(checks[0] > 1);
+		int candidates = list.getKanji(7).length + list.getKanji(9).length;
+		assertTrue(checks[0] < candidates / 100);
+
+		// Cancelled part way through
+		checks[0] = 0;
+		try
+		{
+			list.getTopMatches(drawn, KanjiInfo.MatchAlgorithm.FUZZY_1OUT, 10, null,
+				new KanjiList.Cancellation()
+				{
+					@Override
+					public boolean isCancelled()
+					{
+						return ++checks[0] == 2;
+					}
+				});
+			fail();
+		}
+		catch(CancellationException e)
+		{
+		}
+		assertEquals(2, checks[0]);
+	}
+
+	/**
+	 * Tests that only the latest search for each surface is delivered.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testSupersede() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo[] all = list.getKanji(6);
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			SearchScheduler scheduler = new SearchScheduler(list, executor);
+
+			// Block the executor so the searches queue up
+			final CountDownLatch release = new CountDownLatch(1);
+			executor.submit(new Callable<Object>()
+			{
+				@Override
+				public Object call() throws Exception
+				{
+					release.await();
+					return null;
+				}
+			});
+
+			final List<String> delivered =
+				Collections.synchronizedList(new ArrayList<String>());
+			final CountDownLatch done = new CountDownLatch(2);
+			String surfaceA = "a", surfaceB = "b", surfaceC = "c";
+			for(int i=0; i<3; i++)
+			{
+				scheduler.search(surfaceA, all[i], KanjiInfo.MatchAlgorithm.STRICT,
+					5, new Recorder("a" + i, delivered, done));
+			}
+			scheduler.search(surfaceB, all[3], KanjiInfo.MatchAlgorithm.STRICT,
+				5, new Recorder("b", delivered, done));
+			scheduler.search(surfaceC, all[4], KanjiInfo.MatchAlgorithm.STRICT,
+				5, new Recorder("c", delivered, done));
+			scheduler.cancel(surfaceC);
+
+			release.countDown();
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+
+			// Wait for anything else that might (wrongly) be delivered
+			executor.submit(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+				}
+			}).get();
+			Collections.sort(delivered);
+			assertEquals(Arrays.asList("a2", "b"), delivered);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that a session search reports the kanji it searched for.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testSession() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		RecognitionSession session = new RecognitionSession(list);
+		session.addStroke(new InputStroke(0, 0, 100, 0));
+		session.addStroke(new InputStroke(50, 0, 50, 100));
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		SearchScheduler scheduler = new SearchScheduler(list, executor);
+		final KanjiInfo[] drawn = new KanjiInfo[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		scheduler.search("x", session, KanjiInfo.MatchAlgorithm.STRICT, 5,
+			new SearchScheduler.Callback()
+			{
+				@Override
+				public void searchFinished(KanjiInfo kanji, KanjiMatch[] matches)
+				{
+					drawn[0] = kanji;
+					done.countDown();
+				}
+
+				@Override
+				public void searchFailed(Throwable t)
+				{
+					t.printStackTrace();
+				}
+			});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		executor.shutdown();
+		assertEquals(2, drawn[0].getStrokeCount());
+	}
+
+	/**
+	 * Tests that a multi-algorithm session search gives the same results as
+	 * separate searches.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testMultiple() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo kanji = list.getKanji(4)[0];
+		RecognitionSession session = new RecognitionSession(list);
+		for(int i=0; i<kanji.getStrokeCount(); i++)
+		{
+			Stroke stroke = kanji.getStroke(i);
+			session.addStroke(new InputStroke(stroke.getStartX(),
+				stroke.getStartY(), stroke.getEndX(), stroke.getEndY()));
+		}
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		SearchScheduler scheduler = new SearchScheduler(list, executor);
+		EnumSet<KanjiInfo.MatchAlgorithm> algos = EnumSet.of(
+			KanjiInfo.MatchAlgorithm.STRICT, KanjiInfo.MatchAlgorithm.FUZZY,
+			KanjiInfo.MatchAlgorithm.FUZZY_1OUT, KanjiInfo.MatchAlgorithm.FUZZY_2OUT);
+		final List<Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]>> results =
+			new ArrayList<Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]>>();
+		final KanjiInfo[] drawn = new KanjiInfo[1];
+		final CountDownLatch done = new CountDownLatch(1);
+		scheduler.search("x", session, algos, 11,
+			new SearchScheduler.MultiCallback()
+			{
+				@Override
+				public void searchFinished(KanjiInfo kanji,
+					Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> matches)
+				{
+					drawn[0] = kanji;
+					results.add(matches);
+					done.countDown();
+				}
+
+				@Override
+				public void searchFailed(Throwable t)
+				{
+					t.printStackTrace();
+				}
+			});
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		executor.shutdown();
+
+		Map<KanjiInfo.MatchAlgorithm, KanjiMatch[]> matches = results.get(0);
+		assertEquals(algos, matches.keySet());
+		for(KanjiInfo.MatchAlgorithm algo : algos)
+		{
+			KanjiMatch[] expected = list.getTopMatches(drawn[0], algo, 11, null);
+			KanjiMatch[] actual = matches.get(algo);
+			assertEquals(expected.length, actual.length);
+			for(int i=0; i<expected.length; i++)
+			{
+				assertSame(expected[i].getKanji(), actual[i].getKanji());
+				assertEquals(expected[i].getScore(), actual[i].getScore(), 0f);
+			}
+		}
+	}
+
+	/**
+	 * Tests that callbacks are called without holding the scheduler's lock,
+	 * so other threads can use the scheduler while one runs.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testCallbackUnlocked() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		final KanjiInfo drawn = list.getKanji(3)[0];
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try
+		{
+			final SearchScheduler scheduler = new SearchScheduler(list, executor);
+			final CountDownLatch otherDone = new CountDownLatch(1);
+			final boolean[] result = new boolean[1];
+			final CountDownLatch done = new CountDownLatch(1);
+			scheduler.search("a", drawn, KanjiInfo.MatchAlgorithm.STRICT, 5,
+				new SearchScheduler.Callback()
+				{
+					@Override
+					public void searchFinished(KanjiInfo kanji, KanjiMatch[] matches)
+					{
+						// Another thread searches for and cancels a different surface
+						new Thread(new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								scheduler.search("b", drawn, KanjiInfo.MatchAlgorithm.STRICT,
+									5, new Recorder("b", new ArrayList<String>(),
+									new CountDownLatch(1)));
+								scheduler.cancel("b");
+								otherDone.countDown();
+							}
+						}).start();
+						try
+						{
+							result[0] = otherDone.await(10, TimeUnit.SECONDS);
+						}
+						catch(InterruptedException e)
+						{
+						}
+						done.countDown();
+					}
+
+					@Override
+					public void searchFailed(Throwable t)
+					{
+						t.printStackTrace();
+					}
+				});
+			assertTrue(done.await(20, TimeUnit.SECONDS));
+			assertTrue(result[0]);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	/**
+	 * Tests that errors thrown by a search are passed to the callback.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testError() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo broken = new KanjiInfo("x")
+		{
+			@Override
+			public int getStrokeCount()
+			{
+				throw new AssertionError("Broken");
+			}
+		};
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try
+		{
+			SearchScheduler scheduler = new SearchScheduler(list, executor);
+			final Throwable[] failure = new Throwable[1];
+			final CountDownLatch done = new CountDownLatch(1);
+			scheduler.search("x", broken, KanjiInfo.MatchAlgorithm.STRICT, 5,
+				new SearchScheduler.Callback()
+				{
+					@Override
+					public void searchFinished(KanjiInfo kanji, KanjiMatch[] matches)
+					{
+						done.countDown();
+					}
+
+					@Override
+					public void searchFailed(Throwable t)
+					{
+						failure[0] = t;
+						done.countDown();
+					}
+				});
+			assertTrue(done.await(10, TimeUnit.SECONDS));
+			assertTrue(failure[0] instanceof AssertionError);
+
+			// The surface can search again
+			List<String> delivered =
+				Collections.synchronizedList(new ArrayList<String>());
+			CountDownLatch again = new CountDownLatch(1);
+			scheduler.search("x", list.getKanji(3)[0],
+				KanjiInfo.MatchAlgorithm.STRICT, 5, new Recorder("x", delivered, again));
+			assertTrue(again.await(10, TimeUnit.SECONDS));
+			assertEquals(Arrays.asList("x"), delivered);
+		}
+		finally
+		{
+			executor.shutdown();
+		}
+	}
+
+	private static class Recorder implements SearchScheduler.Callback
+	{
+		private String name;
+		private List<String> delivered;
+		private CountDownLatch done;
+
+		private Recorder(String name, List<String> delivered, CountDownLatch done)
+		{
+			this.name = name;
+			this.delivered = delivered;
+			this.done = done;
+		}
+
+		@Override
+		public void searchFinished(KanjiInfo drawn, KanjiMatch[] matches)
+		{
+			delivered.add(name);
+			done.countDown();
+		}
+
+		@Override
+		public void searchFailed(Throwable t)
+		{
+			delivered.add(name + " failed");
+			done.countDown();
+		}
+	}
+}
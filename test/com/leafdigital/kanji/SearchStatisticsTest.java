@@ -0,0 +1,152 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+import java.util.*;
+import java.util.concurrent.*;
+
+import org.junit.Test;
+
+import com.leafdigital.kanji.KanjiInfo.MatchAlgorithm;
+
+/** Test search metrics and histograms. */
+public class SearchStatisticsTest
+{
+	/**
+	 * Tests histogram counters and percentiles.
+	 */
+	@Test
+	public void testHistogram()
+	{
+		// Counter boundaries
+		for(long value : new long[] { 0, 1, 63, 64, 65, 1000, 123456789L,
+			Long.MAX_VALUE })
+		{
+			int index = LatencyHistogram.getIndex(value);
+			assertTrue(LatencyHistogram.getHighestValue(index) >= value);
+			assertTrue(index == 0
+				|| LatencyHistogram.getHighestValue(index - 1) < value);
+		}
+		assertEquals(63, LatencyHistogram.getIndex(63));
+		assertEquals(65, LatencyHistogram.getHighestValue(
+			LatencyHistogram.getIndex(64)));
+
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0, histogram.getPercentile(50));
+		for(int i=1; i<=1000; i++)
+		{
+			histogram.record(i * 1000L);
+		}
+		assertEquals(1000, histogram.getCount());
+		assertEquals(1000000, histogram.getMax());
+		assertEquals(500500.0, histogram.getMean(), 0.01);
+		assertEquals(500000, histogram.getPercentile(50), 500000 / 32);
+		assertEquals(990000, histogram.getPercentile(99), 990000 / 32);
+		assertEquals(1000000, histogram.getPercentile(100));
+		assertEquals(1000, histogram.getPercentile(0), 1000 / 32);
+	}
+
+	/**
+	 * Tests that searches report to the installed metrics.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testSearch() throws Exception
+	{
+		SearchStatistics statistics = new SearchStatistics();
+		KanjiList.setMetrics(statistics);
+		try
+		{
+			KanjiList list = new KanjiList(
+				new FileInputStream("data/strokes-20100823.xml"));
+			assertEquals(1, statistics.getLoadTime().getCount());
+			assertEquals(countAll(list), statistics.getLoadedKanji());
+
+			KanjiInfo drawn = list.getKanji(6)[0];
+			KanjiMatch[] matches = list.getTopMatches(drawn,
+				MatchAlgorithm.FUZZY_1OUT, 10, null);
+			SearchStatistics.AlgoStatistics fuzzy1 =
+				statistics.get(MatchAlgorithm.FUZZY_1OUT);
+			int candidates = list.getKanji(5).length + list.getKanji(7).length;
+			assertEquals(1, fuzzy1.getSearches());
+			assertEquals(matches.length, fuzzy1.getResults());
+			assertEquals(list.getKanji(5).length, fuzzy1.getCandidates(5));
+			assertEquals(list.getKanji(7).length, fuzzy1.getCandidates(7));
+			assertEquals(0, fuzzy1.getCandidates(6));
+			assertEquals(candidates, fuzzy1.getScored() + fuzzy1.getPruned());
+			assertTrue(fuzzy1.getPruned() > 0);
+
+			// STRICT scores in batches, so nothing is pruned
+			list.getTopMatches(drawn, MatchAlgorithm.STRICT, 10, null);
+			SearchStatistics.AlgoStatistics strict =
+				statistics.get(MatchAlgorithm.STRICT);
+			assertEquals(list.getKanji(6).length, strict.getScored());
+			assertEquals(0, strict.getPruned());
+
+			// Each stroke count is counted once in a multi-algorithm search
+			statistics = new SearchStatistics();
+			KanjiList.setMetrics(statistics);
+			list.getTopMatches(drawn, EnumSet.of(MatchAlgorithm.SPANS,
+				MatchAlgorithm.SPANS_1OUT), 10, null);
+			SearchStatistics.AlgoStatistics spans =
+				statistics.get(MatchAlgorithm.SPANS),
+				spans1 = statistics.get(MatchAlgorithm.SPANS_1OUT);
+			assertEquals(1, spans.getSearches());
+			assertEquals(1, spans1.getSearches());
+			assertEquals(list.getKanji(6).length,
+				spans.getScored() + spans.getPruned());
+			assertEquals(candidates, spans1.getScored() + spans1.getPruned());
+			assertEquals(list.getKanji(7).length, spans1.getCandidates(7));
+
+			// Parallel search
+			ExecutorService executor = Executors.newFixedThreadPool(2);
+			try
+			{
+				list.getTopMatchesParallel(drawn, MatchAlgorithm.FUZZY, 10, executor);
+			}
+			finally
+			{
+				executor.shutdown();
+			}
+			SearchStatistics.AlgoStatistics fuzzy =
+				statistics.get(MatchAlgorithm.FUZZY);
+			assertEquals(1, fuzzy.getSearches());
+			assertEquals(list.getKanji(6).length,
+				fuzzy.getScored() + fuzzy.getPruned());
+			assertTrue(statistics.toString().contains("FUZZY: 1 searches"));
+		}
+		finally
+		{
+			KanjiList.setMetrics(null);
+		}
+	}
+
+	private static int countAll(KanjiList list)
+	{
+		int total = 0;
+		for(StrokeBucket bucket : list.getBuckets())
+		{
+			total += bucket == null ? 0 : bucket.size;
+		}
+		return total;
+	}
+}
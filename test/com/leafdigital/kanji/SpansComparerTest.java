@@ -65,4 +65,31 @@ public class SpansComparerTest
 			assertEquals(big.getKanji(), matches[0].getKanji().getKanji());
 		}
 	}
+
+	/**
+	 * Tests that each kanji scores 100 against itself, and that workers give
+	 * the same scores.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testScores() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo[] others = list.getKanji(6);
+		for(int strokes=1; strokes<=20; strokes++)
+		{
+			KanjiInfo drawn = list.getKanji(strokes)[0];
+			SpansComparer comparer = new SpansComparer();
+			comparer.init(drawn);
+			assertEquals(100f, comparer.getMatchScore(drawn), 0f);
+
+			KanjiComparer worker = comparer.newWorker();
+			for(KanjiInfo other : others)
+			{
+				assertEquals(comparer.getMatchScore(other),
+					worker.getMatchScore(other), 0f);
+			}
+		}
+	}
 }
@@ -0,0 +1,195 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import java.io.FileInputStream;
+
+import com.leafdigital.kanji.Stroke.Direction;
+import com.leafdigital.kanji.Stroke.Location;
+
+/**
+ * Times full STRICT scans (every kanji with the drawn stroke count, without
+ * stopping early) using {@link StrictComparer} one kanji at a time, in
+ * batches, and using a copy of the original version that compared enum
+ * values. This is a command-line tool; run it from the project folder.
+ */
+public class StrictBenchmark
+{
+	/**
+	 * Number of times to repeat each measurement; the first few are warm-up.
+	 */
+	private final static int ROUNDS = 10;
+
+	/**
+	 * Number of drawn kanji to scan for each stroke count.
+	 */
+	private final static int DRAWN_PER_COUNT = 10;
+
+	/**
+	 * @param args Ignored
+	 * @throws Exception Any error
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		StrokeBucket[] buckets = list.getBuckets();
+		float[] scores = new float[0];
+
+		for(int round=0; round<ROUNDS; round++)
+		{
+			long comparisons = 0, tableTime = 0, batchTime = 0, enumTime = 0;
+			float check = 0;
+			for(int count=1; count<buckets.length; count++)
+			{
+				StrokeBucket bucket = buckets[count];
+				if(bucket == null)
+				{
+					continue;
+				}
+				for(int drawnIndex=0; drawnIndex<bucket.size
+					&& drawnIndex<DRAWN_PER_COUNT; drawnIndex++)
+				{
+					KanjiInfo drawn = bucket.kanji[drawnIndex];
+
+					long start = System.nanoTime();
+					StrictComparer comparer = new StrictComparer();
+					comparer.init(drawn);
+					for(int i=0; i<bucket.size; i++)
+					{
+						check += comparer.getMatchScore(bucket, i);
+					}
+					tableTime += System.nanoTime() - start;
+
+					start = System.nanoTime();
+					comparer = new StrictComparer();
+					comparer.init(drawn);
+					if(scores.length < bucket.size)
+					{
+						scores = new float[bucket.size];
+					}
+					comparer.getMatchScores(bucket, 0, bucket.size, scores);
+					for(int i=0; i<bucket.size; i++)
+					{
+						check -= scores[i];
+					}
+					batchTime += System.nanoTime() - start;
+
+					start = System.nanoTime();
+					EnumComparer reference = new EnumComparer(drawn);
+					for(int i=0; i<bucket.size; i++)
+					{
+						check += reference.getMatchScore(bucket.kanji[i]);
+					}
+					enumTime += System.nanoTime() - start;
+
+					comparisons += bucket.size;
+				}
+			}
+			System.out.println("Round " + (round + 1) + ": " + comparisons
+				+ " comparisons; tables " + nsEach(tableTime, comparisons)
+				+ ", batch " + nsEach(batchTime, comparisons)
+				+ ", enums " + nsEach(enumTime, comparisons) + " (speedup "
+				+ String.format("%.1f", (double)enumTime / tableTime) + "x, "
+				+ String.format("%.1f", (double)enumTime / batchTime) + "x; check "
+				+ String.format("%.2f", check) + ")");
+		}
+	}
+
+	private static String nsEach(long time, long count)
+	{
+		return String.format("%.1f ns each", (double)time / count);
+	}
+
+	/**
+	 * Original STRICT comparison using enum values.
+	 */
+	private static class EnumComparer
+	{
+		private final static float STROKE_DIRECTION_WEIGHT = 1.0f;
+		private final static float MOVE_DIRECTION_WEIGHT = 0.8f;
+		private final static float STROKE_LOCATION_WEIGHT = 0.6f;
+
+		private final static float CLOSE_WEIGHT = 0.7f;
+
+		private Location[] drawnStarts, drawnEnds;
+		private Direction[] drawnDirections, drawnMoves;
+
+		private EnumComparer(KanjiInfo info)
+		{
+			drawnStarts = info.getStrokeStarts();
+			drawnEnds = info.getStrokeEnds();
+			drawnDirections = info.getStrokeDirections();
+			drawnMoves = info.getMoveDirections();
+		}
+
+		private float getMatchScore(KanjiInfo other)
+		{
+			Location[] otherStarts = other.getStrokeStarts(),
+				otherEnds = other.getStrokeEnds();
+			Direction[] otherDirections = other.getStrokeDirections(),
+				otherMoves = other.getMoveDirections();
+
+			float score = 0;
+			for(int i=0; i<drawnStarts.length; i++)
+			{
+				if(drawnDirections[i] == otherDirections[i])
+				{
+					score += STROKE_DIRECTION_WEIGHT;
+				}
+				else if(drawnDirections[i].isClose(otherDirections[i]))
+				{
+					score += STROKE_DIRECTION_WEIGHT * CLOSE_WEIGHT;
+				}
+				if(i>0)
+				{
+					if(drawnMoves[i-1] == otherMoves[i-1])
+					{
+						score += MOVE_DIRECTION_WEIGHT;
+					}
+					else if(drawnMoves[i-1].isClose(otherMoves[i-1]))
+					{
+						score += MOVE_DIRECTION_WEIGHT * CLOSE_WEIGHT;
+					}
+				}
+				if(drawnStarts[i] == otherStarts[i])
+				{
+					score += STROKE_LOCATION_WEIGHT;
+				}
+				else if(drawnStarts[i].isClose(otherStarts[i]))
+				{
+					score += STROKE_LOCATION_WEIGHT * CLOSE_WEIGHT;
+				}
+				if(drawnEnds[i] == otherEnds[i])
+				{
+					score += STROKE_LOCATION_WEIGHT;
+				}
+				else if(drawnEnds[i].isClose(otherEnds[i]))
+				{
+					score += STROKE_LOCATION_WEIGHT * CLOSE_WEIGHT;
+				}
+			}
+
+			float max = drawnStarts.length * (STROKE_DIRECTION_WEIGHT
+				+ 2 * STROKE_LOCATION_WEIGHT)
+				+	(drawnStarts.length - 1) * MOVE_DIRECTION_WEIGHT;
+			return 100.0f * score / max;
+		}
+	}
+}
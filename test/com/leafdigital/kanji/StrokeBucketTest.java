@@ -0,0 +1,188 @@
+/*
+This file is part of leafdigital kanjirecog.
+
+kanjirecog is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+kanjirecog is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with kanjirecog.  If not, see <http://www.gnu.org/licenses/>.
+
+Copyright 2011 Samuel Marshall.
+*/
+package com.leafdigital.kanji;
+
+import static org.junit.Assert.*;
+
+import java.io.FileInputStream;
+
+import org.junit.Test;
+
+/** Test column storage of kanji. */
+public class StrokeBucketTest
+{
+	/**
+	 * Tests that appending keeps earlier buckets unchanged, including when the
+	 * arrays grow.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testAppend() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo[] all = list.getKanji(5);
+		assertTrue(all.length > 100);
+
+		StrokeBucket bucket = new StrokeBucket(5);
+		StrokeBucket[] history = new StrokeBucket[all.length + 1];
+		history[0] = bucket;
+		for(int i=0; i<all.length; i++)
+		{
+			bucket = bucket.append(all[i]);
+			history[i + 1] = bucket;
+		}
+
+		for(int i=0; i<history.length; i++)
+		{
+			assertEquals(i, history[i].size);
+			KanjiInfo[] kanji = history[i].getKanji();
+			for(int j=0; j<i; j++)
+			{
+				assertSame(all[j], kanji[j]);
+			}
+		}
+
+		// Columns match the kanji they came from
+		for(int i=0; i<all.length; i++)
+		{
+			Stroke.Location[] starts = all[i].getStrokeStarts();
+			Stroke.Direction[] moves = all[i].getMoveDirections();
+			for(int stroke=0; stroke<5; stroke++)
+			{
+				int offset = i * 5 + stroke;
+				assertEquals(all[i].getStroke(stroke).getEndX(),
+					bucket.endX[offset] & 0xff);
+				assertEquals(starts[stroke].ordinal(), bucket.features[
+					bucket.getFeatureColumn(stroke, StrokeBucket.FEATURE_START) + i]);
+				if(stroke > 0)
+				{
+					assertEquals(moves[stroke - 1].ordinal(), bucket.features[
+						bucket.getFeatureColumn(stroke, StrokeBucket.FEATURE_MOVE) + i]);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that scoring from a list bucket matches scoring a single kanji.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testScores() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		KanjiInfo[] all = list.getKanji(6);
+		StrokeBucket bucket = new StrokeBucket(6);
+		for(KanjiInfo info : all)
+		{
+			bucket = bucket.append(info);
+		}
+
+		KanjiInfo drawn = all[all.length / 2];
+		for(KanjiInfo.MatchAlgorithm algo : KanjiInfo.MatchAlgorithm.values())
+		{
+			BucketComparer comparer = (BucketComparer)algo.newComparer(drawn);
+			for(int i=0; i<all.length; i++)
+			{
+				assertEquals(drawn.getMatchScore(all[i], algo),
+					comparer.getMatchScore(bucket, i), 0f);
+			}
+
+			// Batch scores (over a few ranges) are the same
+			if(comparer instanceof BatchComparer)
+			{
+				float[] scores = new float[all.length];
+				for(int start=0; start<all.length; start+=100)
+				{
+					int end = Math.min(all.length, start + 150);
+					((BatchComparer)comparer).getMatchScores(bucket, start, end, scores);
+					for(int i=start; i<end; i++)
+					{
+						assertEquals(comparer.getMatchScore(bucket, i),
+							scores[i - start], 0f);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Tests that scoring with a threshold gives the exact score when it is at
+	 * least the threshold, and a lower value otherwise.
+	 * @throws Exception Any error
+	 */
+	@Test
+	public void testThreshold() throws Exception
+	{
+		KanjiList list = new KanjiList(
+			new FileInputStream("data/strokes-20100823.xml"));
+		StrokeBucket bucket = list.getBuckets()[6];
+		KanjiInfo[] drawnKanji = { list.getKanji(6)[10], list.getKanji(5)[10] };
+		float[] thresholds = { 0f, 50f, 65f, 75f, 85f, 95f, 100f };
+		int stopped = 0;
+		for(KanjiInfo drawn : drawnKanji)
+		{
+			for(KanjiInfo.MatchAlgorithm algo : KanjiInfo.MatchAlgorithm.values())
+			{
+				if(algo == KanjiInfo.MatchAlgorithm.STRICT
+					&& drawn.getStrokeCount() != bucket.strokeCount)
+				{
+					continue;
+				}
+				BucketComparer comparer = (BucketComparer)algo.newComparer(drawn);
+				for(int i=0; i<bucket.size; i++)
+				{
+					float score = comparer.getMatchScore(bucket, i);
+					for(float threshold : thresholds)
+					{
+						float bounded = comparer.getMatchScore(bucket, i, threshold);
+						if(score >= threshold)
+						{
+							assertEquals(score, bounded, 0f);
+						}
+						else
+						{
+							assertTrue(bounded < threshold);
+							if(bounded != score)
+							{
+								stopped++;
+							}
+						}
+					}
+				}
+			}
+		}
+		assertTrue(stopped > 0);
+	}
+
+	/**
+	 * Tests that adding a kanji with the wrong stroke count fails.
+	 * @throws Exception Any error
+	 */
+	@Test(expected=IllegalArgumentException.class)
+	public void testWrongCount() throws Exception
+	{
+		KanjiInfo info = new KanjiInfo("x");
+		info.addStroke(new InputStroke(0, 0, 100, 100));
+		info.finish();
+		new StrokeBucket(2).append(info);
+	}
+}